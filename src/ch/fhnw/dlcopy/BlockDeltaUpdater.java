@@ -0,0 +1,109 @@
+package ch.fhnw.dlcopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Updates a large file in place by writing only the blocks that differ from
+ * a new version of the file. This is much faster than rewriting the whole
+ * file on media where writing is much slower than reading (e.g. cheap USB
+ * flash drives). Because the file is changed in place, an interrupted update
+ * leaves an inconsistent file behind. Use it only when there is no space for
+ * writing a new copy and renaming it into place.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class BlockDeltaUpdater {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(BlockDeltaUpdater.class.getName());
+    // the squashfs default block size
+    private static final int BLOCK_SIZE = 128 * 1024;
+    // large reads are much faster on slow USB flash drives
+    private static final int BUFFER_SIZE = 32 * BLOCK_SIZE;
+
+    private BlockDeltaUpdater() {
+    }
+
+    /**
+     * updates a file in place so that it has the same content as a source
+     * file. An interrupted update leaves an inconsistent target file behind,
+     * the timestamp of the target file is only set after a complete update.
+     *
+     * @param source the source file
+     * @param target the target file
+     * @param progress the counter of compared bytes (for progress reports)
+     * @return the number of bytes written to the target file
+     * @throws IOException if reading or writing fails
+     */
+    public static long update(File source, File target, AtomicLong progress)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        long written = 0;
+        try (FileChannel sourceChannel = FileChannel.open(source.toPath());
+                FileChannel targetChannel = FileChannel.open(target.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            long sourceSize = sourceChannel.size();
+            ByteBuffer sourceBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ByteBuffer targetBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (long position = 0; position < sourceSize;
+                    position += BUFFER_SIZE) {
+                int sourceLength = read(sourceChannel, sourceBuffer, position);
+                int targetLength = read(targetChannel, targetBuffer, position);
+
+                // compare block by block
+                for (int offset = 0; offset < sourceLength;
+                        offset += BLOCK_SIZE) {
+                    int end = Math.min(offset + BLOCK_SIZE, sourceLength);
+                    ByteBuffer sourceBlock
+                            = getBlock(sourceBuffer, offset, end);
+                    if ((end <= targetLength) && sourceBlock.equals(
+                            getBlock(targetBuffer, offset, end))) {
+                        continue;
+                    }
+                    while (sourceBlock.hasRemaining()) {
+                        written += targetChannel.write(sourceBlock,
+                                position + sourceBlock.position());
+                    }
+                }
+                progress.addAndGet(sourceLength);
+            }
+            if (targetChannel.size() > sourceSize) {
+                targetChannel.truncate(sourceSize);
+            }
+            targetChannel.force(true);
+        }
+        target.setLastModified(source.lastModified());
+        LOGGER.log(Level.INFO, "updated {0} in {1} ms, wrote {2} of {3} byte",
+                new Object[]{target, System.currentTimeMillis() - start,
+                    written, source.length()});
+        return written;
+    }
+
+    // fills the buffer from the given position (or up to the end of the file)
+    // and returns the number of bytes read
+    private static int read(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static ByteBuffer getBlock(ByteBuffer buffer, int start, int end) {
+        ByteBuffer block = buffer.duplicate();
+        block.limit(end);
+        block.position(start);
+        return block;
+    }
+}
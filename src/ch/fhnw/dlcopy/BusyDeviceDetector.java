@@ -0,0 +1,133 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.LernstickFileTools;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds out who keeps a partition busy: device mapper or md holders, mounts
+ * and processes with an open file descriptor of the partition.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class BusyDeviceDetector {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(BusyDeviceDetector.class.getName());
+    private static final long POLL_INTERVAL = 200;
+
+    private BusyDeviceDetector() {
+    }
+
+    /**
+     * returns the users of a partition
+     *
+     * @param device the device of the storage device (e.g. "sdb")
+     * @param partition the device of the partition (e.g. "sdb2")
+     * @return the users of the partition (e.g. "process 1234 (udisksd)"), an
+     * empty list if the partition is not in use
+     */
+    public static List<String> getUsers(String device, String partition) {
+        List<String> users = new ArrayList<>();
+        String devicePath = "/dev/" + partition;
+
+        // device mapper, md, ...
+        File holdersDirectory = new File(
+                "/sys/block/" + device + '/' + partition + "/holders");
+        String[] holders = holdersDirectory.list();
+        if (holders != null) {
+            for (String holder : holders) {
+                users.add("holder " + holder);
+            }
+        }
+
+        try {
+            for (String mount : LernstickFileTools.readFile(
+                    new File("/proc/mounts"))) {
+                String[] tokens = mount.split(" ");
+                if ((tokens.length > 1) && tokens[0].equals(devicePath)) {
+                    users.add("mounted on " + tokens[1]);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+
+        Path partitionPath = Paths.get(devicePath);
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(
+                Paths.get("/proc"), "[0-9]*")) {
+            for (Path process : processes) {
+                if (hasOpened(process, partitionPath)) {
+                    users.add("process " + process.getFileName()
+                            + " (" + getCommand(process) + ')');
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+
+        return users;
+    }
+
+    /**
+     * waits until a partition is no longer in use
+     *
+     * @param device the device of the storage device (e.g. "sdb")
+     * @param partition the device of the partition (e.g. "sdb2")
+     * @param timeout the maximum time to wait (in milliseconds)
+     * @return the users of the partition when the timeout expired or an empty
+     * list, if the partition was released in time
+     * @throws InterruptedException if waiting was interrupted
+     */
+    public static List<String> waitForRelease(String device, String partition,
+            long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<String> users = getUsers(device, partition);
+        while (!users.isEmpty() && (System.currentTimeMillis() < deadline)) {
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+            users = getUsers(device, partition);
+        }
+        LOGGER.log(Level.INFO, "users of {0}: {1}",
+                new Object[]{partition, users});
+        return users;
+    }
+
+    private static boolean hasOpened(Path process, Path partitionPath) {
+        // (processes may vanish or be inaccessible while we look at them)
+        try (DirectoryStream<Path> fileDescriptors
+                = Files.newDirectoryStream(process.resolve("fd"))) {
+            for (Path fileDescriptor : fileDescriptors) {
+                try {
+                    if (Files.readSymbolicLink(fileDescriptor).equals(
+                            partitionPath)) {
+                        return true;
+                    }
+                } catch (IOException ex) {
+                    // the file descriptor was just closed
+                }
+            }
+        } catch (IOException ex) {
+            // the process is gone or we may not look at it
+        }
+        return false;
+    }
+
+    private static String getCommand(Path process) {
+        try {
+            String command = DLCopy.readOneLineFile(
+                    process.resolve("comm").toFile());
+            return command == null ? "?" : command;
+        } catch (IOException ex) {
+            return "?";
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.STRINGS;
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.util.MountInfo;
+import ch.fhnw.util.Partition;
+import ch.fhnw.util.ProcessExecutor;
+import ch.fhnw.util.StorageDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.SwingWorker;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * Clones a master storage device to a list of StorageDevices on block level.
+ * Only the allocated blocks of the file systems on the master are copied.
+ * Afterwards the file system UUIDs and the SSH host keys of every clone are
+ * regenerated.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class Cloner extends SwingWorker<Void, Void> {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(Cloner.class.getName());
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    // the boot code in the MBR (the rest is the disk signature and the
+    // partition table)
+    private static final int BOOT_CODE_SIZE = 440;
+    private static final Pattern PARTITION_PATTERN = Pattern.compile(
+            "\\S*?(\\d+) : (start=\\s*(\\d+), size=\\s*(\\d+).*)");
+    private static final Pattern SECTOR_SIZE_PATTERN
+            = Pattern.compile("sector-size:\\s*(\\d+)");
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final StorageDevice master;
+    private final List<StorageDevice> deviceList;
+    private final DLCopyGUI dlCopyGUI;
+    private final int parallelInstallations;
+    private final int autoNumberStart;
+    private LogindInhibit inhibit;
+    private List<String> partitionTableHeader;
+    private List<String[]> partitionTableEntries;
+    private ByteBuffer bootCode;
+    private long partitionTableSize;
+    private List<UsedPartition> usedPartitions;
+    private long usedBytes;
+
+    /**
+     * creates a new Cloner
+     *
+     * @param master the master storage device
+     * @param deviceList the list of StorageDevices to clone the master to
+     * @param dlCopyGUI the DLCopy GUI
+     * @param parallelInstallations the maximum number of StorageDevices to
+     * clone concurrently
+     * @param autoNumberStart the current auto numbering start value (cloning
+     * does not change it)
+     */
+    public Cloner(StorageDevice master, List<StorageDevice> deviceList,
+            DLCopyGUI dlCopyGUI, int parallelInstallations,
+            int autoNumberStart) {
+        this.master = master;
+        this.deviceList = deviceList;
+        this.dlCopyGUI = dlCopyGUI;
+        this.parallelInstallations = Math.max(1, parallelInstallations);
+        this.autoNumberStart = autoNumberStart;
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        inhibit = new LogindInhibit("Cloning");
+
+        dlCopyGUI.showInstallProgress();
+        dlCopyGUI.showInstallCloning();
+
+        String masterDevice = "/dev/" + master.getDevice();
+        try {
+            // the master must not change while we are reading from it
+            DLCopy.umountPartitions(masterDevice, dlCopyGUI);
+            readPartitionTable(masterDevice);
+            bootCode = readBootCode(masterDevice);
+            usedPartitions = new ArrayList<>();
+            usedBytes = 0;
+            for (Partition partition : master.getPartitions()) {
+                if (partition.isExtended()) {
+                    continue;
+                }
+                UsedBlockMap usedBlockMap = UsedBlockMap.read(
+                        "/dev/" + partition.getDeviceAndNumber(),
+                        partition.getIdType(), partition.getSize());
+                usedPartitions.add(
+                        new UsedPartition(partition, usedBlockMap));
+                usedBytes += usedBlockMap.getUsedBytes();
+            }
+        } catch (IOException exception) {
+            LOGGER.log(Level.SEVERE, "", exception);
+            dlCopyGUI.showErrorMessage(exception.getMessage());
+            return null;
+        }
+
+        int threadCount = Math.min(parallelInstallations, deviceList.size());
+        ExecutorService executorService
+                = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (StorageDevice storageDevice : deviceList) {
+                futures.add(executorService.submit(
+                        new CloneTask(storageDevice)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.SEVERE, "", ex);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void done() {
+        if (inhibit != null) {
+            inhibit.delete();
+        }
+        dlCopyGUI.installingListFinished();
+    }
+
+    private void readPartitionTable(String masterDevice) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
+                true, true, "sfdisk", "-d", masterDevice);
+        if (exitValue != 0) {
+            String errorMessage
+                    = STRINGS.getString("Error_Clone_Partition_Table");
+            errorMessage = MessageFormat.format(errorMessage, masterDevice);
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+
+        // The disk identifier, the partition UUIDs and the last usable LBA
+        // (GPT) must not be copied, sfdisk creates new ones for every clone.
+        partitionTableHeader = new ArrayList<>();
+        partitionTableEntries = new ArrayList<>();
+        long sectorSize = 512;
+        long lastSector = 0;
+        for (String line : processExecutor.getStdOutList()) {
+            if (line.startsWith("label-id:") || line.startsWith("device:")
+                    || line.startsWith("last-lba:")) {
+                continue;
+            }
+            Matcher matcher = SECTOR_SIZE_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                sectorSize = Long.parseLong(matcher.group(1));
+            }
+            matcher = PARTITION_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                lastSector = Math.max(lastSector,
+                        Long.parseLong(matcher.group(3))
+                        + Long.parseLong(matcher.group(4)));
+                // only keep the partition number of the device name
+                partitionTableEntries.add(new String[]{matcher.group(1),
+                    matcher.group(2).replaceAll(", uuid=[^,]*", "")});
+            } else {
+                partitionTableHeader.add(line);
+            }
+        }
+        partitionTableSize = lastSector * sectorSize;
+    }
+
+    private static ByteBuffer readBootCode(String device)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BOOT_CODE_SIZE);
+        try (FileChannel channel = FileChannel.open(
+                Paths.get(device), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) == -1) {
+                    throw new IOException("could not read MBR of " + device);
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String getPartitionDevice(
+            StorageDevice storageDevice, int number) {
+        boolean sdDevice = (storageDevice.getType()
+                == StorageDevice.Type.SDMemoryCard);
+        return "/dev/" + storageDevice.getDevice()
+                + (sdDevice ? "p" : "") + number;
+    }
+
+    private static void regenerateFatVolumeId(String device)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(device),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer bootSector = ByteBuffer.allocate(512);
+            bootSector.order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(bootSector, 0);
+            boolean fat32 = (bootSector.getShort(22) == 0);
+            int volumeIdOffset = fat32 ? 67 : 39;
+            ByteBuffer volumeId = ByteBuffer.allocate(4);
+            volumeId.putInt(RANDOM.nextInt());
+            volumeId.flip();
+            channel.write(volumeId, volumeIdOffset);
+            if (fat32) {
+                // FAT32 has a backup of the boot sector
+                int bytesPerSector = bootSector.getShort(11) & 0xFFFF;
+                int backupSector = bootSector.getShort(50) & 0xFFFF;
+                if ((backupSector != 0) && (backupSector != 0xFFFF)) {
+                    volumeId.rewind();
+                    channel.write(volumeId,
+                            backupSector * bytesPerSector + volumeIdOffset);
+                }
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void regenerateExtUuid(String device) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
+                true, true, "tune2fs", "-U", "random", device);
+        if (exitValue != 0) {
+            // tune2fs sometimes insists on a freshly checked file system
+            processExecutor.executeProcess(
+                    true, true, "e2fsck", "-f", "-p", device);
+            exitValue = processExecutor.executeProcess(
+                    true, true, "tune2fs", "-U", "random", device);
+        }
+        if (exitValue != 0) {
+            String errorMessage = "could not change UUID of " + device;
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+    }
+
+    private static class UsedPartition {
+
+        private final Partition partition;
+        private final UsedBlockMap usedBlockMap;
+
+        public UsedPartition(Partition partition, UsedBlockMap usedBlockMap) {
+            this.partition = partition;
+            this.usedBlockMap = usedBlockMap;
+        }
+    }
+
+    private class CloneTask implements Runnable {
+
+        private final StorageDevice storageDevice;
+        private long copiedBytes;
+        private int lastPercent = -1;
+
+        public CloneTask(StorageDevice storageDevice) {
+            this.storageDevice = storageDevice;
+        }
+
+        @Override
+        public void run() {
+            dlCopyGUI.installingDeviceStarted(storageDevice);
+
+            String errorMessage = null;
+            try {
+                cloneDevice();
+            } catch (InterruptedException | IOException |
+                    DBusException | RuntimeException exception) {
+                LOGGER.log(Level.WARNING, "", exception);
+                errorMessage = exception.getMessage();
+                if (errorMessage == null) {
+                    errorMessage = exception.toString();
+                }
+            }
+
+            dlCopyGUI.installingDeviceFinished(
+                    storageDevice, errorMessage, autoNumberStart);
+        }
+
+        private void cloneDevice()
+                throws InterruptedException, IOException, DBusException {
+            String device = "/dev/" + storageDevice.getDevice();
+            if (storageDevice.getSize() < partitionTableSize) {
+                String errorMessage
+                        = STRINGS.getString("Error_Clone_Target_Too_Small");
+                errorMessage = MessageFormat.format(errorMessage,
+                        device, "/dev/" + master.getDevice());
+                throw new IOException(errorMessage);
+            }
+
+            // partition table
+            DLCopy.umountPartitions(device, dlCopyGUI);
+            StringBuilder script = new StringBuilder();
+            script.append("sfdisk --no-reread ").append(device)
+                    .append(" << EOF\n");
+            for (String line : partitionTableHeader) {
+                script.append(line).append('\n');
+            }
+            for (String[] entry : partitionTableEntries) {
+                script.append(getPartitionDevice(storageDevice,
+                        Integer.parseInt(entry[0])));
+                script.append(" : ").append(entry[1]).append('\n');
+            }
+            script.append("EOF\n");
+            ProcessExecutor processExecutor = new ProcessExecutor();
+            int exitValue = processExecutor.executeScript(
+                    true, true, script.toString());
+            if (exitValue != 0) {
+                String errorMessage
+                        = STRINGS.getString("Error_Clone_Partition_Table");
+                errorMessage = MessageFormat.format(errorMessage, device);
+                LOGGER.severe(errorMessage);
+                throw new IOException(errorMessage);
+            }
+            // sfdisk leaves the boot code of a new label empty, without it
+            // the clone doesn't boot on legacy BIOS
+            writeBootCode(device);
+            processExecutor.executeProcess("partprobe", device);
+            if (!DeviceReadinessWaiter.waitForPartitions(
+                    device, partitionTableEntries.size())) {
+                String errorMessage = STRINGS.getString(
+                        "Error_Partitions_Not_Ready");
+                errorMessage = MessageFormat.format(errorMessage, device);
+                LOGGER.severe(errorMessage);
+                throw new IOException(errorMessage);
+            }
+
+            // allocated blocks
+            for (UsedPartition usedPartition : usedPartitions) {
+                Partition partition = usedPartition.partition;
+                String targetDevice = getPartitionDevice(
+                        storageDevice, partition.getNumber());
+                copyBlocks("/dev/" + partition.getDeviceAndNumber(),
+                        targetDevice, usedPartition.usedBlockMap);
+            }
+
+            // new identities for every clone
+            for (UsedPartition usedPartition : usedPartitions) {
+                Partition partition = usedPartition.partition;
+                String targetDevice = getPartitionDevice(
+                        storageDevice, partition.getNumber());
+                String idType = partition.getIdType();
+                if ("vfat".equals(idType)) {
+                    regenerateFatVolumeId(targetDevice);
+                } else if (idType != null && idType.startsWith("ext")) {
+                    regenerateExtUuid(targetDevice);
+                }
+                if (partition.isPersistencePartition()) {
+                    removeSshConfig(targetDevice);
+                }
+            }
+        }
+
+        private void writeBootCode(String device) throws IOException {
+            // (a duplicate, because all clone tasks share the buffer)
+            ByteBuffer buffer = bootCode.duplicate();
+            try (FileChannel channel = FileChannel.open(
+                    Paths.get(device), StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position());
+                }
+                channel.force(true);
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, "", ex);
+                String errorMessage = STRINGS.getString("Copying_MBR_Failed");
+                errorMessage = MessageFormat.format(errorMessage, device);
+                throw new IOException(errorMessage, ex);
+            }
+        }
+
+        private void copyBlocks(String sourceDevice, String targetDevice,
+                UsedBlockMap usedBlockMap)
+                throws InterruptedException, IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (FileChannel source = FileChannel.open(
+                    Paths.get(sourceDevice), StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(
+                            Paths.get(targetDevice),
+                            StandardOpenOption.WRITE)) {
+                for (long[] extent : usedBlockMap.getExtents()) {
+                    long position = extent[0];
+                    long end = extent[0] + extent[1];
+                    while (position < end) {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        buffer.clear();
+                        buffer.limit((int) Math.min(
+                                BUFFER_SIZE, end - position));
+                        int read = source.read(buffer, position);
+                        if (read == -1) {
+                            throw new IOException("unexpected end of "
+                                    + sourceDevice + " at " + position);
+                        }
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            target.write(buffer,
+                                    position + buffer.position());
+                        }
+                        position += read;
+                        copiedBytes += read;
+                        showProgress();
+                    }
+                }
+                target.force(true);
+            }
+        }
+
+        private void showProgress() {
+            int percent = (int) (usedBytes == 0
+                    ? 100 : copiedBytes * 100 / usedBytes);
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                String pattern = STRINGS.getString("Cloning_Progress");
+                dlCopyGUI.setInstallingDeviceProgress(storageDevice,
+                        MessageFormat.format(pattern, percent));
+            }
+        }
+
+        private void removeSshConfig(String targetDevice)
+                throws IOException, DBusException {
+            DeviceReadinessWaiter.waitForFileSystem(targetDevice);
+            Partition partition = Partition.getPartitionFromDeviceAndNumber(
+                    targetDevice.substring(5));
+            MountInfo mountInfo = partition.mount();
+            String mountPath = mountInfo.getMountPath();
+            if (mountPath == null) {
+                throw new IOException("could not mount " + targetDevice);
+            }
+            DLCopy.removeSshConfig(mountPath);
+            if (!mountInfo.alreadyMounted()) {
+                partition.umount();
+            }
+        }
+    }
+}
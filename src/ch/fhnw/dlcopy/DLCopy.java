@@ -1,6 +1,8 @@
 package ch.fhnw.dlcopy;
 
+import ch.fhnw.dlcopy.MkfsProfile.MediumClass;
 import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.dlcopy.gui.console.DLCopyConsoleGUI;
 import ch.fhnw.dlcopy.gui.swing.DLCopySwingGUI;
 import ch.fhnw.filecopier.CopyJob;
 import ch.fhnw.filecopier.FileCopier;
@@ -16,21 +18,27 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ResourceBundle;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import javax.swing.Timer;
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.parsers.ParserConfigurationException;
 import org.freedesktop.DBus;
@@ -67,10 +75,12 @@ public class DLCopy {
 
     private static final Logger LOGGER
             = Logger.getLogger(DLCopy.class.getName());
-    private static final ProcessExecutor PROCESS_EXECUTOR
-            = new ProcessExecutor();
     private static final long MINIMUM_PARTITION_SIZE = 200 * MEGA;
     private static final long MINIMUM_FREE_MEMORY = 300 * MEGA;
+    private static final int MD5_BUFFER_SIZE = 4 * MEGA;
+    // the number of directories of the data partition copied concurrently
+    // (more parallel requests keep the queues of flash drives busy)
+    private static final int PERSISTENCE_COPY_THREADS = 4;
     private static DBusConnection dbusSystemConnection;
 
     static {
@@ -87,6 +97,10 @@ public class DLCopy {
      * @param args the command line arguments
      */
     public static void main(final String args[]) {
+        if (DLCopyConsoleGUI.isHeadless(args)) {
+            DLCopyConsoleGUI.main(args);
+            return;
+        }
         java.awt.EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -162,6 +176,7 @@ public class DLCopy {
      */
     public static void makeBootable(SystemSource source, String device,
             Partition systemPartition) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
 
         // install syslinux
         try {
@@ -175,7 +190,7 @@ public class DLCopy {
         }
 
         // install MBR
-        int exitValue = PROCESS_EXECUTOR.executeScript(
+        int exitValue = processExecutor.executeScript(
                 "cat " + source.getMbrPath() + " > " + device + '\n'
                 + "sync");
         if (exitValue != 0) {
@@ -187,7 +202,9 @@ public class DLCopy {
     }
 
     /**
-     * Installs the installation source to a target storage device
+     * Installs the installation source to a target storage device. This method
+     * may be called concurrently for different storage devices. Afterwards
+     * the caller has to unmount the temporary partitions of the system source.
      *
      * @param source the system source
      * @param fileCopier the Filecopier used for copying the system partition
@@ -272,78 +289,22 @@ public class DLCopy {
         }
 
         // create all necessary partitions
-        try {
-            createPartitions(storageDevice, partitionSizes, storageDeviceSize,
-                    partitionState, destinationExchangeDevice, exchangeMB,
-                    exchangePartitionLabel, destinationDataDevice,
-                    destinationEfiDevice, destinationSystemDevice,
-                    installerOrUpgrader, dlCopyGUI);
-        } catch (IOException iOException) {
-            // On some Corsair Flash Voyager GT drives the first sfdisk try
-            // failes with the following output:
-            // ---------------
-            // Checking that no-one is using this disk right now ...
-            // OK
-            // Warning: The partition table looks like it was made
-            //       for C/H/S=*/78/14 (instead of 15272/64/32).
-            //
-            // For this listing I'll assume that geometry.
-            //
-            // Disk /dev/sdc: 15272 cylinders, 64 heads, 32 sectors/track
-            // Old situation:
-            // Units = mebibytes of 1048576 bytes, blocks of 1024 bytes, counting from 0
-            //
-            //    Device Boot Start   End    MiB    #blocks   Id  System
-            // /dev/sdc1         3+ 15271  15269-  15634496    c  W95 FAT32 (LBA)
-            //                 start: (c,h,s) expected (7,30,1) found (1,0,1)
-            //                 end: (c,h,s) expected (1023,77,14) found (805,77,14)
-            // /dev/sdc2         0      -      0          0    0  Empty
-            // /dev/sdc3         0      -      0          0    0  Empty
-            // /dev/sdc4         0      -      0          0    0  Empty
-            // New situation:
-            // Units = mebibytes of 1048576 bytes, blocks of 1024 bytes, counting from 0
-            //
-            //    Device Boot Start   End    MiB    #blocks   Id  System
-            // /dev/sdc1         0+  1023   1024-   1048575+   c  W95 FAT32 (LBA)
-            // /dev/sdc2      1024  11008   9985   10224640   83  Linux
-            // /dev/sdc3   * 11009  15271   4263    4365312    c  W95 FAT32 (LBA)
-            // /dev/sdc4         0      -      0          0    0  Empty
-            // BLKRRPART: Das Gerät oder die Ressource ist belegt
-            // The command to re-read the partition table failed.
-            // Run partprobe(8), kpartx(8) or reboot your system now,
-            // before using mkfs
-            // If you created or changed a DOS partition, /dev/foo7, say, then use dd(1)
-            // to zero the first 512 bytes:  dd if=/dev/zero of=/dev/foo7 bs=512 count=1
-            // (See fdisk(8).)
-            // Successfully wrote the new partition table
-            //
-            // Re-reading the partition table ...
-            // ---------------
-            // Strangely, even though sfdisk exits with zero (success) the
-            // partitions are *NOT* correctly created the first time. Even
-            // more strangely, it always works the second time. Therefore
-            // we automatically retry once more in case of an error.
-            createPartitions(storageDevice, partitionSizes, storageDeviceSize,
-                    partitionState, destinationExchangeDevice, exchangeMB,
-                    exchangePartitionLabel, destinationDataDevice,
-                    destinationEfiDevice, destinationSystemDevice,
-                    installerOrUpgrader, dlCopyGUI);
-        }
-
-        // Here have to trigger a rescan of the device partitions. Otherwise
-        // udisks sometimes just doesn't know about the new partitions and we
-        // will later get exceptions similar to this one:
+        createPartitions(storageDevice, partitionSizes, storageDeviceSize,
+                partitionState, destinationExchangeDevice, exchangeMB,
+                exchangePartitionLabel, destinationDataDevice,
+                destinationEfiDevice, destinationSystemDevice,
+                installerOrUpgrader, dlCopyGUI);
+
+        // The kernel already knows the new partitions (this was verified when
+        // writing the partition table) but we have to give udisks some time
+        // to get its act together and finally know about them, too.
+        // Otherwise we will later get exceptions similar to this one:
         // org.freedesktop.dbus.exceptions.DBusExecutionException:
         // No such interface 'org.freedesktop.UDisks2.Filesystem'
-        PROCESS_EXECUTOR.executeProcess("partprobe", device);
-        // Sigh... even after partprobe exits, we have to give udisks even more
-        // time to get its act together and finally know about the new
-        // partitions.
-        try {
-            // 5 seconds were not enough!
-            TimeUnit.SECONDS.sleep(7);
-        } catch (InterruptedException ex) {
-            LOGGER.log(Level.SEVERE, "", ex);
+        if (!DeviceReadinessWaiter.waitForPartitionDevices(
+                destinationEfiDevice, destinationExchangeDevice,
+                destinationDataDevice, destinationSystemDevice)) {
+            throwPartitionsNotReady(device);
         }
 
         // the partitions now really exist
@@ -372,11 +333,11 @@ public class DLCopy {
                 destinationSystemPartition, installerOrUpgrader, dlCopyGUI);
 
         // copy persistence layer
-        copyPersistence(source, installerOrUpgrader,
+        copyPersistence(source, storageDevice, installerOrUpgrader,
                 destinationDataPartition, dlCopyGUI);
 
         // make storage device bootable
-        installerOrUpgrader.showWritingBootSector();
+        installerOrUpgrader.showWritingBootSector(storageDevice);
         makeBootable(source, device, destinationSystemPartition);
 
         if (!umount(destinationBootPartition, dlCopyGUI)) {
@@ -389,7 +350,10 @@ public class DLCopy {
                     = "could not umount destination system partition";
             throw new IOException(errorMessage);
         }
-        source.unmountTmpPartitions();
+
+        // The temporary mounts of the source are NOT unmounted here because
+        // other storage devices may still be copying from them concurrently.
+        // This is the responsibility of the caller.
     }
 
     /**
@@ -435,6 +399,7 @@ public class DLCopy {
      */
     public static void umount(String deviceOrMountpoint, DLCopyGUI dlCopyGUI)
             throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
         // check if a swapfile is in use on this partition
         List<String> mounts = LernstickFileTools.readFile(
                 new File("/proc/mounts"));
@@ -455,7 +420,7 @@ public class DLCopy {
             }
         }
 
-        int exitValue = PROCESS_EXECUTOR.executeProcess(
+        int exitValue = processExecutor.executeProcess(
                 "umount", deviceOrMountpoint);
         if (exitValue != 0) {
             String errorMessage = STRINGS.getString("Error_Umount");
@@ -519,13 +484,15 @@ public class DLCopy {
      *
      * @param device the given device (e.g. "/dev/sdb1")
      * @param fileSystem the file system to use
+     * @param mkfsProfile the mkfs profile of the device
      * @param dlCopyGUI the program GUI to show error messages
      * @throws DBusException if a DBusException occurs
      * @throws IOException if an IOException occurs
      */
-    public static void formatPersistencePartition(
-            String device, String fileSystem, DLCopyGUI dlCopyGUI)
+    public static void formatPersistencePartition(String device,
+            String fileSystem, MkfsProfile mkfsProfile, DLCopyGUI dlCopyGUI)
             throws DBusException, IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
 
         // make sure that the partition is unmounted
         if (isMounted(device)) {
@@ -542,10 +509,17 @@ public class DLCopy {
         // ------------
         // To make a long story short, this is the reason we have to use the
         // force flag "-F" here.
-        int exitValue = PROCESS_EXECUTOR.executeProcess("/sbin/mkfs."
-                + fileSystem, "-F", "-L", Partition.PERSISTENCE_LABEL, device);
+        List<String> mkfsCommand = new ArrayList<>();
+        mkfsCommand.add("/sbin/mkfs." + fileSystem);
+        mkfsCommand.add("-F");
+        mkfsCommand.addAll(mkfsProfile.getDataOptions());
+        mkfsCommand.add("-L");
+        mkfsCommand.add(Partition.PERSISTENCE_LABEL);
+        mkfsCommand.add(device);
+        int exitValue = processExecutor.executeProcess(
+                mkfsCommand.toArray(new String[mkfsCommand.size()]));
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(processExecutor.getOutput());
             String errorMessage = STRINGS.getString(
                     "Error_Create_Data_Partition");
             LOGGER.severe(errorMessage);
@@ -553,27 +527,22 @@ public class DLCopy {
         }
 
         // tuning
-        exitValue = PROCESS_EXECUTOR.executeProcess(
+        exitValue = processExecutor.executeProcess(
                 "/sbin/tune2fs", "-m", "0", "-c", "0", "-i", "0", device);
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(processExecutor.getOutput());
             String errorMessage = STRINGS.getString(
                     "Error_Tune_Data_Partition");
             LOGGER.severe(errorMessage);
             throw new IOException(errorMessage);
         }
 
-        // We have to wait a little for dbus to get to know the new filesystem.
+        // We have to wait for dbus to get to know the new filesystem.
         // Otherwise we will sometimes get the following exception in the calls
         // below:
         // org.freedesktop.dbus.exceptions.DBusExecutionException:
         // No such interface 'org.freedesktop.UDisks2.Filesystem'
-        // 5 seconds were too short!
-        try {
-            TimeUnit.SECONDS.sleep(10);
-        } catch (InterruptedException ex) {
-            LOGGER.log(Level.SEVERE, "", ex);
-        }
+        DeviceReadinessWaiter.waitForFileSystem(device);
 
         // create default persistence configuration file
         Partition persistencePartition
@@ -652,6 +621,7 @@ public class DLCopy {
      */
     public static void hideBootFiles(
             CopyJob bootFilesCopyJob, String destinationExchangePath) {
+        ProcessExecutor processExecutor = new ProcessExecutor();
 
         Source bootFilesSource = bootFilesCopyJob.getSources()[0];
         String[] bootFiles = bootFilesSource.getBaseDirectory().list();
@@ -664,7 +634,7 @@ public class DLCopy {
         for (String bootFile : bootFiles) {
             Path destinationPath = Paths.get(destinationExchangePath, bootFile);
             if (Files.exists(destinationPath)) {
-                PROCESS_EXECUTOR.executeProcess(
+                processExecutor.executeProcess(
                         "fatattr", "+h", destinationPath.toString());
             }
         }
@@ -685,7 +655,7 @@ public class DLCopy {
         }
 
         // use FAT attributes again to hide OS X ".hidden" file in Windows
-        PROCESS_EXECUTOR.executeProcess("fatattr", "+h", osxHiddenFilePath);
+        processExecutor.executeProcess("fatattr", "+h", osxHiddenFilePath);
     }
 
     /**
@@ -698,6 +668,7 @@ public class DLCopy {
      */
     public static void isolinuxToSyslinux(String mountPoint,
             DLCopyGUI dlCopyGUI) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
         final String isolinuxPath = mountPoint + "/isolinux";
         if (new File(isolinuxPath).exists()) {
             LOGGER.info("replacing isolinux with syslinux");
@@ -737,7 +708,7 @@ public class DLCopy {
                     }
                 }
                 LernstickFileTools.writeFile(md5sumFile, lines);
-                PROCESS_EXECUTOR.executeProcess("sync");
+                processExecutor.executeProcess("sync");
             } else {
                 LOGGER.log(Level.WARNING,
                         "file \"{0}\" does not exist!", md5sumFileName);
@@ -754,25 +725,42 @@ public class DLCopy {
      *
      * @param efiDevice the efi device
      * @param systemDevice the system device
+     * @param mkfsProfile the mkfs profile of the device
      * @throws IOException
      */
-    public static void formatEfiAndSystemPartition(
-            String efiDevice, String systemDevice) throws IOException {
+    public static void formatEfiAndSystemPartition(String efiDevice,
+            String systemDevice, MkfsProfile mkfsProfile) throws IOException {
+        formatEfiPartition(efiDevice);
+        formatSystemPartition(systemDevice, mkfsProfile);
+    }
 
-        int exitValue = PROCESS_EXECUTOR.executeProcess(
+    private static void formatEfiPartition(String efiDevice)
+            throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
                 "/sbin/mkfs.vfat", "-n", Partition.EFI_LABEL, efiDevice);
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(processExecutor.getOutput());
             String errorMessage
                     = STRINGS.getString("Error_Create_EFI_Partition");
             LOGGER.severe(errorMessage);
             throw new IOException(errorMessage);
         }
+    }
 
-        exitValue = PROCESS_EXECUTOR.executeProcess(
-                "/sbin/mkfs.ext3", "-L", systemPartitionLabel, systemDevice);
+    private static void formatSystemPartition(String systemDevice,
+            MkfsProfile mkfsProfile) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        List<String> mkfsCommand = new ArrayList<>();
+        mkfsCommand.add("/sbin/mkfs.ext3");
+        mkfsCommand.addAll(mkfsProfile.getSystemOptions());
+        mkfsCommand.add("-L");
+        mkfsCommand.add(systemPartitionLabel);
+        mkfsCommand.add(systemDevice);
+        int exitValue = processExecutor.executeProcess(
+                mkfsCommand.toArray(new String[mkfsCommand.size()]));
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(processExecutor.getOutput());
             String errorMessage
                     = STRINGS.getString("Error_Create_System_Partition");
             LOGGER.severe(errorMessage);
@@ -853,24 +841,21 @@ public class DLCopy {
     }
 
     /**
-     * returns the StorageDevice for a given dbus path after a timeout
+     * returns the StorageDevice for a given dbus path after the device and its
+     * partitions are known to udisks (or a timeout occured)
      *
      * @param path the dbus path
      * @param includeHardDisks if true, paths to hard disks are processed,
      * otherwise ignored
-     * @return the StorageDevice for a given dbus path after a timeout
+     * @return the StorageDevice for a given dbus path
      * @throws DBusException
      */
     public static StorageDevice getStorageDeviceAfterTimeout(
             String path, boolean includeHardDisks) throws DBusException {
         // It has happened that "udisks --enumerate" returns a valid storage
-        // device but not yet its partitions. Therefore we give the system
-        // a little break after storage devices have been added.
-        try {
-            TimeUnit.SECONDS.sleep(3);
-        } catch (InterruptedException ex) {
-            LOGGER.log(Level.SEVERE, "", ex);
-        }
+        // device but not yet its partitions. Therefore we wait until udisks
+        // knows about all partitions after storage devices have been added.
+        DeviceReadinessWaiter.waitForStorageDevice(path);
         StorageDevice storageDevice = getStorageDevice(path, includeHardDisks);
         LOGGER.log(Level.INFO, "storage device of path {0}: {1}",
                 new Object[]{path, storageDevice});
@@ -908,11 +893,13 @@ public class DLCopy {
     public static String getMd5String(String filePath)
             throws NoSuchAlgorithmException, IOException {
         MessageDigest md5 = MessageDigest.getInstance("MD5");
-        try (DigestInputStream digestInputStream = new DigestInputStream(
-                Files.newInputStream(Paths.get(filePath)), md5)) {
-            byte[] byteArray = new byte[1024];
-            for (int i = digestInputStream.read(byteArray); i > 0;) {
-                i = digestInputStream.read(byteArray);
+        // large buffers are much faster on slow USB flash drives
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MD5_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath))) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
             }
             byte[] digest = md5.digest();
             return DatatypeConverter.printHexBinary(digest).toLowerCase();
@@ -1015,7 +1002,7 @@ public class DLCopy {
             throws InterruptedException, IOException, DBusException {
 
         // update GUI
-        installerOrUpgrader.showCreatingFileSystems();
+        installerOrUpgrader.showCreatingFileSystems(storageDevice);
 
         String device = "/dev/" + storageDevice.getDevice();
 
@@ -1033,97 +1020,73 @@ public class DLCopy {
                     });
         }
 
-        // assemble partition command
-        List<String> partedCommandList = new ArrayList<>();
-        partedCommandList.add("/sbin/parted");
-        partedCommandList.add("-s");
-        partedCommandList.add("-a");
-        partedCommandList.add("optimal");
-        partedCommandList.add(device);
-
-//            // list of "rm" commands must be inversely sorted, otherwise
-//            // removal of already existing partitions will fail when storage
-//            // device has logical partitions in extended partitions (the logical
-//            // partitions are no longer found when the extended partition is
-//            // already removed)
-//            List<String> partitionNumbers = new ArrayList<String>();
-//            for (Partition partition : storageDevice.getPartitions()) {
-//                partitionNumbers.add(String.valueOf(partition.getNumber()));
-//            }
-//            Collections.sort(partitionNumbers);
-//            for (int i = partitionNumbers.size() - 1; i >=0; i--) {
-//                partedCommandList.add("rm");
-//                partedCommandList.add(partitionNumbers.get(i));
-//            }
+        // plan the partition table
+        String exchangeFileSystem
+                = installerOrUpgrader.getExhangePartitionFileSystem();
+        PartitionLayout layout = new PartitionLayout(device, storageDeviceSize);
         switch (partitionState) {
             case ONLY_SYSTEM:
-                // create two partitions: efi, system
-                String efiBorder = EFI_PARTITION_SIZE + "MiB";
-                mkpart(partedCommandList, "0%", efiBorder);
-                mkpart(partedCommandList, efiBorder, "100%");
-                setFlag(partedCommandList, "2", "boot", "on");
-                setFlag(partedCommandList, "1", "lba", "on");
+                // create two partitions:
+                //  1) efi (EFI)
+                //  2) system (Linux)
+                layout.addEfiPartition(efiDevice, 1, EFI_PARTITION_SIZE);
+                layout.addSystemPartition(systemDevice, EFI_PARTITION_SIZE);
                 break;
 
             case PERSISTENCE:
-                // create three partitions: efi, persistence, system
-                efiBorder = EFI_PARTITION_SIZE + "MiB";
-                String persistenceBorder
-                        = (EFI_PARTITION_SIZE + persistenceMB) + "MiB";
-                mkpart(partedCommandList, "0%", efiBorder);
-                mkpart(partedCommandList, efiBorder, persistenceBorder);
-                mkpart(partedCommandList, persistenceBorder, "100%");
-                setFlag(partedCommandList, "3", "boot", "on");
-                setFlag(partedCommandList, "1", "lba", "on");
+                // create three partitions:
+                //  1) efi (EFI)
+                //  2) persistence (Linux)
+                //  3) system (Linux)
+                long persistenceBorder = EFI_PARTITION_SIZE + persistenceMB;
+                layout.addEfiPartition(efiDevice, 1, EFI_PARTITION_SIZE);
+                layout.addDataPartition(persistenceDevice,
+                        EFI_PARTITION_SIZE, persistenceBorder);
+                layout.addSystemPartition(systemDevice, persistenceBorder);
                 break;
 
             case EXCHANGE:
                 if (exchangeMB == 0) {
-                    // create three partitions: efi, persistence, system
-                    efiBorder = EFI_PARTITION_SIZE + "MiB";
-                    persistenceBorder
-                            = (EFI_PARTITION_SIZE + persistenceMB) + "MiB";
-                    mkpart(partedCommandList, "0%", efiBorder);
-                    mkpart(partedCommandList, efiBorder, persistenceBorder);
-                    mkpart(partedCommandList, persistenceBorder, "100%");
-                    setFlag(partedCommandList, "3", "boot", "on");
-                    setFlag(partedCommandList, "1", "lba", "on");
+                    // create three partitions:
+                    //  1) efi (EFI)
+                    //  2) persistence (Linux)
+                    //  3) system (Linux)
+                    persistenceBorder = EFI_PARTITION_SIZE + persistenceMB;
+                    layout.addEfiPartition(efiDevice, 1, EFI_PARTITION_SIZE);
+                    layout.addDataPartition(persistenceDevice,
+                            EFI_PARTITION_SIZE, persistenceBorder);
+                    layout.addSystemPartition(systemDevice, persistenceBorder);
 
                 } else {
-                    String secondBorder;
+                    long secondBorder = EFI_PARTITION_SIZE + exchangeMB;
                     if (storageDevice.isRemovable()) {
-                        // first two partitions: exchange, efi
-                        String exchangeBorder = exchangeMB + "MiB";
-                        efiBorder = (exchangeMB + EFI_PARTITION_SIZE) + "MiB";
-                        secondBorder = efiBorder;
-                        mkpart(partedCommandList, "0%", exchangeBorder);
-                        mkpart(partedCommandList, exchangeBorder, efiBorder);
-                        setFlag(partedCommandList, "2", "boot", "on");
+                        //  1) exchange (exFAT, FAT32 or NTFS)
+                        //  2) efi (EFI)
+                        layout.addExchangePartition(exchangeDevice,
+                                1, exchangeMB, exchangeFileSystem);
+                        layout.addEfiPartition(
+                                efiDevice, exchangeMB, secondBorder);
                     } else {
-                        // first two partitions: efi, exchange
-                        efiBorder = EFI_PARTITION_SIZE + "MiB";
-                        String exchangeBorder
-                                = (EFI_PARTITION_SIZE + exchangeMB) + "MiB";
-                        secondBorder = exchangeBorder;
-                        mkpart(partedCommandList, "0%", efiBorder);
-                        mkpart(partedCommandList, efiBorder, exchangeBorder);
-                        setFlag(partedCommandList, "1", "boot", "on");
+                        //  1) efi (EFI)
+                        //  2) exchange (exFAT, FAT32 or NTFS)
+                        layout.addEfiPartition(
+                                efiDevice, 1, EFI_PARTITION_SIZE);
+                        layout.addExchangePartition(exchangeDevice,
+                                EFI_PARTITION_SIZE, secondBorder,
+                                exchangeFileSystem);
                     }
                     if (persistenceMB == 0) {
-                        // third partitions: system
-                        mkpart(partedCommandList, secondBorder, "100%");
-                        setFlag(partedCommandList, "3", "boot", "on");
+                        //  3) system (Linux)
+                        layout.addSystemPartition(systemDevice, secondBorder);
                     } else {
-                        // last two partitions: persistence, system
-                        persistenceBorder = (EFI_PARTITION_SIZE
-                                + exchangeMB + persistenceMB) + "MiB";
-                        mkpart(partedCommandList,
+                        //  3) persistence (Linux)
+                        //  4) system (Linux)
+                        persistenceBorder = secondBorder + persistenceMB;
+                        layout.addDataPartition(persistenceDevice,
                                 secondBorder, persistenceBorder);
-                        mkpart(partedCommandList, persistenceBorder, "100%");
-                        setFlag(partedCommandList, "4", "boot", "on");
+                        layout.addSystemPartition(
+                                systemDevice, persistenceBorder);
                     }
-                    setFlag(partedCommandList, "1", "lba", "on");
-                    setFlag(partedCommandList, "2", "lba", "on");
                 }
                 break;
 
@@ -1133,10 +1096,20 @@ public class DLCopy {
                 LOGGER.severe(errorMessage);
                 throw new IOException(errorMessage);
         }
+        layout.setBootable(systemDevice);
+
+        // Flash memory can only be erased in large blocks. Partitions (and
+        // file system structures) that straddle erase block boundaries make
+        // the controller erase and rewrite two blocks instead of one.
+        long eraseBlockSize = EraseBlockDetector.getKnownSize(storageDevice);
+        layout.setAlignment(eraseBlockSize > 0
+                ? eraseBlockSize : EraseBlockDetector.DEFAULT_SIZE);
 
         // safety wait in case of device scanning
-        // 5 seconds were not enough...
-        TimeUnit.SECONDS.sleep(7);
+        if (!DeviceReadinessWaiter.waitForPartitions(
+                device, storageDevice.getPartitions().size())) {
+            throwPartitionsNotReady(device);
+        }
 
         // check if a swap partition is active on this device
         // if so, switch it off
@@ -1151,6 +1124,126 @@ public class DLCopy {
         // umount all mounted partitions of device
         umountPartitions(device, dlCopyGUI);
 
+        // Flash media write much faster when their controller has enough
+        // pre-erased blocks. Therefore we discard everything that will be
+        // overwritten anyway.
+        boolean discardSupported = isDiscardSupported(device);
+        boolean discarded = false;
+        if (layout.isPresent()) {
+            // The storage device was already installed with exactly this
+            // layout (e.g. when re-imaging the same sticks again and again).
+            // We don't have to repartition it and wait for the kernel, udev
+            // and udisks, formatting the partitions is enough.
+            LOGGER.log(Level.INFO, "keeping partition table of {0}", device);
+            if (discardSupported) {
+                discarded = true;
+                for (String partitionDevice : layout.getPartitionDevices()) {
+                    discarded &= discard(partitionDevice);
+                }
+            }
+        } else {
+            if ((eraseBlockSize < 0)
+                    && (MediumClass.of(storageDevice) != MediumClass.HDD)) {
+                // the device gets overwritten anyway, so we can probe it
+                eraseBlockSize = EraseBlockDetector.probe(storageDevice);
+                if (eraseBlockSize > 0) {
+                    layout.setAlignment(eraseBlockSize);
+                }
+            }
+            if (discardSupported) {
+                discarded = discard(device);
+            }
+            writePartitionTable(device, layout);
+        }
+
+        // create file systems
+        // The file systems of the partitions are independent of each other.
+        // Therefore all mkfs runs of the device run concurrently (every one
+        // with its own ProcessExecutor and error report) and we join them
+        // before anything gets mounted.
+        MkfsProfile mkfsProfile = MkfsProfile.getProfile(storageDevice);
+        if (eraseBlockSize > 0) {
+            mkfsProfile = mkfsProfile.withEraseBlockSize(eraseBlockSize);
+        }
+        if (discarded) {
+            // mkfs would discard all blocks once more
+            mkfsProfile = mkfsProfile.withoutDiscard();
+            if (installerOrUpgrader instanceof Installer) {
+                ((Installer) installerOrUpgrader).deviceDiscarded(
+                        storageDevice);
+            }
+        }
+        List<Callable<Void>> formatJobs = new ArrayList<>();
+        switch (partitionState) {
+            case ONLY_SYSTEM:
+                break;
+
+            case PERSISTENCE:
+                formatJobs.add(getPersistenceFormatJob(persistenceDevice,
+                        installerOrUpgrader.getDataPartitionFileSystem(),
+                        mkfsProfile, dlCopyGUI));
+                break;
+
+            case EXCHANGE:
+                if (exchangeMB != 0) {
+                    // create file system for exchange partition
+                    formatJobs.add(getExchangeFormatJob(exchangeDevice,
+                            exchangePartitionLabel, installerOrUpgrader.
+                            getExhangePartitionFileSystem()));
+                }
+                if (persistenceDevice != null) {
+                    formatJobs.add(getPersistenceFormatJob(persistenceDevice,
+                            installerOrUpgrader.getDataPartitionFileSystem(),
+                            mkfsProfile, dlCopyGUI));
+                }
+                break;
+
+            default:
+                String errorMessage = "unsupported partitionState \""
+                        + partitionState + '\"';
+                LOGGER.log(Level.SEVERE, errorMessage);
+                throw new IOException(errorMessage);
+        }
+        formatJobs.add(getEfiFormatJob(efiDevice));
+        formatJobs.add(getSystemFormatJob(systemDevice, mkfsProfile));
+        formatConcurrently(formatJobs);
+    }
+
+    private static boolean isDiscardSupported(String device) {
+        File file = new File("/sys/block/" + device.substring(5)
+                + "/queue/discard_max_bytes");
+        try {
+            String discardMaxBytes = readOneLineFile(file);
+            LOGGER.log(Level.INFO, "discard_max_bytes of {0}: {1}",
+                    new Object[]{device, discardMaxBytes});
+            return (discardMaxBytes != null)
+                    && (Long.parseLong(discardMaxBytes) > 0);
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return false;
+        }
+    }
+
+    private static boolean discard(String device) {
+        long start = System.currentTimeMillis();
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
+                true, true, "blkdiscard", device);
+        if (exitValue != 0) {
+            // not fatal, the installation is just slower
+            LOGGER.log(Level.WARNING, "discarding {0} failed:\n{1}",
+                    new Object[]{device, processExecutor.getOutput()});
+            return false;
+        }
+        LOGGER.log(Level.INFO, "discarded {0} in {1} ms", new Object[]{
+            device, System.currentTimeMillis() - start});
+        return true;
+    }
+
+    private static void writePartitionTable(String device,
+            PartitionLayout layout) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+
         // Create a new partition table before creating the partitions,
         // otherwise USB flash drives previously written with a dd'ed ISO
         // will NOT work!
@@ -1161,7 +1254,7 @@ public class DLCopy {
         if (DbusTools.DBUS_VERSION == DbusTools.DbusVersion.V1) {
             // "--print-reply" is needed in the call to dbus-send below to make
             // the call synchronous
-            exitValue = PROCESS_EXECUTOR.executeProcess("dbus-send",
+            exitValue = processExecutor.executeProcess("dbus-send",
                     "--system", "--print-reply",
                     "--dest=org.freedesktop.UDisks",
                     "/org/freedesktop/UDisks/devices/" + device.substring(5),
@@ -1204,7 +1297,7 @@ public class DLCopy {
             //
             // So, for Debian 8 we retry with good old parted and hope for the
             // best...
-            exitValue = PROCESS_EXECUTOR.executeProcess(true, true,
+            exitValue = processExecutor.executeProcess(true, true,
                     "parted", "-s", device, "mklabel", "msdos");
         }
         if (exitValue != 0) {
@@ -1216,146 +1309,117 @@ public class DLCopy {
         }
 
         // another safety wait...
-        TimeUnit.SECONDS.sleep(3);
+        DeviceReadinessWaiter.waitForUdev();
 
         // repartition device
-        String[] commandArray = partedCommandList.toArray(
-                new String[partedCommandList.size()]);
-        exitValue = PROCESS_EXECUTOR.executeProcess(commandArray);
-        if (exitValue != 0) {
+        // (all partitions are written at once and verified against the
+        // partitions the kernel knows)
+        try {
+            layout.write();
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "", ex);
             String errorMessage = STRINGS.getString("Error_Repartitioning");
             errorMessage = MessageFormat.format(errorMessage, device);
-            LOGGER.severe(errorMessage);
-            throw new IOException(errorMessage);
+            throw new IOException(errorMessage, ex);
         }
+    }
 
-        // safety wait so that new partitions are known to the system
-        TimeUnit.SECONDS.sleep(7);
-
-        // The partition types assigned by parted are mostly garbage.
-        // We must fix them here...
-        // The boot partition is actually formatted with FAT32, but "hidden"
-        // by using the EFI partition type.
-        switch (partitionState) {
-            case ONLY_SYSTEM:
-                // create two partitions:
-                //  1) efi (EFI)
-                //  2) system (Linux)
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--id", device, "1", "ef");
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--id", device, "2", "83");
-                break;
-
-            case PERSISTENCE:
-                // create three partitions:
-                //  1) efi (EFI)
-                //  2) persistence (Linux)
-                //  3) system (Linux)
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--id", device, "1", "ef");
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--id", device, "2", "83");
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--id", device, "3", "83");
-                break;
+    private static Callable<Void> getEfiFormatJob(final String efiDevice) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                formatEfiPartition(efiDevice);
+                return null;
+            }
+        };
+    }
 
-            case EXCHANGE:
-                if (exchangeMB == 0) {
-                    // create three partitions:
-                    //  1) efi (EFI)
-                    //  2) persistence (Linux)
-                    //  3) system (Linux)
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--id", device, "1", "ef");
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--id", device, "2", "83");
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--id", device, "3", "83");
-                } else {
-                    // determine ID for exchange partition
-                    String exchangePartitionID;
-                    String fileSystem = installerOrUpgrader.
-                            getExhangePartitionFileSystem();
-                    if (fileSystem.equalsIgnoreCase("fat32")) {
-                        exchangePartitionID = "c";
-                    } else {
-                        // exFAT & NTFS
-                        exchangePartitionID = "7";
-                    }
+    private static Callable<Void> getSystemFormatJob(
+            final String systemDevice, final MkfsProfile mkfsProfile) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                formatSystemPartition(systemDevice, mkfsProfile);
+                return null;
+            }
+        };
+    }
 
-                    if (storageDevice.isRemovable()) {
-                        //  1) exchange (exFAT, FAT32 or NTFS)
-                        //  2) efi (EFI)
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "1", exchangePartitionID);
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "2", "ef");
-                    } else {
-                        //  1) efi (EFI)
-                        //  2) exchange (exFAT, FAT32 or NTFS)
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "1", "ef");
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "2", exchangePartitionID);
-                    }
+    private static Callable<Void> getExchangeFormatJob(final String device,
+            final String label, final String fileSystem) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                formatExchangePartition(device, label, fileSystem);
+                return null;
+            }
+        };
+    }
 
-                    if (persistenceMB == 0) {
-                        //  3) system (Linux)
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "3", "83");
-                    } else {
-                        //  3) persistence (Linux)
-                        //  4) system (Linux)
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "3", "83");
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--id", device, "4", "83");
-                    }
-                }
-                break;
+    private static Callable<Void> getPersistenceFormatJob(final String device,
+            final String fileSystem, final MkfsProfile mkfsProfile,
+            final DLCopyGUI dlCopyGUI) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                formatPersistencePartition(
+                        device, fileSystem, mkfsProfile, dlCopyGUI);
+                return null;
+            }
+        };
+    }
 
-            default:
-                String errorMessage = "unsupported partitionState \""
-                        + partitionState + '\"';
-                LOGGER.log(Level.SEVERE, errorMessage);
-                throw new IOException(errorMessage);
+    private static void formatConcurrently(List<Callable<Void>> formatJobs)
+            throws InterruptedException, IOException, DBusException {
+        long start = System.currentTimeMillis();
+        ExecutorService executorService
+                = Executors.newFixedThreadPool(formatJobs.size());
+        List<Future<Void>> futures;
+        try {
+            futures = executorService.invokeAll(formatJobs);
+        } finally {
+            executorService.shutdownNow();
         }
 
-        // create file systems
-        switch (partitionState) {
-            case ONLY_SYSTEM:
-                formatEfiAndSystemPartition(efiDevice, systemDevice);
-                return;
-
-            case PERSISTENCE:
-                formatPersistencePartition(persistenceDevice,
-                        installerOrUpgrader.getDataPartitionFileSystem(),
-                        dlCopyGUI);
-                formatEfiAndSystemPartition(efiDevice, systemDevice);
-                return;
-
-            case EXCHANGE:
-                if (exchangeMB != 0) {
-                    // create file system for exchange partition
-                    formatExchangePartition(exchangeDevice,
-                            exchangePartitionLabel, installerOrUpgrader.
-                            getExhangePartitionFileSystem());
+        // every failed job is reported, the first error is thrown
+        Exception firstException = null;
+        int failures = 0;
+        StringBuilder errorMessages = new StringBuilder();
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                LOGGER.log(Level.SEVERE, "", cause);
+                failures++;
+                if (errorMessages.length() > 0) {
+                    errorMessages.append('\n');
                 }
-                if (persistenceDevice != null) {
-                    formatPersistencePartition(persistenceDevice,
-                            installerOrUpgrader.getDataPartitionFileSystem(),
-                            dlCopyGUI);
+                errorMessages.append(cause.getMessage());
+                if (firstException == null) {
+                    firstException = cause instanceof Exception
+                            ? (Exception) cause : new IOException(cause);
                 }
-                formatEfiAndSystemPartition(efiDevice, systemDevice);
-                return;
+            }
+        }
+        LOGGER.log(Level.INFO, "creating {0} file systems took {1} ms",
+                new Object[]{formatJobs.size(),
+                    System.currentTimeMillis() - start});
 
-            default:
-                String errorMessage = "unsupported partitionState \""
-                        + partitionState + '\"';
-                LOGGER.log(Level.SEVERE, errorMessage);
-                throw new IOException(errorMessage);
+        if (firstException == null) {
+            return;
+        }
+        if (failures > 1) {
+            // several file systems failed
+            throw new IOException(errorMessages.toString(), firstException);
         }
+        if (firstException instanceof IOException) {
+            throw (IOException) firstException;
+        }
+        if (firstException instanceof DBusException) {
+            throw (DBusException) firstException;
+        }
+        throw new IOException(firstException);
     }
 
     private static void copyExchangeEfiAndSystem(SystemSource source,
@@ -1386,12 +1450,33 @@ public class DLCopy {
                 destinationExchangePartition, destinationSystemPartition,
                 installerOrUpgrader.getExhangePartitionFileSystem());
 
+        // When several storage devices are installed concurrently the large
+        // system image files are read only once and copied to all devices by
+        // the FanOutCopier. Here we only copy the remaining boot files.
+        FanOutCopier fanOutCopier = null;
+        if (installerOrUpgrader instanceof Installer) {
+            fanOutCopier
+                    = ((Installer) installerOrUpgrader).getFanOutCopier();
+        }
+        CopyJob systemCopyJob = copyJobsInfo.getSystemCopyJob();
+        if (fanOutCopier != null) {
+            systemCopyJob = new CopyJob(
+                    new Source[]{source.getSystemCopySourceBoot()},
+                    new String[]{copyJobsInfo.getDestinationSystemPath()});
+        }
+
         // copy all files
-        installerOrUpgrader.showCopyingFiles(fileCopier);
+        installerOrUpgrader.showCopyingFiles(storageDevice, fileCopier);
 
         CopyJob efiFilesCopyJob = copyJobsInfo.getExchangeEfiCopyJob();
         fileCopier.copy(exchangeCopyJob, efiFilesCopyJob,
-                copyJobsInfo.getEfiCopyJob(), copyJobsInfo.getSystemCopyJob());
+                copyJobsInfo.getEfiCopyJob(), systemCopyJob);
+
+        if (fanOutCopier != null) {
+            fanOutCopier.copy(storageDevice, new Source(source.getSystemPath(),
+                    SystemSource.SYSTEM_IMAGE_COPY_PATTERN),
+                    copyJobsInfo.getDestinationSystemPath());
+        }
 
         if (efiFilesCopyJob != null) {
             // The exchange partition is FAT32 on a removable media and
@@ -1420,9 +1505,8 @@ public class DLCopy {
         }
 
         // update GUI
-        installerOrUpgrader.showUnmounting();
+        installerOrUpgrader.showUnmounting(storageDevice);
 
-        source.unmountTmpPartitions();
         if (destinationExchangePath != null) {
             destinationExchangePartition.umount();
         }
@@ -1445,6 +1529,7 @@ public class DLCopy {
     }
 
     private static void copyPersistence(SystemSource source,
+            StorageDevice storageDevice,
             InstallerOrUpgrader installerOrUpgrader,
             Partition destinationDataPartition, DLCopyGUI dlCopyGUI)
             throws IOException, InterruptedException, DBusException {
@@ -1477,15 +1562,16 @@ public class DLCopy {
             throw new IOException(errorMessage);
         }
 
-        // TODO: use filecopier as soon as it supports symlinks etc.
-        copyPersistenceCp(installer, sourceDataPath,
+        installer.showCopyingDataPartition(storageDevice);
+        long copiedBytes = copyPersistence(storageDevice, sourceDataPath,
                 destinationDataPath, dlCopyGUI);
+        installer.dataPartitionCopied(storageDevice, copiedBytes);
 
         // remove original ssh config to make it unique for every system
         removeSshConfig(destinationDataPath);
 
         // update GUI
-        dlCopyGUI.showInstallUnmounting();
+        installerOrUpgrader.showUnmounting(storageDevice);
 
         // umount both source and destination persistence partitions
         //  (only if there were not mounted before)
@@ -1497,24 +1583,9 @@ public class DLCopy {
         }
     }
 
-    private static void mkpart(List<String> commandList,
-            String start, String end) {
-        commandList.add("mkpart");
-        commandList.add("primary");
-        commandList.add(start);
-        commandList.add(end);
-    }
-
-    private static void setFlag(List<String> commandList,
-            String partition, String flag, String value) {
-        commandList.add("set");
-        commandList.add(partition);
-        commandList.add(flag);
-        commandList.add(value);
-    }
-
     private static void formatExchangePartition(String device,
             String label, String fileSystem) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
 
         // create file system for exchange partition
         String mkfsBuilder;
@@ -1534,11 +1605,11 @@ public class DLCopy {
 
         int exitValue;
         if (quickSwitch == null) {
-            exitValue = PROCESS_EXECUTOR.executeProcess(
+            exitValue = processExecutor.executeProcess(
                     "/sbin/mkfs." + mkfsBuilder, mkfsLabelSwitch,
                     label, device);
         } else {
-            exitValue = PROCESS_EXECUTOR.executeProcess(
+            exitValue = processExecutor.executeProcess(
                     "/sbin/mkfs." + mkfsBuilder, quickSwitch, mkfsLabelSwitch,
                     label, device);
         }
@@ -1552,19 +1623,33 @@ public class DLCopy {
         }
     }
 
-    private static void copyPersistenceCp(Installer installer,
+    private static long copyPersistence(StorageDevice storageDevice,
             String persistenceSourcePath, String persistenceDestinationPath,
-            DLCopyGUI dlCopyGUI)
-            throws InterruptedException, IOException {
-        // this needs to be a script because of the shell globbing
-        String copyScript = "#!/bin/bash\n"
-                + "cp -av \"" + persistenceSourcePath + "/\"* \""
-                + persistenceDestinationPath + "/\"";
-        dlCopyGUI.showInstallPersistencyCopy(
-                installer, copyScript, persistenceSourcePath);
+            DLCopyGUI dlCopyGUI) throws InterruptedException, IOException {
+        PersistenceCopier persistenceCopier = new PersistenceCopier(
+                persistenceSourcePath, persistenceDestinationPath,
+                PERSISTENCE_COPY_THREADS);
+        Timer copyTimer = new Timer(1000, new PersistenceCopyActionListener(
+                persistenceCopier, storageDevice, dlCopyGUI));
+        copyTimer.setInitialDelay(0);
+        copyTimer.start();
+        dlCopyGUI.showInstallPersistencyCopy();
+        try {
+            persistenceCopier.copy();
+        } finally {
+            copyTimer.stop();
+        }
+        return persistenceCopier.getCopiedBytes();
     }
 
-    private static void umountPartitions(String device, DLCopyGUI dlCopyGUI)
+    /**
+     * unmounts all partitions of a storage device
+     *
+     * @param device the device file of the storage device, e.g. "/dev/sdb"
+     * @param dlCopyGUI the GUI to show error messages
+     * @throws IOException if unmounting a partition fails
+     */
+    public static void umountPartitions(String device, DLCopyGUI dlCopyGUI)
             throws IOException {
         LOGGER.log(Level.FINEST, "umountPartitions({0})", device);
         List<String> mounts
@@ -1610,7 +1695,8 @@ public class DLCopy {
         }
 
         if (disableSwap) {
-            int exitValue = PROCESS_EXECUTOR.executeProcess(
+            ProcessExecutor processExecutor = new ProcessExecutor();
+            int exitValue = processExecutor.executeProcess(
                     "swapoff", swapFile);
             if (exitValue != 0) {
                 String errorMessage = STRINGS.getString("Error_Swapoff_File");
@@ -1621,6 +1707,14 @@ public class DLCopy {
         }
     }
 
+    private static void throwPartitionsNotReady(String device)
+            throws IOException {
+        String errorMessage = STRINGS.getString("Error_Partitions_Not_Ready");
+        errorMessage = MessageFormat.format(errorMessage, device);
+        LOGGER.severe(errorMessage);
+        throw new IOException(errorMessage);
+    }
+
     private static void swapoffPartition(String device, String swapLine,
             DLCopyGUI dlCopyGUI) throws IOException {
 
@@ -1643,7 +1737,8 @@ public class DLCopy {
         }
 
         if (disableSwap) {
-            int exitValue = PROCESS_EXECUTOR.executeProcess(
+            ProcessExecutor processExecutor = new ProcessExecutor();
+            int exitValue = processExecutor.executeProcess(
                     "swapoff", swapFile);
             if (exitValue != 0) {
                 String errorMessage
@@ -0,0 +1,301 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.filecopier.CopyJob;
+import ch.fhnw.filecopier.Source;
+import ch.fhnw.util.LernstickFileTools;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Synchronizes a destination directory with a copy source by copying only
+ * the files that changed and deleting only the files that became obsolete.
+ * Changed files are first copied into a staging directory on the same file
+ * system and then renamed into place, so that an interrupted synchronization
+ * never leaves truncated files behind.
+ * <p>
+ * A changed squashfs image is therefore written completely, even if most of
+ * its blocks are unchanged since the last point release. The block delta of
+ * {@link BlockDeltaUpdater} (which writes only the changed blocks and cuts
+ * the write volume of an upgrade by about an order of magnitude) can't be
+ * used for a staged copy: the staged file has to be written completely
+ * anyway. It is only used as a fallback if there isn't enough space for
+ * staging, and then updates the images in place. This trades the
+ * bootability of an interrupted upgrade for not having to delete the old
+ * images before copying: an interrupted in-place update leaves an
+ * inconsistent image behind and the system only boots again after the
+ * upgrade was repeated.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class DeltaSynchronizer {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(DeltaSynchronizer.class.getName());
+    private static final String STAGING_DIRECTORY = ".dlcopy-delta";
+    // the free space we keep on the destination file system
+    private static final long SPACE_RESERVE = 16 * DLCopy.MEGA;
+    // most blocks of these images are unchanged between two point releases
+    private static final Pattern BLOCK_DELTA_PATTERN
+            = Pattern.compile("live/filesystem.*\\.squashfs");
+
+    private final Source source;
+    private final File destination;
+    private final File stagingDirectory;
+    private final List<String> changedFiles = new ArrayList<>();
+    private final List<String> obsoleteFiles = new ArrayList<>();
+    private final List<String> patchedFiles = new ArrayList<>();
+    private final Map<String, File> sourceFiles = new TreeMap<>();
+    private final AtomicLong patchedBytes = new AtomicLong();
+    private long changedBytes;
+    private long patchBytes;
+
+    /**
+     * creates a new DeltaSynchronizer
+     *
+     * @param source the copy source
+     * @param destination the destination directory
+     */
+    public DeltaSynchronizer(Source source, String destination) {
+        this.source = source;
+        this.destination = new File(destination);
+        stagingDirectory = new File(destination, STAGING_DIRECTORY);
+    }
+
+    /**
+     * compares the source with the destination
+     *
+     * @throws IOException if reading a file fails
+     */
+    public void compare() throws IOException {
+        changedFiles.clear();
+        obsoleteFiles.clear();
+        patchedFiles.clear();
+        sourceFiles.clear();
+        changedBytes = 0;
+        patchBytes = 0;
+        patchedBytes.set(0);
+
+        // leftovers of an interrupted synchronization
+        if (stagingDirectory.exists()) {
+            LernstickFileTools.recursiveDelete(stagingDirectory, true);
+        }
+
+        Pattern pattern = source.getPattern();
+        Map<String, File> candidates = new TreeMap<>();
+        listFiles(source.getBaseDirectory(), "", candidates);
+        for (Map.Entry<String, File> entry : candidates.entrySet()) {
+            if (pattern.matcher(entry.getKey()).matches()) {
+                sourceFiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        Map<String, File> destinationFiles = new TreeMap<>();
+        listFiles(destination, "", destinationFiles);
+
+        for (Map.Entry<String, File> entry : sourceFiles.entrySet()) {
+            String path = entry.getKey();
+            File sourceFile = entry.getValue();
+            File destinationFile = destinationFiles.get(path);
+            if (isUnchanged(sourceFile, destinationFile)) {
+                continue;
+            }
+            changedFiles.add(path);
+            changedBytes += sourceFile.length();
+        }
+        for (String path : destinationFiles.keySet()) {
+            if (!sourceFiles.containsKey(path)) {
+                obsoleteFiles.add(path);
+            }
+        }
+
+        // Staging needs the space of the changed files in addition to the old
+        // ones. If there isn't enough space, the large images that already
+        // exist are updated in place (needs no staging space but loses the
+        // atomic replacement of the images).
+        if (destination.getUsableSpace() < changedBytes + SPACE_RESERVE) {
+            for (String path : new ArrayList<>(changedFiles)) {
+                if (destinationFiles.containsKey(path)
+                        && BLOCK_DELTA_PATTERN.matcher(path).matches()) {
+                    LOGGER.log(Level.WARNING, "not enough space on {0} for "
+                            + "staging {1}, updating it in place",
+                            new Object[]{destination, path});
+                    changedFiles.remove(path);
+                    patchedFiles.add(path);
+                    long size = sourceFiles.get(path).length();
+                    changedBytes -= size;
+                    patchBytes += size;
+                }
+            }
+        }
+
+        LOGGER.log(Level.INFO, "{0}: {1} of {2} files changed ({3} byte), "
+                + "{4} files patched, {5} files obsolete", new Object[]{
+                    destination, changedFiles.size(), sourceFiles.size(),
+                    changedBytes, patchedFiles.size(), obsoleteFiles.size()});
+
+        // If there still isn't enough space, we have to remove the old files
+        // first and lose the atomic replacement.
+        if (destination.getUsableSpace() < changedBytes + SPACE_RESERVE) {
+            LOGGER.log(Level.WARNING, "not enough space on {0} for staging, "
+                    + "removing changed files before copying", destination);
+            deleteFiles(obsoleteFiles);
+            obsoleteFiles.clear();
+            deleteFiles(changedFiles);
+        }
+    }
+
+    /**
+     * returns the CopyJob that copies all changed files into the staging
+     * directory
+     *
+     * @return the CopyJob that copies all changed files into the staging
+     * directory or <tt>null</tt>, if no file changed
+     */
+    public CopyJob getCopyJob() {
+        if (changedFiles.isEmpty()) {
+            return null;
+        }
+        StringBuilder pattern = new StringBuilder();
+        for (String path : changedFiles) {
+            if (pattern.length() > 0) {
+                pattern.append('|');
+            }
+            pattern.append(Pattern.quote(path));
+        }
+        return new CopyJob(
+                new Source[]{new Source(source.getBaseDirectory().getPath(),
+                            pattern.toString())},
+                new String[]{stagingDirectory.getPath()});
+    }
+
+    /**
+     * returns the number of bytes of all images that are updated in place
+     *
+     * @return the number of bytes of all images that are updated in place
+     * (zero, if all changed files are staged)
+     */
+    public long getPatchBytes() {
+        return patchBytes;
+    }
+
+    /**
+     * returns the number of bytes of the images that were already compared
+     * when updating in place
+     *
+     * @return the number of bytes of the images that were already compared
+     */
+    public long getPatchedBytes() {
+        return patchedBytes.get();
+    }
+
+    /**
+     * updates the large images in place (only if there was no space for
+     * staging them), moves all copied files from the staging directory into
+     * place and deletes all obsolete files
+     *
+     * @throws IOException if updating, moving or deleting a file fails
+     */
+    public void commit() throws IOException {
+        // An interrupted update leaves an image with another timestamp
+        // behind. The next comparison finds the difference and updates it
+        // again.
+        for (String path : patchedFiles) {
+            BlockDeltaUpdater.update(sourceFiles.get(path),
+                    new File(destination, path), patchedBytes);
+        }
+        for (String path : changedFiles) {
+            File stagedFile = new File(stagingDirectory, path);
+            File destinationFile = new File(destination, path);
+            destinationFile.getParentFile().mkdirs();
+            // a rename within the same file system is atomic
+            Files.move(stagedFile.toPath(), destinationFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            // so that the next comparison can skip the hash
+            destinationFile.setLastModified(
+                    sourceFiles.get(path).lastModified());
+        }
+        deleteFiles(obsoleteFiles);
+        if (stagingDirectory.exists()) {
+            LernstickFileTools.recursiveDelete(stagingDirectory, true);
+        }
+    }
+
+    private boolean isUnchanged(File sourceFile, File destinationFile)
+            throws IOException {
+        if ((destinationFile == null)
+                || (sourceFile.length() != destinationFile.length())) {
+            return false;
+        }
+        if (sourceFile.lastModified() == destinationFile.lastModified()) {
+            return true;
+        }
+        // same size but different timestamps (e.g. after a full copy that
+        // didn't keep the timestamps), only the content can tell
+        try {
+            boolean unchanged = DLCopy.getMd5String(sourceFile.getPath())
+                    .equals(DLCopy.getMd5String(destinationFile.getPath()));
+            if (unchanged) {
+                destinationFile.setLastModified(sourceFile.lastModified());
+            }
+            return unchanged;
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return false;
+        }
+    }
+
+    private void deleteFiles(List<String> paths) throws IOException {
+        for (String path : paths) {
+            File file = new File(destination, path);
+            LOGGER.log(Level.INFO, "deleting {0}", file);
+            Files.deleteIfExists(file.toPath());
+            // remove directories that became empty
+            for (File directory = file.getParentFile();
+                    !directory.equals(destination);
+                    directory = directory.getParentFile()) {
+                String[] entries = directory.list();
+                if ((entries == null) || (entries.length > 0)) {
+                    break;
+                }
+                Files.delete(directory.toPath());
+            }
+        }
+    }
+
+    // collects all regular files below a directory with their relative paths
+    private static void listFiles(File directory, String prefix,
+            Map<String, File> files) throws IOException {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            throw new IOException("could not list " + directory);
+        }
+        for (File entry : entries) {
+            String path = prefix + entry.getName();
+            Path entryPath = entry.toPath();
+            if (Files.isSymbolicLink(entryPath)) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                if (!STAGING_DIRECTORY.equals(path)
+                        && !"lost+found".equals(path)) {
+                    listFiles(entry, path + '/', files);
+                }
+            } else {
+                files.put(path, entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.DbusTools;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.xml.sax.SAXException;
+
+/**
+ * Waits until storage devices, partitions and file systems are known to the
+ * kernel, udev and udisks. This replaces the fixed "safety sleeps" we used
+ * before and returns as soon as the device is really ready.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class DeviceReadinessWaiter {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(DeviceReadinessWaiter.class.getName());
+    private static final String UDISKS2_PREFIX = "org.freedesktop.UDisks2.";
+    private static final String UDISKS2_BLOCK_DEVICES
+            = "/org/freedesktop/UDisks2/block_devices/";
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long POLL_INTERVAL = 100;
+
+    private DeviceReadinessWaiter() {
+    }
+
+    /**
+     * waits until the udev event queue is empty
+     *
+     * @return <tt>true</tt>, if the event queue was emptied in time,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean waitForUdev() {
+        long start = System.currentTimeMillis();
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess("udevadm", "settle",
+                "--timeout=" + TimeUnit.MILLISECONDS.toSeconds(TIMEOUT));
+        logDuration("udev event queue", start, exitValue == 0);
+        return exitValue == 0;
+    }
+
+    /**
+     * waits until all partitions of a storage device that are known to the
+     * kernel are also known to udisks
+     *
+     * @param device the device file of the storage device, e.g. "/dev/sdb"
+     * @return <tt>true</tt>, if all partitions were ready in time,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean waitForPartitions(String device) {
+        return waitForPartitions(device, 0);
+    }
+
+    /**
+     * waits until the kernel knows at least the given number of partitions
+     * of a storage device (e.g. after writing a new partition table, when
+     * the kernel may not list any partitions yet) and all of them are also
+     * known to udisks
+     *
+     * @param device the device file of the storage device, e.g. "/dev/sdb"
+     * @param count the number of partitions to wait for
+     * @return <tt>true</tt>, if all partitions were ready in time,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean waitForPartitions(String device, final int count) {
+        final String deviceName = getDeviceName(device);
+        waitForUdev();
+        return waitFor(count + " partitions of " + deviceName,
+                new Condition() {
+            @Override
+            public boolean isMet() {
+                List<String> partitions = getKernelPartitions(deviceName);
+                if (partitions.size() < count) {
+                    return false;
+                }
+                for (String partition : partitions) {
+                    if (!isKnownToUdisks(partition, "Partition")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * waits until the given partitions exist and are known to udisks
+     *
+     * @param partitionDevices the device files of the partitions, e.g.
+     * "/dev/sdb1", <tt>null</tt> values are ignored
+     * @return <tt>true</tt>, if all partitions were ready in time,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean waitForPartitionDevices(String... partitionDevices) {
+        final List<String> partitions = new ArrayList<>();
+        for (String partitionDevice : partitionDevices) {
+            if (partitionDevice != null) {
+                partitions.add(getDeviceName(partitionDevice));
+            }
+        }
+        waitForUdev();
+        return waitFor("partitions " + partitions, new Condition() {
+            @Override
+            public boolean isMet() {
+                for (String partition : partitions) {
+                    if (!new File("/sys/class/block/" + partition).exists()
+                            || !isKnownToUdisks(partition, "Partition")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * waits until udisks knows about the file system on a partition
+     *
+     * @param partitionDevice the device file of the partition, e.g.
+     * "/dev/sdb1"
+     * @return <tt>true</tt>, if the file system was ready in time,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean waitForFileSystem(String partitionDevice) {
+        final String partition = getDeviceName(partitionDevice);
+        waitForUdev();
+        return waitFor("file system on " + partition, new Condition() {
+            @Override
+            public boolean isMet() {
+                return isKnownToUdisks(partition, "Filesystem");
+            }
+        });
+    }
+
+    /**
+     * waits until a storage device and all of its partitions are known to
+     * udisks
+     *
+     * @param udisksPath the udisks path of the storage device
+     * @return <tt>true</tt>, if the storage device was ready in time,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean waitForStorageDevice(String udisksPath) {
+        String deviceName
+                = udisksPath.substring(udisksPath.lastIndexOf('/') + 1);
+        return waitForPartitions(deviceName);
+    }
+
+    private interface Condition {
+
+        boolean isMet();
+    }
+
+    private static boolean waitFor(String what, Condition condition) {
+        long start = System.currentTimeMillis();
+        long deadline = start + TIMEOUT;
+        try {
+            while (!condition.isMet()) {
+                if (System.currentTimeMillis() > deadline) {
+                    logDuration(what, start, false);
+                    return false;
+                }
+                TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        logDuration(what, start, true);
+        return true;
+    }
+
+    private static void logDuration(String what, long start, boolean ready) {
+        long duration = System.currentTimeMillis() - start;
+        if (ready) {
+            LOGGER.log(Level.INFO, "{0} ready after {1} ms",
+                    new Object[]{what, duration});
+        } else {
+            LOGGER.log(Level.WARNING, "{0} still not ready after {1} ms",
+                    new Object[]{what, duration});
+        }
+    }
+
+    private static String getDeviceName(String device) {
+        return device.startsWith("/dev/") ? device.substring(5) : device;
+    }
+
+    private static List<String> getKernelPartitions(String deviceName) {
+        List<String> partitions = new ArrayList<>();
+        File[] files = new File("/sys/class/block/" + deviceName).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(deviceName)
+                        && new File(file, "partition").exists()) {
+                    partitions.add(file.getName());
+                }
+            }
+        }
+        return partitions;
+    }
+
+    private static boolean isKnownToUdisks(
+            String deviceName, String interfaceName) {
+        if (!new File("/dev/" + deviceName).exists()) {
+            return false;
+        }
+        if (DbusTools.DBUS_VERSION != DbusTools.DbusVersion.V2) {
+            // udisks1 has no per-interface objects, the settled udev queue
+            // and the existing device file are all we can check here
+            return true;
+        }
+        try {
+            return DbusTools.getInterfaceNames(
+                    UDISKS2_BLOCK_DEVICES + deviceName).contains(
+                            UDISKS2_PREFIX + interfaceName);
+        } catch (IOException | SAXException | ParserConfigurationException |
+                DBusException | DBusExecutionException ex) {
+            LOGGER.log(Level.FINEST, "", ex);
+            return false;
+        }
+    }
+}
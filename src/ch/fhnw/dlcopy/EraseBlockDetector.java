@@ -0,0 +1,197 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Determines the erase block size of the flash memory of a storage device,
+ * either from the hints the kernel provides in /sys or with timed write
+ * probes.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class EraseBlockDetector {
+
+    /**
+     * the erase block size we assume if we don't know better (the typical
+     * erase block size of cheap USB flash drives)
+     */
+    public static final long DEFAULT_SIZE = 4 * DLCopy.MEGA;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(EraseBlockDetector.class.getName());
+    private static final long MAX_SIZE = 16 * DLCopy.MEGA;
+    private static final File CACHE_FILE = new File(
+            System.getProperty("user.home") + File.separatorChar + ".dlcopy",
+            "erase-blocks.properties");
+    // all candidates are a multiple of each smaller candidate
+    private static final long[] PROBE_SIZES = new long[]{
+        DLCopy.MEGA, 2 * DLCopy.MEGA, 4 * DLCopy.MEGA, 8 * DLCopy.MEGA,
+        MAX_SIZE
+    };
+    // (a multiple of all probe sizes)
+    private static final long PROBE_BASE = 4 * MAX_SIZE;
+    private static final int PROBE_WRITE_SIZE = 128 * 1024;
+    private static final int PROBE_REPETITIONS = 5;
+    // writes across an erase block boundary must be this much slower
+    private static final double PROBE_THRESHOLD = 1.5;
+
+    private EraseBlockDetector() {
+    }
+
+    /**
+     * returns the erase block size of a storage device as reported by the
+     * kernel or found by a previous probe of the same model
+     *
+     * @param storageDevice the storage device
+     * @return the erase block size (in byte) or <tt>-1</tt>, if it is unknown
+     */
+    public static long getKnownSize(StorageDevice storageDevice) {
+        String sysPath = "/sys/block/" + storageDevice.getDevice();
+        // SD cards (mmc) know their erase size, some devices report it as
+        // discard granularity or optimal I/O size
+        for (String hint : new String[]{"device/preferred_erase_size",
+            "queue/discard_granularity", "queue/optimal_io_size"}) {
+            long size = readSize(new File(sysPath, hint));
+            if ((size >= DLCopy.MEGA) && (size <= MAX_SIZE)
+                    && (size % DLCopy.MEGA == 0)) {
+                LOGGER.log(Level.INFO, "erase block size of {0} from {1}: {2}",
+                        new Object[]{storageDevice.getDevice(), hint, size});
+                return size;
+            }
+        }
+
+        String cachedSize = loadCache().getProperty(getKey(storageDevice));
+        if (cachedSize != null) {
+            LOGGER.log(Level.INFO, "probed erase block size of {0}: {1}",
+                    new Object[]{storageDevice.getDevice(), cachedSize});
+            return Long.parseLong(cachedSize);
+        }
+        return -1;
+    }
+
+    /**
+     * probes the erase block size of a storage device by comparing the time
+     * of writes across possible erase block boundaries with the time of
+     * writes within an erase block. <b>The probe overwrites data on the
+     * storage device!</b> The result is remembered for all storage devices of
+     * the same model.
+     *
+     * @param storageDevice the storage device
+     * @return the erase block size (in byte) or <tt>-1</tt>, if it could not
+     * be determined
+     */
+    public static long probe(StorageDevice storageDevice) {
+        String device = "/dev/" + storageDevice.getDevice();
+        if (storageDevice.getSize() < PROBE_BASE + 2 * MAX_SIZE) {
+            return -1;
+        }
+        long start = System.currentTimeMillis();
+        byte[] data = new byte[PROBE_WRITE_SIZE];
+        // random data, so that the controller can't skip anything
+        new Random().nextBytes(data);
+        long eraseBlockSize = -1;
+        // "rwd" writes every block synchronously to the device
+        try (RandomAccessFile randomAccessFile
+                = new RandomAccessFile(device, "rwd")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            for (long size : PROBE_SIZES) {
+                // write across a possible boundary...
+                long boundary = PROBE_BASE + size;
+                long crossing = measure(channel, data,
+                        boundary - PROBE_WRITE_SIZE / 2);
+                // ...and completely within the same erase block
+                long within = measure(channel, data,
+                        boundary + 2 * PROBE_WRITE_SIZE);
+                LOGGER.log(Level.INFO, "{0}: {1} byte boundary: {2} ns "
+                        + "across, {3} ns within", new Object[]{
+                            device, size, crossing, within});
+                if (crossing > within * PROBE_THRESHOLD) {
+                    // the smallest boundary that is expensive to cross
+                    eraseBlockSize = size;
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return -1;
+        }
+        LOGGER.log(Level.INFO, "probed erase block size of {0} in {1} ms: {2}",
+                new Object[]{device, System.currentTimeMillis() - start,
+                    eraseBlockSize});
+
+        if (eraseBlockSize > 0) {
+            Properties cache = loadCache();
+            cache.setProperty(getKey(storageDevice),
+                    String.valueOf(eraseBlockSize));
+            storeCache(cache);
+        }
+        return eraseBlockSize;
+    }
+
+    // returns the median duration (in ns) of writing data at an offset
+    private static long measure(FileChannel channel, byte[] data,
+            long offset) throws IOException {
+        long[] durations = new long[PROBE_REPETITIONS];
+        for (int i = 0; i < PROBE_REPETITIONS; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long start = System.nanoTime();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            durations[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(durations);
+        return durations[PROBE_REPETITIONS / 2];
+    }
+
+    private static long readSize(File file) {
+        try {
+            String size = DLCopy.readOneLineFile(file);
+            return size == null ? -1 : Long.parseLong(size);
+        } catch (IOException | NumberFormatException ex) {
+            // this hint is just not available for this device
+            return -1;
+        }
+    }
+
+    private static String getKey(StorageDevice storageDevice) {
+        String key = storageDevice.getVendor() + '_' + storageDevice.getModel()
+                + '_' + storageDevice.getSize();
+        return key.replaceAll("\\s+", "_");
+    }
+
+    private static synchronized Properties loadCache() {
+        Properties cache = new Properties();
+        if (CACHE_FILE.exists()) {
+            try (InputStream inputStream = new FileInputStream(CACHE_FILE)) {
+                cache.load(inputStream);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+        }
+        return cache;
+    }
+
+    private static synchronized void storeCache(Properties cache) {
+        CACHE_FILE.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(CACHE_FILE)) {
+            cache.store(outputStream, "probed erase block sizes");
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+    }
+}
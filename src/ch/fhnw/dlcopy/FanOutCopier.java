@@ -0,0 +1,482 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.STRINGS;
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.filecopier.Source;
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies files from one source to the storage devices of several concurrent
+ * installations. Every source file is read only once into a ring of shared
+ * buffers and written from there to all targets. A slow target holds back the
+ * reader (and therefore the faster targets) only when the faster targets are
+ * more than the ring size ahead.
+ *
+ * Installations register with this copier when they start. The first
+ * installation that reaches the copy stage waits until all other registered
+ * installations reached the copy stage, too (or deregistered because of an
+ * error) and then copies the files to all of them. It waits at most
+ * {@link #JOIN_TIMEOUT} milliseconds, so that a slow or stuck device doesn't
+ * hold back the others. Installations that reach the copy stage later start
+ * their own session, even while other sessions are still running.
+ * <p>
+ * The copied files get the modification time and permissions of their
+ * source files.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class FanOutCopier {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(FanOutCopier.class.getName());
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * the maximum time (in milliseconds) the first installation at the copy
+     * stage waits for the other registered installations
+     */
+    public static final long JOIN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final DLCopyGUI dlCopyGUI;
+    private final int windowSize;
+    private final Set<StorageDevice> pendingDevices = new HashSet<>();
+    private final List<Target> waitingTargets = new ArrayList<>();
+
+    /**
+     * creates a new FanOutCopier
+     *
+     * @param dlCopyGUI the DLCopy GUI
+     * @param window the maximum number of MiB a fast target may be ahead of
+     * the slowest target
+     */
+    public FanOutCopier(DLCopyGUI dlCopyGUI, int window) {
+        this.dlCopyGUI = dlCopyGUI;
+        this.windowSize = Math.max(2, window * 1024 * 1024 / CHUNK_SIZE);
+    }
+
+    /**
+     * registers an installation that will later call
+     * {@link #copy(StorageDevice, Source, String)}
+     *
+     * @param storageDevice the storage device of the installation
+     */
+    public synchronized void register(StorageDevice storageDevice) {
+        pendingDevices.add(storageDevice);
+    }
+
+    /**
+     * deregisters an installation, e.g. because it failed before reaching the
+     * copy stage (does nothing if the installation already copied its files)
+     *
+     * @param storageDevice the storage device of the installation
+     */
+    public synchronized void deregister(StorageDevice storageDevice) {
+        if (pendingDevices.remove(storageDevice)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * copies all files of a source to a destination directory on a storage
+     * device, together with all other registered installations
+     *
+     * @param storageDevice the storage device of the installation
+     * @param source the source of the files
+     * @param destination the destination directory
+     * @throws InterruptedException if the copy operation was interrupted
+     * @throws IOException if an I/O exception occured
+     */
+    public void copy(StorageDevice storageDevice, Source source,
+            String destination) throws InterruptedException, IOException {
+
+        Target target = new Target(storageDevice, destination);
+        List<Target> targets = null;
+        synchronized (this) {
+            pendingDevices.remove(storageDevice);
+            waitingTargets.add(target);
+            notifyAll();
+            long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+            while (!target.joined) {
+                boolean leader = waitingTargets.get(0) == target;
+                long remaining = deadline - System.currentTimeMillis();
+                if (leader && (pendingDevices.isEmpty() || (remaining <= 0))) {
+                    if (!pendingDevices.isEmpty()) {
+                        LOGGER.log(Level.WARNING, "not waiting any longer "
+                                + "for {0}", pendingDevices);
+                    }
+                    targets = new ArrayList<>(waitingTargets);
+                    waitingTargets.clear();
+                    for (Target sessionTarget : targets) {
+                        sessionTarget.joined = true;
+                    }
+                    break;
+                }
+                // (followers wait until a leader takes them along)
+                wait(leader ? remaining : 0);
+            }
+            if (targets == null) {
+                // another installation copies the files for us
+                while (!target.done) {
+                    wait();
+                }
+                target.throwException();
+                return;
+            }
+        }
+
+        boolean completed = false;
+        try {
+            copySession(source, targets);
+            completed = true;
+        } finally {
+            synchronized (this) {
+                for (Target sessionTarget : targets) {
+                    if (!completed && (sessionTarget.exception == null)) {
+                        sessionTarget.exception
+                                = new IOException("copying was interrupted");
+                    }
+                    sessionTarget.done = true;
+                }
+                notifyAll();
+            }
+        }
+        target.throwException();
+    }
+
+    private void copySession(Source source, List<Target> targets)
+            throws InterruptedException {
+        List<File> files = new ArrayList<>();
+        File baseDirectory = source.getBaseDirectory();
+        listFiles(baseDirectory, baseDirectory.getPath().length() + 1,
+                source, files);
+        long byteCount = 0;
+        for (File file : files) {
+            byteCount += file.length();
+        }
+        LOGGER.log(Level.INFO, "copying {0} files ({1} byte) to {2} targets",
+                new Object[]{files.size(), byteCount, targets.size()});
+
+        Session session = new Session(targets);
+
+        List<Thread> writers = new ArrayList<>();
+        for (Target target : targets) {
+            Thread writer = new Thread(new Writer(
+                    session, target, baseDirectory, files, byteCount));
+            writer.setName("FanOutWriter " + target.storageDevice.getDevice());
+            writer.start();
+            writers.add(writer);
+        }
+
+        try {
+            read(session, files);
+            synchronized (this) {
+                session.readingCompleted = true;
+            }
+        } catch (IOException ex) {
+            // all targets failed
+            LOGGER.log(Level.SEVERE, "", ex);
+            synchronized (this) {
+                for (Target target : targets) {
+                    if (target.exception == null) {
+                        target.exception = ex;
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                session.readingFinished = true;
+                notifyAll();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+
+    private void read(Session session, List<File> files)
+            throws IOException, InterruptedException {
+        for (int fileIndex = 0, size = files.size(); fileIndex < size;
+                fileIndex++) {
+            try (FileChannel channel = FileChannel.open(
+                    files.get(fileIndex).toPath(), StandardOpenOption.READ)) {
+                boolean emptyFile = true;
+                while (true) {
+                    ByteBuffer buffer;
+                    synchronized (this) {
+                        // back-pressure: wait until the slowest target
+                        // released the oldest buffer of the ring
+                        while (session.producedChunks
+                                - session.getSlowestChunk() >= windowSize) {
+                            if (session.allTargetsFailed()) {
+                                throw new IOException("all targets failed");
+                            }
+                            wait();
+                        }
+                        buffer = session.ring[
+                                (int) (session.producedChunks % windowSize)];
+                    }
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    if ((read == -1) && !emptyFile) {
+                        break;
+                    }
+                    // (empty files get one empty chunk so that the writers
+                    // create them)
+                    emptyFile = false;
+                    buffer.flip();
+                    synchronized (this) {
+                        session.chunkFiles[(int) (session.producedChunks
+                                % windowSize)] = fileIndex;
+                        session.producedChunks++;
+                        notifyAll();
+                    }
+                    if (read == -1) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void listFiles(File directory, int baseLength,
+            Source source, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String relativePath = child.getPath().substring(baseLength);
+            boolean matches = source.getPattern().matcher(
+                    relativePath).matches();
+            if (child.isDirectory()) {
+                if (matches || source.isRecursive()) {
+                    listFiles(child, baseLength, source, files);
+                }
+            } else if (matches) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static class Target {
+
+        private final StorageDevice storageDevice;
+        private final String destination;
+        private long consumedChunks;
+        private IOException exception;
+        private boolean joined;
+        private boolean done;
+
+        public Target(StorageDevice storageDevice, String destination) {
+            this.storageDevice = storageDevice;
+            this.destination = destination;
+        }
+
+        public void throwException() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    // the ring of buffers of a copy session (all fields are guarded by the
+    // lock of the FanOutCopier)
+    private class Session {
+
+        private final ByteBuffer[] ring = new ByteBuffer[windowSize];
+        private final int[] chunkFiles = new int[windowSize];
+        private final List<Target> targets;
+        private long producedChunks;
+        private boolean readingFinished;
+        private boolean readingCompleted;
+
+        public Session(List<Target> targets) {
+            this.targets = targets;
+            for (int i = 0; i < windowSize; i++) {
+                ring[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+        }
+
+        public long getSlowestChunk() {
+            long slowest = producedChunks;
+            for (Target target : targets) {
+                if (target.exception == null) {
+                    slowest = Math.min(slowest, target.consumedChunks);
+                }
+            }
+            return slowest;
+        }
+
+        public boolean allTargetsFailed() {
+            for (Target target : targets) {
+                if (target.exception == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session;
+        private final Target target;
+        private final File baseDirectory;
+        private final List<File> files;
+        private final long byteCount;
+        private int lastPercent = -1;
+
+        public Writer(Session session, Target target, File baseDirectory,
+                List<File> files, long byteCount) {
+            this.session = session;
+            this.target = target;
+            this.baseDirectory = baseDirectory;
+            this.files = files;
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        public void run() {
+            FileChannel channel = null;
+            int currentFile = -1;
+            long writtenBytes = 0;
+            try {
+                while (true) {
+                    ByteBuffer buffer;
+                    int fileIndex;
+                    synchronized (FanOutCopier.this) {
+                        while ((target.consumedChunks
+                                == session.producedChunks)
+                                && !session.readingFinished) {
+                            FanOutCopier.this.wait();
+                        }
+                        if (target.consumedChunks == session.producedChunks) {
+                            break;
+                        }
+                        int slot = (int) (target.consumedChunks % windowSize);
+                        // every writer needs its own position and limit
+                        buffer = session.ring[slot].duplicate();
+                        fileIndex = session.chunkFiles[slot];
+                    }
+                    if (fileIndex != currentFile) {
+                        if (channel != null) {
+                            closeDestination(channel, files.get(currentFile));
+                            channel = null;
+                        }
+                        currentFile = fileIndex;
+                        channel = openDestination(files.get(fileIndex));
+                    }
+                    writtenBytes += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    synchronized (FanOutCopier.this) {
+                        target.consumedChunks++;
+                        FanOutCopier.this.notifyAll();
+                    }
+                    showProgress(writtenBytes);
+                }
+                // the last file is only complete if reading didn't fail
+                boolean completed;
+                synchronized (FanOutCopier.this) {
+                    completed = session.readingCompleted
+                            && (target.exception == null);
+                }
+                if (completed && (channel != null)) {
+                    closeDestination(channel, files.get(currentFile));
+                    channel = null;
+                }
+            } catch (IOException | InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+                synchronized (FanOutCopier.this) {
+                    target.exception = (ex instanceof IOException)
+                            ? (IOException) ex
+                            : new IOException(ex);
+                    // don't hold back the other targets any longer
+                    FanOutCopier.this.notifyAll();
+                }
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.force(true);
+                        channel.close();
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.WARNING, "", ex);
+                        synchronized (FanOutCopier.this) {
+                            if (target.exception == null) {
+                                target.exception = ex;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private FileChannel openDestination(File sourceFile)
+                throws IOException {
+            File destinationFile = getDestinationFile(sourceFile);
+            File parent = destinationFile.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                String errorMessage
+                        = STRINGS.getString("Error_Creating_Directory");
+                errorMessage = MessageFormat.format(errorMessage, parent);
+                throw new IOException(errorMessage);
+            }
+            return FileChannel.open(destinationFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        // Closes a completely written file and copies the modification time
+        // and permissions of its source file (incomplete files keep the
+        // current time, so that they are never mistaken for a good copy).
+        private void closeDestination(FileChannel channel, File sourceFile)
+                throws IOException {
+            channel.force(true);
+            channel.close();
+            File destinationFile = getDestinationFile(sourceFile);
+            try {
+                Files.setPosixFilePermissions(destinationFile.toPath(),
+                        Files.getPosixFilePermissions(sourceFile.toPath()));
+            } catch (UnsupportedOperationException ex) {
+                // file systems without POSIX permissions
+                LOGGER.log(Level.FINE, "", ex);
+            }
+            if (!destinationFile.setLastModified(sourceFile.lastModified())) {
+                LOGGER.log(Level.WARNING, "could not set modification time "
+                        + "of {0}", destinationFile);
+            }
+        }
+
+        private File getDestinationFile(File sourceFile) {
+            String relativePath = sourceFile.getPath().substring(
+                    baseDirectory.getPath().length() + 1);
+            return new File(target.destination, relativePath);
+        }
+
+        private void showProgress(long writtenBytes) {
+            int percent = (int) (byteCount == 0
+                    ? 100 : writtenBytes * 100 / byteCount);
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                String pattern = STRINGS.getString("Copying_Files_Progress");
+                dlCopyGUI.setInstallingDeviceProgress(target.storageDevice,
+                        MessageFormat.format(pattern, percent));
+            }
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package ch.fhnw.dlcopy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A backup of user data that deduplicates identical file contents across all
+ * backups sharing the same pool. Every file content is stored only once in
+ * the pool, named after its SHA-256 sum. A snapshot is a tree of hard links
+ * into the pool plus a metadata file with the owners, permissions and
+ * modification times (hard links share these attributes, so they can't be
+ * stored in the tree itself). The pool and all snapshots must be on the same
+ * file system. Every backup creates a new snapshot directory, so that older
+ * snapshots (and rdiff-backup repositories of older versions) in the same
+ * backup directory are never touched. On file systems without hard links
+ * (FAT, exFAT, NTFS) the snapshot tree is a plain copy and the pool is not
+ * used.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class HardLinkBackup {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(HardLinkBackup.class.getName());
+    private static final String FILES = "files";
+    private static final String METADATA = "metadata";
+    private static final String SNAPSHOT_PREFIX = "dlcopy-snapshot-";
+    private static final int VERSION = 1;
+    private static final byte DIRECTORY = 'd';
+    private static final byte FILE = 'f';
+    private static final byte LINK = 'l';
+
+    private final Path pool;
+    private final AtomicLong fileCounter = new AtomicLong();
+    private final AtomicLong newContents = new AtomicLong();
+    private final AtomicLong copies = new AtomicLong();
+    private volatile String currentFile = "";
+
+    /**
+     * creates a new HardLinkBackup
+     *
+     * @param pool the directory with the file contents
+     */
+    public HardLinkBackup(File pool) {
+        this.pool = pool.toPath();
+    }
+
+    /**
+     * returns the number of files processed so far
+     *
+     * @return the number of files processed so far
+     */
+    public long getFileCounter() {
+        return fileCounter.get();
+    }
+
+    /**
+     * returns the file that is currently processed
+     *
+     * @return the file that is currently processed
+     */
+    public String getCurrentFile() {
+        return currentFile;
+    }
+
+    /**
+     * checks if a directory contains a snapshot
+     *
+     * @param snapshot the directory of the snapshot
+     * @return <tt>true</tt>, if the directory contains a snapshot,
+     * <tt>false</tt> otherwise
+     */
+    public static boolean exists(File snapshot) {
+        return new File(snapshot, METADATA).isFile();
+    }
+
+    /**
+     * backs up some directories into a new snapshot
+     *
+     * @param sourceRoot the root of the directories to back up
+     * @param includes the directories to back up, relative to the source root
+     * (e.g. "home/user")
+     * @param backupDirectory the directory where the new snapshot directory is
+     * created
+     * @return the directory of the new snapshot
+     * @throws IOException if backing up fails
+     */
+    public File backup(String sourceRoot, List<String> includes,
+            File backupDirectory) throws IOException {
+        long start = System.currentTimeMillis();
+        fileCounter.set(0);
+        newContents.set(0);
+        copies.set(0);
+        Files.createDirectories(backupDirectory.toPath());
+        File snapshot = new File(backupDirectory, SNAPSHOT_PREFIX
+                + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(
+                        new Date()));
+        // (fails if the snapshot already exists)
+        Files.createDirectory(snapshot.toPath());
+        final Path root = new File(sourceRoot).toPath();
+        final Path tree = snapshot.toPath().resolve(FILES);
+        Files.createDirectories(tree);
+        final boolean hardLinks = supportsHardLinks(snapshot.toPath());
+        if (hardLinks) {
+            Files.createDirectories(pool);
+        }
+
+        try (final DataOutputStream metadata = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(
+                        snapshot.toPath().resolve(METADATA))))) {
+            metadata.writeInt(VERSION);
+            List<String> parents = new ArrayList<>();
+            for (String include : includes) {
+                Path includePath = root.resolve(include);
+                if (!Files.isDirectory(includePath)) {
+                    LOGGER.log(Level.INFO, "{0} does not exist", includePath);
+                    continue;
+                }
+                // the parents are needed to restore their attributes
+                for (Path parent = root.relativize(includePath).getParent();
+                        parent != null; parent = parent.getParent()) {
+                    if (!parents.contains(parent.toString())) {
+                        parents.add(parent.toString());
+                        writeEntry(metadata, DIRECTORY, root.resolve(parent),
+                                parent.toString(), null);
+                        Files.createDirectories(tree.resolve(parent));
+                    }
+                }
+                Files.walkFileTree(includePath, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path directory,
+                            BasicFileAttributes attributes)
+                            throws IOException {
+                        String path = root.relativize(directory).toString();
+                        writeEntry(metadata, DIRECTORY, directory, path, null);
+                        Files.createDirectories(tree.resolve(path));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attributes)
+                            throws IOException {
+                        String path = root.relativize(file).toString();
+                        currentFile = path;
+                        if (attributes.isSymbolicLink()) {
+                            writeEntry(metadata, LINK, file, path,
+                                    Files.readSymbolicLink(file).toString());
+                        } else if (attributes.isRegularFile()) {
+                            if (hardLinks) {
+                                String hash = store(file);
+                                writeEntry(metadata, FILE, file, path, hash);
+                                link(getPoolFile(hash), tree.resolve(path));
+                            } else {
+                                writeEntry(metadata, FILE, file, path, "");
+                                Files.copy(file, tree.resolve(path));
+                            }
+                        } else {
+                            LOGGER.log(Level.WARNING, "skipping {0} "
+                                    + "(probably a named pipe or unix domain "
+                                    + "socket, both are not supported!)",
+                                    file);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        fileCounter.incrementAndGet();
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+
+        LOGGER.log(Level.INFO, "backed up {0} files of {1} in {2} ms, {3} "
+                + "new file contents, {4} copies", new Object[]{
+                    fileCounter.get(), sourceRoot,
+                    System.currentTimeMillis() - start, newContents.get(),
+                    copies.get()});
+        return snapshot;
+    }
+
+    /**
+     * restores a snapshot
+     *
+     * @param snapshot the directory of the snapshot
+     * @param destinationRoot the directory where to restore the snapshot
+     * @throws IOException if restoring fails
+     */
+    public void restore(File snapshot, String destinationRoot)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        fileCounter.set(0);
+        Path root = new File(destinationRoot).toPath();
+        Path tree = snapshot.toPath().resolve(FILES);
+        List<Entry> directories = new ArrayList<>();
+        List<Entry> files = new ArrayList<>();
+        Path metadataFile = snapshot.toPath().resolve(METADATA);
+        try (DataInputStream metadata = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(metadataFile)))) {
+            if (metadata.readInt() != VERSION) {
+                throw new IOException("unsupported backup " + snapshot);
+            }
+            while (true) {
+                Entry entry;
+                try {
+                    entry = new Entry(metadata);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (entry.type == DIRECTORY) {
+                    // parents always come before their children
+                    Files.createDirectories(root.resolve(entry.path));
+                    directories.add(entry);
+                } else {
+                    files.add(entry);
+                }
+            }
+        }
+
+        // Restoring mostly waits for the storage devices, more threads than
+        // processors keep their queues filled.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                4 * Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Entry file : files) {
+                futures.add(executor.submit(new RestoreTask(tree, root, file)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // after the content, because it changes the times
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            Entry directory = directories.get(i);
+            directory.setAttributes(root.resolve(directory.path));
+        }
+
+        LOGGER.log(Level.INFO, "restored {0} files to {1} in {2} ms",
+                new Object[]{fileCounter.get(), destinationRoot,
+                    System.currentTimeMillis() - start});
+    }
+
+    /**
+     * removes all file contents from a pool that are no longer part of any
+     * snapshot
+     *
+     * @param pool the directory with the file contents
+     * @return the number of removed file contents
+     * @throws IOException if walking the pool fails
+     */
+    public static long collectGarbage(File pool) throws IOException {
+        if (!pool.isDirectory()) {
+            return 0;
+        }
+        final AtomicLong removed = new AtomicLong();
+        Files.walkFileTree(pool.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attributes) throws IOException {
+                // only the pool itself still links to the content
+                if ((Integer) Files.getAttribute(file, "unix:nlink") == 1) {
+                    Files.delete(file);
+                    removed.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        LOGGER.log(Level.INFO, "removed {0} file contents from {1}",
+                new Object[]{removed.get(), pool});
+        return removed.get();
+    }
+
+    // stores the content of a file in the pool and returns its hash
+    private String store(Path file) throws IOException {
+        String hash = getHash(file);
+        Path poolFile = getPoolFile(hash);
+        if (Files.exists(poolFile)) {
+            return hash;
+        }
+        // Other backups of the same batch may store the same content at the
+        // same time. Renaming is atomic and both contents are identical, so
+        // whoever comes last just replaces the pool entry.
+        Files.createDirectories(poolFile.getParent());
+        Path tmpFile = Files.createTempFile(poolFile.getParent(), hash, null);
+        try {
+            Files.copy(file, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpFile, poolFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        newContents.incrementAndGet();
+        return hash;
+    }
+
+    // links a pool file into the snapshot tree, copies it if linking fails
+    private void link(Path poolFile, Path treeFile) throws IOException {
+        try {
+            Files.createLink(treeFile, poolFile);
+        } catch (IOException ex) {
+            // e.g. too many links (EMLINK) to a very common content
+            LOGGER.log(Level.INFO, "could not link {0}, copying it instead "
+                    + "({1})", new Object[]{treeFile, ex.getMessage()});
+            Files.copy(poolFile, treeFile, StandardCopyOption.REPLACE_EXISTING);
+            copies.incrementAndGet();
+        }
+    }
+
+    private static boolean supportsHardLinks(Path directory)
+            throws IOException {
+        Path probe = Files.createTempFile(directory, "probe", null);
+        Path link = directory.resolve(probe.getFileName() + ".link");
+        try {
+            Files.createLink(link, probe);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.log(Level.WARNING, "{0} does not support hard links, "
+                    + "backups will not be deduplicated", directory);
+            return false;
+        } finally {
+            Files.deleteIfExists(link);
+            Files.delete(probe);
+        }
+    }
+
+    private Path getPoolFile(String hash) {
+        // spread the contents over subdirectories to keep them small
+        return pool.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static String getHash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            // (not MD5, users could plant colliding files)
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[DLCopy.MEGA];
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            for (int read = inputStream.read(buffer); read != -1;
+                    read = inputStream.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
+    }
+
+    private static void writeEntry(DataOutputStream metadata, byte type,
+            Path file, String path, String data) throws IOException {
+        PosixFileAttributes attributes = Files.readAttributes(file,
+                PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        metadata.writeByte(type);
+        metadata.writeUTF(path);
+        metadata.writeUTF(PosixFilePermissions.toString(
+                attributes.permissions()));
+        metadata.writeInt((Integer) Files.getAttribute(
+                file, "unix:uid", LinkOption.NOFOLLOW_LINKS));
+        metadata.writeInt((Integer) Files.getAttribute(
+                file, "unix:gid", LinkOption.NOFOLLOW_LINKS));
+        metadata.writeLong(attributes.lastModifiedTime().toMillis());
+        if (data != null) {
+            metadata.writeUTF(data);
+        }
+    }
+
+    // an entry of the metadata file
+    private static class Entry {
+
+        private final byte type;
+        private final String path;
+        private final String permissions;
+        private final int uid;
+        private final int gid;
+        private final long modified;
+        // the hash of files or the target of symbolic links
+        private final String data;
+
+        public Entry(DataInputStream metadata) throws IOException {
+            type = metadata.readByte();
+            path = metadata.readUTF();
+            permissions = metadata.readUTF();
+            uid = metadata.readInt();
+            gid = metadata.readInt();
+            modified = metadata.readLong();
+            data = (type == DIRECTORY) ? null : metadata.readUTF();
+        }
+
+        public void setAttributes(Path file) throws IOException {
+            Files.setAttribute(file, "unix:uid", uid,
+                    LinkOption.NOFOLLOW_LINKS);
+            Files.setAttribute(file, "unix:gid", gid,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (type != LINK) {
+                Files.setPosixFilePermissions(file,
+                        PosixFilePermissions.fromString(permissions));
+                Files.setLastModifiedTime(file,
+                        FileTime.fromMillis(modified));
+            }
+        }
+    }
+
+    // restores a file or symbolic link
+    private class RestoreTask implements Callable<Void> {
+
+        private final Path tree;
+        private final Path root;
+        private final Entry entry;
+
+        public RestoreTask(Path tree, Path root, Entry entry) {
+            this.tree = tree;
+            this.root = root;
+            this.entry = entry;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            Path destination = root.resolve(entry.path);
+            currentFile = entry.path;
+            Files.deleteIfExists(destination);
+            if (entry.type == LINK) {
+                Files.createSymbolicLink(
+                        destination, destination.getFileSystem().getPath(
+                                entry.data));
+            } else {
+                // (a hard link into the pool or a plain copy)
+                Files.copy(tree.resolve(entry.path), destination);
+            }
+            entry.setAttributes(destination);
+            fileCounter.incrementAndGet();
+            return null;
+        }
+    }
+}
@@ -2,12 +2,28 @@ package ch.fhnw.dlcopy;
 
 import ch.fhnw.dlcopy.gui.DLCopyGUI;
 import ch.fhnw.filecopier.FileCopier;
-import ch.fhnw.util.ProcessExecutor;
+import ch.fhnw.util.MountInfo;
+import ch.fhnw.util.Partition;
 import ch.fhnw.util.StorageDevice;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.freedesktop.dbus.exceptions.DBusException;
@@ -17,11 +33,13 @@ import org.freedesktop.dbus.exceptions.DBusException;
  *
  * @author Ronny Standtke <ronny.standtke@gmx.net>
  */
-public class Installer extends InstallerOrUpgrader
-        implements PropertyChangeListener {
+public class Installer extends InstallerOrUpgrader {
 
     private static final Logger LOGGER
             = Logger.getLogger(Installer.class.getName());
+    private static final String PHASE_SYSTEM_FILES = "system files";
+    private static final String PHASE_SYSTEM_FILES_DISCARDED
+            = "system files (discarded)";
 
     private final int exchangePartitionSize;
     private final boolean copyExchangePartition;
@@ -30,6 +48,25 @@ public class Installer extends InstallerOrUpgrader
     private int autoNumber;
     private final boolean copyDataPartition;
     private final DataPartitionMode dataPartitionMode;
+    private final int parallelInstallations;
+    private final FanOutCopier fanOutCopier;
+    private final boolean verify;
+    private final List<Future<?>> verifyFutures = new ArrayList<>();
+    private ExecutorService verifyExecutor;
+    private ExecutorService hashExecutor;
+    private final Map<StorageDevice, DeviceMeasurement> measurements
+            = Collections.synchronizedMap(
+                    new HashMap<StorageDevice, DeviceMeasurement>());
+    private ThroughputDatabase throughputDatabase;
+    private int finishedAutoNumber;
+    private long plannedBytes;
+    // the devices that are currently installed or verified
+    private final Set<String> activeDevices = new HashSet<>();
+    // only used in station mode
+    private final BlockingQueue<StorageDevice> stationQueue;
+    private volatile boolean stationStopped;
+    private long stationStart;
+    private int stationDeviceCount;
 
     /**
      * creates a new Installer
@@ -49,6 +86,18 @@ public class Installer extends InstallerOrUpgrader
      * @param copyDataPartition if the data partition should be copied
      * @param dataPartitionMode the mode of the data partition to set in the
      * bootloaders config
+     * @param parallelInstallations the maximum number of StorageDevices to
+     * install concurrently
+     * @param fanOutWindow the maximum number of MiB a fast StorageDevice may be
+     * ahead of the slowest StorageDevice when copying the system image files
+     * to concurrently installed StorageDevices (0 disables reading the system
+     * image files only once for all StorageDevices)
+     * @param verify if the installed system files should be verified against
+     * the MD5 sums of the system source
+     * @param stationMode if <tt>true</tt>, the Installer keeps running after
+     * installing the StorageDevices of the device list and installs every
+     * StorageDevice passed to {@link #addStorageDevice(StorageDevice)} until
+     * {@link #stopStationMode()} is called
      */
     public Installer(SystemSource source, List<StorageDevice> deviceList,
             String exchangePartitionLabel, String exchangePartitionFileSystem,
@@ -56,7 +105,8 @@ public class Installer extends InstallerOrUpgrader
             int exchangePartitionSize, boolean copyExchangePartition,
             int autoNumberStart, int autoNumberIncrement,
             String autoNumberPattern, boolean copyDataPartition,
-            DataPartitionMode dataPartitionMode) {
+            DataPartitionMode dataPartitionMode, int parallelInstallations,
+            int fanOutWindow, boolean verify, boolean stationMode) {
         super(source, deviceList, exchangePartitionLabel,
                 exchangePartitionFileSystem, dataPartitionFileSystem,
                 dlCopyGUI);
@@ -67,38 +117,133 @@ public class Installer extends InstallerOrUpgrader
         this.autoNumber = autoNumberStart;
         this.copyDataPartition = copyDataPartition;
         this.dataPartitionMode = dataPartitionMode;
+        this.parallelInstallations = Math.max(1, parallelInstallations);
+        if ((fanOutWindow > 0) && (this.parallelInstallations > 1)
+                && (stationMode || (deviceListSize > 1))) {
+            fanOutCopier = new FanOutCopier(dlCopyGUI, fanOutWindow);
+        } else {
+            fanOutCopier = null;
+        }
+        this.verify = verify;
+        finishedAutoNumber = autoNumberStart;
+        stationQueue = stationMode
+                ? new LinkedBlockingQueue<StorageDevice>() : null;
+    }
+
+    /**
+     * adds a StorageDevice to the installation queue of the station mode
+     *
+     * @param storageDevice the StorageDevice to install
+     */
+    public void addStorageDevice(StorageDevice storageDevice) {
+        if (stationQueue == null) {
+            throw new IllegalStateException("not in station mode");
+        }
+        stationQueue.add(storageDevice);
+    }
+
+    /**
+     * stops the station mode, the Installer finishes after the installations
+     * that are already running
+     */
+    public void stopStationMode() {
+        stationStopped = true;
     }
 
     @Override
     protected Void doInBackground() throws Exception {
         inhibit = new LogindInhibit("Installing");
+        stationStart = System.currentTimeMillis();
 
         dlCopyGUI.showInstallProgress();
 
-        String currentExchangePartitionLabel = exchangePartitionLabel;
-        for (StorageDevice storageDevice : deviceList) {
+        // All devices are handled by a fixed size thread pool. Every device
+        // has its own task state (FileCopier, exchange partition label, ...)
+        // so that a failure on one device doesn't affect the other devices.
+        int threadCount = stationQueue == null
+                ? Math.min(parallelInstallations, deviceListSize)
+                : parallelInstallations;
+        ExecutorService executorService
+                = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        List<Future<?>> futures = new ArrayList<>();
+        if (verify) {
+            // Verification of one device runs in the background while the
+            // next device is written. Every device is read by its own
+            // verification thread (as many as parallel installations), the
+            // hash threads use all CPU cores for the MD5 sums of all devices.
+            verifyExecutor = Executors.newFixedThreadPool(
+                    Math.max(1, threadCount));
+            hashExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            throughputDatabase = new ThroughputDatabase();
+        } catch (SQLException ex) {
+            // we can install without the database, we just can't predict
+            LOGGER.log(Level.WARNING, "could not open throughput database", ex);
+        }
+        try {
+            plannedBytes = getPlannedBytes();
+            List<InstallTask> installTasks = new ArrayList<>();
+            for (StorageDevice storageDevice : deviceList) {
+                // auto numbering (in the order of the device list)
+                InstallTask installTask = createInstallTask(storageDevice);
+                if (installTask != null) {
+                    installTasks.add(installTask);
+                }
+            }
 
-            // update overall progress message
-            dlCopyGUI.installingDeviceStarted(storageDevice);
+            // Longest job first: When the slowest devices start first, the
+            // fast devices fill the gaps and the whole batch finishes
+            // earlier. Devices without history are treated as the slowest.
+            Collections.sort(installTasks, new Comparator<InstallTask>() {
+                @Override
+                public int compare(InstallTask task1, InstallTask task2) {
+                    long duration1 = task1.predictedDuration < 0
+                            ? Long.MAX_VALUE : task1.predictedDuration;
+                    long duration2 = task2.predictedDuration < 0
+                            ? Long.MAX_VALUE : task2.predictedDuration;
+                    return Long.compare(duration2, duration1);
+                }
+            });
+            for (InstallTask installTask : installTasks) {
+                futures.add(executorService.submit(installTask));
+            }
 
-            // auto numbering
-            if (!autoNumberPattern.isEmpty()) {
-                currentExchangePartitionLabel = exchangePartitionLabel.replace(
-                        autoNumberPattern, String.valueOf(autoNumber));
-                autoNumber += autoNumberIncrement;
+            if (stationQueue != null) {
+                runStation(executorService, futures);
             }
 
-            String errorMessage = null;
-            try {
-                DLCopy.copyToStorageDevice(source, fileCopier, storageDevice,
-                        currentExchangePartitionLabel, this, dlCopyGUI);
-            } catch (InterruptedException | IOException |
-                    DBusException exception) {
-                LOGGER.log(Level.WARNING, "", exception);
-                errorMessage = exception.getMessage();
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.SEVERE, "", ex);
+                }
             }
 
-            dlCopyGUI.installingDeviceFinished(errorMessage, autoNumber);
+            // wait for the verifications still running in the background
+            List<Future<?>> pendingVerifications;
+            synchronized (verifyFutures) {
+                pendingVerifications = new ArrayList<>(verifyFutures);
+            }
+            for (Future<?> future : pendingVerifications) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.SEVERE, "", ex);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            if (verifyExecutor != null) {
+                verifyExecutor.shutdownNow();
+                hashExecutor.shutdownNow();
+            }
+            if (throughputDatabase != null) {
+                throughputDatabase.close();
+            }
+            source.unmountTmpPartitions();
         }
 
         return null;
@@ -113,33 +258,70 @@ public class Installer extends InstallerOrUpgrader
     }
 
     @Override
-    public void propertyChange(PropertyChangeEvent evt) {
-        if (ProcessExecutor.LINE.equals(evt.getPropertyName())) {
-            // store current cp progress line
-            // (will be pattern matched later when needed)
-            String line = (String) evt.getNewValue();
-            dlCopyGUI.setInstallCopyLine(line);
-        }
-    }
-
-    @Override
-    public void showCreatingFileSystems() {
+    public void showCreatingFileSystems(StorageDevice storageDevice) {
         dlCopyGUI.showInstallCreatingFileSystems();
+        showDeviceProgress(storageDevice, "Creating_File_Systems");
+        startPhase(storageDevice, "file systems", 0);
     }
 
     @Override
-    public void showCopyingFiles(FileCopier fileCopier) {
+    public void showCopyingFiles(
+            StorageDevice storageDevice, FileCopier fileCopier) {
         dlCopyGUI.showInstallFileCopy(fileCopier);
+        showDeviceProgress(storageDevice, "Copying_Files");
+        DeviceMeasurement measurement = measurements.get(storageDevice);
+        startPhase(storageDevice, (measurement != null)
+                && measurement.discarded ? PHASE_SYSTEM_FILES_DISCARDED
+                        : PHASE_SYSTEM_FILES, source.getSystemSize());
     }
 
     @Override
-    public void showUnmounting() {
+    public void showUnmounting(StorageDevice storageDevice) {
         dlCopyGUI.showInstallUnmounting();
+        showDeviceProgress(storageDevice, "Unmounting_File_Systems");
+        startPhase(storageDevice, "unmounting", 0);
     }
 
     @Override
-    public void showWritingBootSector() {
+    public void showWritingBootSector(StorageDevice storageDevice) {
         dlCopyGUI.showInstallWritingBootSector();
+        showDeviceProgress(storageDevice, "Writing_Boot_Sector");
+        startPhase(storageDevice, "boot sector", 0);
+    }
+
+    /**
+     * called when copying the data partition to a StorageDevice starts
+     *
+     * @param storageDevice the StorageDevice
+     */
+    public void showCopyingDataPartition(StorageDevice storageDevice) {
+        startPhase(storageDevice, "data partition", 0);
+    }
+
+    /**
+     * called when copying the data partition to a StorageDevice finished
+     *
+     * @param storageDevice the StorageDevice
+     * @param bytes the number of bytes copied
+     */
+    public void dataPartitionCopied(StorageDevice storageDevice, long bytes) {
+        DeviceMeasurement measurement = measurements.get(storageDevice);
+        if (measurement != null) {
+            measurement.addBytes(bytes);
+        }
+    }
+
+    /**
+     * called when all blocks of a StorageDevice were discarded before
+     * creating the file systems
+     *
+     * @param storageDevice the StorageDevice
+     */
+    public void deviceDiscarded(StorageDevice storageDevice) {
+        DeviceMeasurement measurement = measurements.get(storageDevice);
+        if (measurement != null) {
+            measurement.discarded = true;
+        }
     }
 
     @Override
@@ -170,6 +352,16 @@ public class Installer extends InstallerOrUpgrader
         return copyDataPartition;
     }
 
+    /**
+     * returns the FanOutCopier for the system image files or <tt>null</tt>, if
+     * the system image files are copied separately for every StorageDevice
+     *
+     * @return the FanOutCopier for the system image files or <tt>null</tt>
+     */
+    public FanOutCopier getFanOutCopier() {
+        return fanOutCopier;
+    }
+
     /**
      * returns the mode for the data partition to set in the bootloaders config
      *
@@ -178,4 +370,344 @@ public class Installer extends InstallerOrUpgrader
     public DataPartitionMode getDataPartitionMode() {
         return dataPartitionMode;
     }
+
+    private void showDeviceProgress(StorageDevice storageDevice, String key) {
+        dlCopyGUI.setInstallingDeviceProgress(
+                storageDevice, DLCopy.STRINGS.getString(key));
+    }
+
+    private long getPlannedBytes() {
+        long bytes = source.getSystemSize();
+        Partition dataPartition = source.getDataPartition();
+        if (copyDataPartition && (dataPartition != null)) {
+            bytes += dataPartition.getUsedSpace(false);
+        }
+        return bytes;
+    }
+
+    private long predictDuration(StorageDevice storageDevice, long bytes) {
+        if (throughputDatabase == null) {
+            return -1;
+        }
+        try {
+            long duration = throughputDatabase.predictDuration(
+                    storageDevice, bytes);
+            LOGGER.log(Level.INFO, "predicted installation time of {0}: {1}",
+                    new Object[]{storageDevice.getDevice(), duration < 0
+                                ? "unknown" : (duration / 1000) + " s"});
+            return duration;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return -1;
+        }
+    }
+
+    private void startPhase(StorageDevice storageDevice, String phase,
+            long bytes) {
+        DeviceMeasurement measurement = measurements.get(storageDevice);
+        if (measurement != null) {
+            measurement.startPhase(phase, bytes);
+        }
+    }
+
+    private void storeMeasurement(StorageDevice storageDevice) {
+        DeviceMeasurement measurement = measurements.remove(storageDevice);
+        if ((measurement == null) || (throughputDatabase == null)) {
+            return;
+        }
+        measurement.finish();
+        try {
+            long totalBytes = 0;
+            for (Phase phase : measurement.phases) {
+                throughputDatabase.store(storageDevice, phase.name,
+                        phase.bytes, phase.duration);
+                totalBytes += phase.bytes;
+            }
+            throughputDatabase.store(storageDevice,
+                    ThroughputDatabase.PHASE_TOTAL, totalBytes,
+                    measurement.getDuration());
+            logDiscardGain(storageDevice);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+    }
+
+    private void logDiscardGain(StorageDevice storageDevice)
+            throws SQLException {
+        // (averages of all installations on this model)
+        double discardedThroughput = throughputDatabase.getAverageThroughput(
+                storageDevice, PHASE_SYSTEM_FILES_DISCARDED);
+        double throughput = throughputDatabase.getAverageThroughput(
+                storageDevice, PHASE_SYSTEM_FILES);
+        if ((discardedThroughput < 0) || (throughput <= 0)) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "system file throughput of {0} {1}: "
+                + "{2,number,0.0} MB/s after discard, {3,number,0.0} MB/s "
+                + "without discard ({4,number,+0;-0}%)", new Object[]{
+                    storageDevice.getVendor(), storageDevice.getModel(),
+                    discardedThroughput, throughput,
+                    (discardedThroughput / throughput - 1) * 100});
+    }
+
+    private void runStation(ExecutorService executorService,
+            List<Future<?>> futures) throws InterruptedException {
+        // Every hot-plugged device is installed as soon as it is ready. The
+        // thread pool is never drained between devices, so a free slot is
+        // immediately used by the next device in the queue.
+        // (the station mode is left when the Installer is cancelled, even
+        // while waiting for the next device)
+        while (!stationStopped && !isCancelled()) {
+            StorageDevice storageDevice
+                    = stationQueue.poll(1, TimeUnit.SECONDS);
+            if (isCancelled()) {
+                break;
+            }
+            if (storageDevice != null) {
+                InstallTask installTask = createInstallTask(storageDevice);
+                if (installTask != null) {
+                    futures.add(executorService.submit(installTask));
+                }
+            }
+
+            // forget about finished installations (the station may run for
+            // a very long time)
+            for (Iterator<Future<?>> iterator = futures.iterator();
+                    iterator.hasNext();) {
+                Future<?> future = iterator.next();
+                if (future.isDone()) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        LOGGER.log(Level.SEVERE, "", ex);
+                    }
+                    iterator.remove();
+                }
+            }
+        }
+        LOGGER.info(isCancelled()
+                ? "station mode cancelled" : "station mode stopped");
+    }
+
+    private synchronized InstallTask createInstallTask(
+            StorageDevice storageDevice) {
+        if (!activeDevices.add(storageDevice.getDevice())) {
+            LOGGER.log(Level.INFO, "{0} is already being installed",
+                    storageDevice.getDevice());
+            return null;
+        }
+        String currentExchangePartitionLabel = exchangePartitionLabel;
+        if (!autoNumberPattern.isEmpty()) {
+            currentExchangePartitionLabel = exchangePartitionLabel.replace(
+                    autoNumberPattern, String.valueOf(autoNumber));
+            autoNumber += autoNumberIncrement;
+        }
+        return new InstallTask(storageDevice, currentExchangePartitionLabel,
+                autoNumber, predictDuration(storageDevice, plannedBytes));
+    }
+
+    private void reportFinished(StorageDevice storageDevice,
+            String errorMessage, int nextAutoNumber) {
+        int autoNumberStart;
+        synchronized (this) {
+            activeDevices.remove(storageDevice.getDevice());
+            // devices may finish out of order, always keep the highest number
+            finishedAutoNumber = Math.max(finishedAutoNumber, nextAutoNumber);
+            autoNumberStart = finishedAutoNumber;
+            if ((stationQueue != null) && (errorMessage == null)) {
+                stationDeviceCount++;
+                double hours = Math.max(1,
+                        System.currentTimeMillis() - stationStart) / 3600000d;
+                LOGGER.log(Level.INFO, "station mode: {0} devices installed "
+                        + "({1,number,0.0} devices per hour)",
+                        new Object[]{stationDeviceCount,
+                            stationDeviceCount / hours});
+            }
+        }
+        dlCopyGUI.installingDeviceFinished(
+                storageDevice, errorMessage, autoNumberStart);
+    }
+
+    private class InstallTask implements Runnable {
+
+        private final StorageDevice storageDevice;
+        private final String exchangePartitionLabel;
+        private final int nextAutoNumber;
+        private final long predictedDuration;
+        private final FileCopier fileCopier = new FileCopier();
+
+        public InstallTask(StorageDevice storageDevice,
+                String exchangePartitionLabel, int nextAutoNumber,
+                long predictedDuration) {
+            this.storageDevice = storageDevice;
+            this.exchangePartitionLabel = exchangePartitionLabel;
+            this.nextAutoNumber = nextAutoNumber;
+            this.predictedDuration = predictedDuration;
+        }
+
+        @Override
+        public void run() {
+
+            // update overall progress message
+            dlCopyGUI.installingDeviceStarted(storageDevice);
+            measurements.put(storageDevice, new DeviceMeasurement());
+
+            if (fanOutCopier != null) {
+                fanOutCopier.register(storageDevice);
+            }
+
+            String errorMessage = null;
+            try {
+                DLCopy.copyToStorageDevice(source, fileCopier, storageDevice,
+                        exchangePartitionLabel, Installer.this, dlCopyGUI);
+            } catch (InterruptedException | IOException |
+                    DBusException | RuntimeException exception) {
+                LOGGER.log(Level.WARNING, "", exception);
+                errorMessage = exception.getMessage();
+                if (errorMessage == null) {
+                    errorMessage = exception.toString();
+                }
+            } finally {
+                if (fanOutCopier != null) {
+                    // don't let the other installations wait for us
+                    fanOutCopier.deregister(storageDevice);
+                }
+            }
+
+            if (errorMessage == null) {
+                storeMeasurement(storageDevice);
+            } else {
+                // failed installations would spoil the statistics
+                measurements.remove(storageDevice);
+            }
+
+            if (verify && (errorMessage == null)) {
+                // the verification task reports the result of this device
+                synchronized (verifyFutures) {
+                    verifyFutures.add(verifyExecutor.submit(new VerifyTask(
+                            storageDevice, nextAutoNumber)));
+                }
+                return;
+            }
+
+            reportFinished(storageDevice, errorMessage, nextAutoNumber);
+        }
+    }
+
+    private class VerifyTask implements Runnable {
+
+        private final StorageDevice storageDevice;
+        private final int nextAutoNumber;
+
+        public VerifyTask(StorageDevice storageDevice, int nextAutoNumber) {
+            this.storageDevice = storageDevice;
+            this.nextAutoNumber = nextAutoNumber;
+        }
+
+        @Override
+        public void run() {
+            showDeviceProgress(storageDevice, "Verifying_Files");
+            String errorMessage = null;
+            long start = System.currentTimeMillis();
+            try {
+                List<String> failedFiles = verifySystemPartition();
+                if (!failedFiles.isEmpty()) {
+                    errorMessage = MessageFormat.format(
+                            DLCopy.STRINGS.getString("Error_Verification"),
+                            failedFiles.size(), failedFiles.get(0));
+                }
+            } catch (InterruptedException | IOException |
+                    DBusException | RuntimeException exception) {
+                LOGGER.log(Level.WARNING, "", exception);
+                errorMessage = exception.getMessage();
+                if (errorMessage == null) {
+                    errorMessage = exception.toString();
+                }
+            }
+            LOGGER.log(Level.INFO, "verification of {0} took {1} ms",
+                    new Object[]{storageDevice.getDevice(),
+                        System.currentTimeMillis() - start});
+
+            reportFinished(storageDevice, errorMessage, nextAutoNumber);
+        }
+
+        private List<String> verifySystemPartition() throws DBusException,
+                IOException, InterruptedException {
+            // The system partition was unmounted at the end of the
+            // installation, which also dropped its pages from the page cache.
+            // Mounting it again here makes sure that we read the data back
+            // from the device and not just the data we wrote to the cache.
+            StorageDevice device = new StorageDevice(storageDevice.getDevice());
+            Partition systemPartition = device.getSystemPartition();
+            if (systemPartition == null) {
+                throw new IOException("could not find system partition on "
+                        + storageDevice.getDevice());
+            }
+            MountInfo mountInfo = systemPartition.mount();
+            try {
+                return Md5Verifier.verify(
+                        mountInfo.getMountPath(), hashExecutor);
+            } finally {
+                if (!mountInfo.alreadyMounted()) {
+                    DLCopy.umount(systemPartition, dlCopyGUI);
+                }
+            }
+        }
+    }
+
+    private static class Phase {
+
+        private final String name;
+        private final long start;
+        private long bytes;
+        private long duration;
+
+        public Phase(String name, long bytes) {
+            this.name = name;
+            this.bytes = bytes;
+            start = System.currentTimeMillis();
+        }
+    }
+
+    // the phases of the installation on one StorageDevice
+    private static class DeviceMeasurement {
+
+        private final long start = System.currentTimeMillis();
+        private final List<Phase> phases = new ArrayList<>();
+        private Phase currentPhase;
+        private long end;
+        private volatile boolean discarded;
+
+        public DeviceMeasurement() {
+            // everything before creating the file systems
+            startPhase("partitioning", 0);
+        }
+
+        public synchronized void startPhase(String name, long bytes) {
+            finishPhase();
+            currentPhase = new Phase(name, bytes);
+            phases.add(currentPhase);
+        }
+
+        public synchronized void addBytes(long bytes) {
+            currentPhase.bytes += bytes;
+        }
+
+        public synchronized void finish() {
+            finishPhase();
+            currentPhase = null;
+            end = System.currentTimeMillis();
+        }
+
+        public long getDuration() {
+            return end - start;
+        }
+
+        private void finishPhase() {
+            if (currentPhase != null) {
+                currentPhase.duration
+                        = System.currentTimeMillis() - currentPhase.start;
+            }
+        }
+    }
 }
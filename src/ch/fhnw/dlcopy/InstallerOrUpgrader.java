@@ -87,25 +87,33 @@ public abstract class InstallerOrUpgrader
 
     /**
      * shows that file systems are being created
+     *
+     * @param storageDevice the StorageDevice where file systems are created
      */
-    public abstract void showCreatingFileSystems();
+    public abstract void showCreatingFileSystems(StorageDevice storageDevice);
 
     /**
      * shows that files are being copied
      *
+     * @param storageDevice the StorageDevice where files are copied to
      * @param fileCopier the fileCopier used to copy files
      */
-    public abstract void showCopyingFiles(FileCopier fileCopier);
+    public abstract void showCopyingFiles(
+            StorageDevice storageDevice, FileCopier fileCopier);
 
     /**
      * shows that file systems are being unmounted
+     *
+     * @param storageDevice the StorageDevice where file systems are unmounted
      */
-    public abstract void showUnmounting();
+    public abstract void showUnmounting(StorageDevice storageDevice);
 
     /**
      * shows that the boot sector is written
+     *
+     * @param storageDevice the StorageDevice where the boot sector is written
      */
-    public abstract void showWritingBootSector();
+    public abstract void showWritingBootSector(StorageDevice storageDevice);
 
     /**
      * returns the selected file system of the exchange partition
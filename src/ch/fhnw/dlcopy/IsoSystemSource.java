@@ -152,7 +152,8 @@ public class IsoSystemSource extends SystemSource {
     }
 
     @Override
-    public void installExtlinux(Partition partition) throws IOException {
+    public synchronized void installExtlinux(Partition partition)
+            throws IOException {
         mountSystemImageIfNeeded();
         processExecutor.executeProcess("sync");
         String syslinuxDir = createSyslinuxDir(partition);
@@ -173,7 +174,7 @@ public class IsoSystemSource extends SystemSource {
     }
 
     @Override
-    public void unmountTmpPartitions() {
+    public synchronized void unmountTmpPartitions() {
         if (rootFsPath != null) {
             try {
                 processExecutor.executeScript(String.format(
@@ -201,7 +202,7 @@ public class IsoSystemSource extends SystemSource {
         }
     }
 
-    private void mountIsoImageIfNeeded() {
+    private synchronized void mountIsoImageIfNeeded() {
         if (mediaPath != null) {
             return;
         }
@@ -216,7 +217,7 @@ public class IsoSystemSource extends SystemSource {
         }
     }
 
-    private void mountSystemImageIfNeeded() {
+    private synchronized void mountSystemImageIfNeeded() {
         mountIsoImageIfNeeded();
         if (rootFsPath != null) {
             return;
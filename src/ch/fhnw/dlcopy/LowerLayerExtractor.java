@@ -0,0 +1,367 @@
+package ch.fhnw.dlcopy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies files from the read-only branches of an aufs union (the squashfs
+ * images of the system partition) directly into its writable branch (the
+ * data partition), exactly as if they were copied up by aufs. Whiteouts and
+ * opaque directories in the branches are honoured, entries in an upper
+ * branch always hide entries in the lower branches. The union must not be
+ * mounted while extracting.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class LowerLayerExtractor {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(LowerLayerExtractor.class.getName());
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final String OPAQUE_MARKER = ".wh..wh..opq";
+    // log progress only every so many entries
+    private static final long LOG_INTERVAL = 1000;
+
+    private final Path writableBranch;
+    private final List<Path> readOnlyBranches = new ArrayList<>();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong identical = new AtomicLong();
+    private final ConcurrentLinkedQueue<IOException> failures
+            = new ConcurrentLinkedQueue<>();
+    private SquashFSIndex reference;
+
+    /**
+     * creates a new LowerLayerExtractor
+     *
+     * @param writableBranch the writable branch (the mount point of the data
+     * partition)
+     * @param readOnlyBranches the read-only branches, the uppermost first
+     */
+    public LowerLayerExtractor(String writableBranch,
+            List<String> readOnlyBranches) {
+        this.writableBranch = Paths.get(writableBranch);
+        for (String readOnlyBranch : readOnlyBranches) {
+            this.readOnlyBranches.add(Paths.get(readOnlyBranch));
+        }
+    }
+
+    /**
+     * sets the index of the system that replaces the read-only branches.
+     * Files that are identical to the files of this system are not extracted
+     * because the new system provides them anyway.
+     *
+     * @param reference the index of the new system or <tt>null</tt>, if all
+     * files should be extracted
+     */
+    public void setReference(SquashFSIndex reference) {
+        this.reference = reference;
+    }
+
+    /**
+     * extracts all files of a directory of the read-only branches that are
+     * visible in the union but not yet in the writable branch
+     *
+     * @param path the path of the directory relative to the union root (e.g.
+     * "home")
+     * @throws IOException if extracting any entry failed (the other entries
+     * are extracted nevertheless)
+     */
+    public void extract(String path) throws IOException {
+        long start = System.currentTimeMillis();
+        entries.set(0);
+        bytes.set(0);
+        skipped.set(0);
+        identical.set(0);
+        failures.clear();
+
+        // The directory itself may be hidden by the writable branch.
+        Path relativePath = Paths.get(path);
+        Path relativeParent = relativePath.getParent();
+        String name = relativePath.getFileName().toString();
+        Map<String, List<Path>> visibleEntries = getVisibleEntries(
+                writableBranch,
+                relativeParent == null ? Paths.get("") : relativeParent,
+                readOnlyBranches);
+        List<Path> branches = visibleEntries.get(name);
+        if (branches != null) {
+            if (relativeParent != null) {
+                createParents(relativeParent, branches.get(0));
+            }
+            // Copying mostly waits for the flash drive, more threads than
+            // processors keep its queue filled.
+            ForkJoinPool pool = new ForkJoinPool(
+                    4 * Runtime.getRuntime().availableProcessors());
+            try {
+                pool.invoke(new ExtractTask(relativePath, branches));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        LOGGER.log(Level.INFO, "extracted {0} entries ({1} byte) of {2} in "
+                + "{3} ms, skipped {4} unsupported entries and {5} files "
+                + "provided by the new system", new Object[]{
+                    entries.get(), bytes.get(), path,
+                    System.currentTimeMillis() - start, skipped.get(),
+                    identical.get()});
+
+        if (!failures.isEmpty()) {
+            IOException exception = new IOException(MessageFormat.format(
+                    "extracting {0} failed for {1} entries: {2}", path,
+                    failures.size(), failures.peek().getMessage()));
+            for (IOException failure : failures) {
+                exception.addSuppressed(failure);
+            }
+            throw exception;
+        }
+    }
+
+    // creates the missing parent directories of an extracted directory in
+    // the writable branch (with the attributes of the given read-only branch)
+    private void createParents(Path directory, Path branch)
+            throws IOException {
+        Path parent = directory.getParent();
+        if (parent != null) {
+            createParents(parent, branch);
+        }
+        Path destination = writableBranch.resolve(directory);
+        if (!Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectory(destination);
+            copyAttributes(branch.resolve(directory), destination);
+        }
+    }
+
+    /**
+     * returns the entries of a directory that are visible in the union and
+     * not hidden by the writable branch, together with all read-only branches
+     * that contribute to the entry (only more than one for directories)
+     *
+     * @param writableBranch the writable branch or <tt>null</tt>, if only the
+     * read-only branches are merged
+     * @param directory the directory, relative to the branches
+     * @param branches the read-only branches, the uppermost first
+     * @return the visible entries of the directory
+     */
+    static Map<String, List<Path>> getVisibleEntries(Path writableBranch,
+            Path directory, List<Path> branches) {
+
+        Map<String, List<Path>> visibleEntries = new LinkedHashMap<>();
+        Set<String> whiteouts = new HashSet<>();
+        Path writableDirectory = null;
+        if (writableBranch != null) {
+            writableDirectory = writableBranch.resolve(directory);
+            List<String> writableNames = list(writableDirectory);
+            if (writableNames.contains(OPAQUE_MARKER)) {
+                return visibleEntries;
+            }
+            addWhiteouts(writableNames, whiteouts);
+        }
+
+        for (Path branch : branches) {
+            Path branchDirectory = branch.resolve(directory);
+            List<String> names = list(branchDirectory);
+            for (String name : names) {
+                if (name.startsWith(WHITEOUT_PREFIX)
+                        || whiteouts.contains(name)) {
+                    continue;
+                }
+                boolean isDirectory
+                        = isDirectory(branchDirectory.resolve(name));
+                List<Path> entryBranches = visibleEntries.get(name);
+                if (entryBranches == null) {
+                    // a file in the writable branch hides everything, a
+                    // directory only files
+                    if ((writableDirectory != null)
+                            && isHidden(writableDirectory.resolve(name),
+                                    isDirectory)) {
+                        // also in the lower branches
+                        whiteouts.add(name);
+                        continue;
+                    }
+                    entryBranches = new ArrayList<>();
+                    entryBranches.add(branch);
+                    visibleEntries.put(name, entryBranches);
+                } else if (isDirectory && isDirectory(entryBranches.get(0)
+                        .resolve(directory).resolve(name))) {
+                    // directories of several branches are merged
+                    entryBranches.add(branch);
+                }
+            }
+            if (names.contains(OPAQUE_MARKER)) {
+                // the lower branches are hidden
+                break;
+            }
+            addWhiteouts(names, whiteouts);
+        }
+        return visibleEntries;
+    }
+
+    private static boolean isHidden(Path writableEntry, boolean isDirectory) {
+        return Files.exists(writableEntry, LinkOption.NOFOLLOW_LINKS)
+                && !(isDirectory && isDirectory(writableEntry));
+    }
+
+    private static void addWhiteouts(List<String> names,
+            Set<String> whiteouts) {
+        for (String name : names) {
+            if (name.startsWith(WHITEOUT_PREFIX)) {
+                whiteouts.add(name.substring(WHITEOUT_PREFIX.length()));
+            }
+        }
+    }
+
+    private static List<String> list(Path directory) {
+        List<String> names = new ArrayList<>();
+        String[] list = directory.toFile().list();
+        if (list != null) {
+            for (String name : list) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static boolean isDirectory(Path path) {
+        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static void copyAttributes(Path source, Path destination)
+            throws IOException {
+        PosixFileAttributes attributes = Files.readAttributes(source,
+                PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        setOwner(destination, attributes);
+        PosixFileAttributeView view = Files.getFileAttributeView(
+                destination, PosixFileAttributeView.class);
+        view.setPermissions(attributes.permissions());
+        view.setTimes(attributes.lastModifiedTime(),
+                attributes.lastAccessTime(), null);
+    }
+
+    private static void setOwner(Path path, PosixFileAttributes attributes)
+            throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(path,
+                PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        view.setOwner(attributes.owner());
+        view.setGroup(attributes.group());
+    }
+
+    private void fail(IOException exception) {
+        LOGGER.log(Level.WARNING, "", exception);
+        failures.add(exception);
+    }
+
+    private void countEntry(long size) {
+        bytes.addAndGet(size);
+        long count = entries.incrementAndGet();
+        if (count % LOG_INTERVAL == 0) {
+            LOGGER.log(Level.INFO, "extracted {0} entries ({1} byte)",
+                    new Object[]{count, bytes.get()});
+        }
+    }
+
+    // extracts a directory that is visible in one or more read-only branches
+    private class ExtractTask extends RecursiveAction {
+
+        private final Path directory;
+        private final List<Path> branches;
+
+        public ExtractTask(Path directory, List<Path> branches) {
+            this.directory = directory;
+            this.branches = branches;
+        }
+
+        @Override
+        protected void compute() {
+            Path source = branches.get(0).resolve(directory);
+            Path destination = writableBranch.resolve(directory);
+            try {
+                boolean created = false;
+                if (!Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createDirectory(destination);
+                    created = true;
+                }
+
+                // merge the directory contents of all branches
+                List<ExtractTask> tasks = new ArrayList<>();
+                for (Map.Entry<String, List<Path>> entry
+                        : getVisibleEntries(writableBranch, directory,
+                                branches).entrySet()) {
+                    Path childPath = directory.resolve(entry.getKey());
+                    Path childSource
+                            = entry.getValue().get(0).resolve(childPath);
+                    if (isDirectory(childSource)) {
+                        tasks.add(new ExtractTask(
+                                childPath, entry.getValue()));
+                    } else {
+                        // one failing file doesn't stop the others
+                        try {
+                            copyEntry(childPath, childSource,
+                                    writableBranch.resolve(childPath));
+                        } catch (IOException ex) {
+                            fail(ex);
+                        }
+                    }
+                }
+                invokeAll(tasks);
+
+                if (created) {
+                    // after the content, because it changes the times
+                    copyAttributes(source, destination);
+                    countEntry(0);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        private void copyEntry(Path path, Path source, Path destination)
+                throws IOException {
+            PosixFileAttributes attributes = Files.readAttributes(source,
+                    PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if ((reference != null) && reference.isIdentical(
+                    path.toString(), source, attributes)) {
+                // unchanged default, the new system provides the same file
+                identical.incrementAndGet();
+                return;
+            }
+            if (attributes.isSymbolicLink()) {
+                Files.createSymbolicLink(
+                        destination, Files.readSymbolicLink(source));
+                setOwner(destination, attributes);
+                countEntry(0);
+            } else if (attributes.isRegularFile()) {
+                // (also copies the owner, permissions and times)
+                Files.copy(source, destination,
+                        StandardCopyOption.COPY_ATTRIBUTES,
+                        LinkOption.NOFOLLOW_LINKS);
+                countEntry(attributes.size());
+            } else {
+                LOGGER.log(Level.WARNING, "skipping {0} (probably a named "
+                        + "pipe or unix domain socket, both are not "
+                        + "supported!)", source);
+                skipped.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.LernstickFileTools;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies the files of an installed system partition against the MD5 sums in
+ * its md5sum.txt.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class Md5Verifier {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(Md5Verifier.class.getName());
+
+    // The boot configuration files are changed during installation (isolinux
+    // to syslinux, data partition mode, ...) and would never match their
+    // original MD5 sums. Therefore we only verify the live system files
+    // (kernel, initrd and squashfs images).
+    private static final Pattern VERIFY_PATTERN = Pattern.compile("live/.*");
+
+    private Md5Verifier() {
+    }
+
+    /**
+     * verifies the files of a system partition against its md5sum.txt
+     *
+     * @param root the mount point of the system partition
+     * @param hashExecutor the ExecutorService used for calculating the MD5
+     * sums of several files concurrently
+     * @return the list of files that are missing or have a wrong MD5 sum
+     * @throws IOException if reading md5sum.txt fails
+     * @throws InterruptedException if the verification was interrupted
+     */
+    public static List<String> verify(String root,
+            ExecutorService hashExecutor)
+            throws IOException, InterruptedException {
+
+        List<String> failedFiles = new ArrayList<>();
+        File md5sumFile = new File(root, "md5sum.txt");
+        if (!md5sumFile.exists()) {
+            LOGGER.log(Level.WARNING,
+                    "{0} does not exist, skipping verification", md5sumFile);
+            return failedFiles;
+        }
+
+        List<String> paths = new ArrayList<>();
+        List<String> expectedSums = new ArrayList<>();
+        List<Future<String>> futures = new ArrayList<>();
+        for (String line : LernstickFileTools.readFile(md5sumFile)) {
+            // line format: "<md5 sum>  ./<path>"
+            String[] tokens = line.trim().split("\\s+", 2);
+            if (tokens.length != 2) {
+                continue;
+            }
+            String path = tokens[1].startsWith("./")
+                    ? tokens[1].substring(2) : tokens[1];
+            if (!VERIFY_PATTERN.matcher(path).matches()) {
+                continue;
+            }
+            paths.add(path);
+            expectedSums.add(tokens[0]);
+            final File file = new File(root, path);
+            futures.add(hashExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return file.exists()
+                            ? DLCopy.getMd5String(file.getPath())
+                            : null;
+                }
+            }));
+        }
+
+        for (int i = 0, size = futures.size(); i < size; i++) {
+            String md5 = null;
+            try {
+                md5 = futures.get(i).get();
+            } catch (ExecutionException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+            if (!expectedSums.get(i).equalsIgnoreCase(md5)) {
+                LOGGER.log(Level.WARNING,
+                        "verification of {0} failed (expected: {1}, got: {2})",
+                        new Object[]{paths.get(i), expectedSums.get(i), md5});
+                failedFiles.add(paths.get(i));
+            }
+        }
+        LOGGER.log(Level.INFO, "verified {0} files in {1}, {2} failed",
+                new Object[]{futures.size(), root, failedFiles.size()});
+        return failedFiles;
+    }
+}
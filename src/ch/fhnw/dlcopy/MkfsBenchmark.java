@@ -0,0 +1,272 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.dlcopy.MkfsProfile.MediumClass;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A benchmark for the mkfs profiles. It formats a loop-backed image on a
+ * medium with every profile (once like the ext3 system partition and once
+ * like the ext4 data partition), measures the time of mkfs and the copy
+ * throughput of the resulting file systems and selects the fastest profile
+ * as the default profile of the medium class. The copy right after mkfs
+ * also includes the background initialization of lazily initialized inode
+ * tables.
+ * <br>
+ * Usage (as root): <tt>java -cp DLCopy.jar ch.fhnw.dlcopy.MkfsBenchmark
+ * --medium USB_FLASH --directory /media/stick [--size 2048]
+ * [--copySize 512]</tt>
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class MkfsBenchmark {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(MkfsBenchmark.class.getName());
+    private static final int MEGA = 1024 * 1024;
+    private static final int BUFFER_SIZE = 4 * MEGA;
+
+    private final MediumClass mediumClass;
+    private final File directory;
+    private final long imageSize;
+    private final long copySize;
+
+    /**
+     * creates a new MkfsBenchmark
+     *
+     * @param mediumClass the medium class of the medium the image is created
+     * on
+     * @param directory a directory on the medium
+     * @param imageSize the size of the image (in byte)
+     * @param copySize the amount of data copied into the formatted image (in
+     * byte)
+     */
+    public MkfsBenchmark(MediumClass mediumClass, File directory,
+            long imageSize, long copySize) {
+        this.mediumClass = mediumClass;
+        this.directory = directory;
+        this.imageSize = imageSize;
+        this.copySize = copySize;
+    }
+
+    /**
+     * runs the benchmark
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        MediumClass mediumClass = null;
+        File directory = null;
+        long imageSize = 2048L * MEGA;
+        long copySize = 512L * MEGA;
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "--medium":
+                    mediumClass = MediumClass.valueOf(args[i + 1]);
+                    break;
+                case "--directory":
+                    directory = new File(args[i + 1]);
+                    break;
+                case "--size":
+                    imageSize = Long.parseLong(args[i + 1]) * MEGA;
+                    break;
+                case "--copySize":
+                    copySize = Long.parseLong(args[i + 1]) * MEGA;
+                    break;
+            }
+        }
+        if ((mediumClass == null) || (directory == null)) {
+            System.err.println("usage: MkfsBenchmark --medium <"
+                    + "USB_FLASH|SD_CARD|HDD|SSD> --directory <directory on "
+                    + "the medium> [--size <MiB>] [--copySize <MiB>]");
+            System.exit(2);
+        }
+
+        try {
+            MkfsProfile profile = new MkfsBenchmark(
+                    mediumClass, directory, imageSize, copySize).run();
+            System.out.println("selected profile for " + mediumClass + ": "
+                    + profile.getName());
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "", ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * benchmarks all profiles, stores the results and selects the fastest
+     * profile for the medium class
+     *
+     * @return the selected profile
+     * @throws IOException if the benchmark fails
+     */
+    public MkfsProfile run() throws IOException {
+        Properties settings = MkfsProfile.loadSettings();
+        MkfsProfile fastestProfile = null;
+        long fastestTime = Long.MAX_VALUE;
+        for (MkfsProfile profile : MkfsProfile.PROFILES) {
+            Result result = benchmark(profile);
+            String prefix = mediumClass.name() + '.' + profile.getName() + '.';
+            settings.setProperty(prefix + "systemFormat",
+                    String.valueOf(result.systemFormatTime));
+            settings.setProperty(prefix + "dataFormat",
+                    String.valueOf(result.dataFormatTime));
+            settings.setProperty(prefix + "systemCopy",
+                    String.valueOf(result.systemCopyTime));
+            settings.setProperty(prefix + "systemThroughput", String.format(
+                    "%.1f", result.getThroughput(result.systemCopyTime)));
+            settings.setProperty(prefix + "dataCopy",
+                    String.valueOf(result.dataCopyTime));
+            settings.setProperty(prefix + "dataThroughput", String.format(
+                    "%.1f", result.getThroughput(result.dataCopyTime)));
+            System.out.println(profile.getName() + ": " + result);
+
+            long totalTime = result.getTotalTime();
+            if (totalTime < fastestTime) {
+                fastestTime = totalTime;
+                fastestProfile = profile;
+            }
+        }
+        settings.setProperty(mediumClass.name(), fastestProfile.getName());
+        MkfsProfile.storeSettings(settings);
+        return fastestProfile;
+    }
+
+    private Result benchmark(MkfsProfile profile) throws IOException {
+        File image = File.createTempFile("mkfs-benchmark", ".img", directory);
+        try {
+            // a sparse image, mkfs has to write everything it needs
+            try (RandomAccessFile randomAccessFile
+                    = new RandomAccessFile(image, "rw")) {
+                randomAccessFile.setLength(imageSize);
+            }
+            String loopDevice = attachLoopDevice(image);
+            try {
+                Result result = new Result();
+
+                // system partition
+                List<String> command = new ArrayList<>();
+                command.add("/sbin/mkfs.ext3");
+                command.add("-F");
+                command.addAll(profile.getSystemOptions());
+                command.add(loopDevice);
+                result.systemFormatTime = execute(command);
+                result.systemCopyTime = measureCopy(loopDevice);
+
+                // data partition
+                command.clear();
+                command.add("/sbin/mkfs.ext4");
+                command.add("-F");
+                command.addAll(profile.getDataOptions());
+                command.add(loopDevice);
+                result.dataFormatTime = execute(command);
+                result.dataCopyTime = measureCopy(loopDevice);
+
+                return result;
+            } finally {
+                new ProcessExecutor().executeProcess(
+                        "losetup", "-d", loopDevice);
+            }
+        } finally {
+            image.delete();
+        }
+    }
+
+    private String attachLoopDevice(File image) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(true, true,
+                "losetup", "-f", "--show", image.getPath());
+        List<String> stdOut = processExecutor.getStdOutList();
+        if ((exitValue != 0) || stdOut.isEmpty()) {
+            throw new IOException("could not attach " + image
+                    + " to a loop device");
+        }
+        return stdOut.get(0).trim();
+    }
+
+    private long execute(List<String> command) throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        long start = System.currentTimeMillis();
+        int exitValue = processExecutor.executeProcess(true, true,
+                command.toArray(new String[command.size()]));
+        long duration = System.currentTimeMillis() - start;
+        if (exitValue != 0) {
+            LOGGER.severe(processExecutor.getOutput());
+            throw new IOException(command + " failed");
+        }
+        return duration;
+    }
+
+    private long measureCopy(String loopDevice) throws IOException {
+        Path mountPoint = Files.createTempDirectory("mkfs-benchmark");
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        try {
+            if (processExecutor.executeProcess(
+                    "mount", loopDevice, mountPoint.toString()) != 0) {
+                throw new IOException("could not mount " + loopDevice);
+            }
+            try {
+                // random data, so that compressing media can't cheat
+                byte[] data = new byte[BUFFER_SIZE];
+                new Random().nextBytes(data);
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long start = System.currentTimeMillis();
+                try (FileChannel channel = FileChannel.open(
+                        mountPoint.resolve("data"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    for (long written = 0; written < copySize;) {
+                        buffer.rewind();
+                        written += channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                return System.currentTimeMillis() - start;
+            } finally {
+                processExecutor.executeProcess("umount", loopDevice);
+            }
+        } finally {
+            Files.delete(mountPoint);
+        }
+    }
+
+    private class Result {
+
+        private long systemFormatTime;
+        private long systemCopyTime;
+        private long dataFormatTime;
+        private long dataCopyTime;
+
+        public long getTotalTime() {
+            return systemFormatTime + systemCopyTime
+                    + dataFormatTime + dataCopyTime;
+        }
+
+        // MB/s
+        public double getThroughput(long copyTime) {
+            return copyTime == 0 ? 0
+                    : ((double) copySize / MEGA) / (copyTime / 1000d);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mkfs system: %d ms, copy system: %d ms "
+                    + "(%.1f MB/s), mkfs data: %d ms, copy data: %d ms "
+                    + "(%.1f MB/s)", systemFormatTime, systemCopyTime,
+                    getThroughput(systemCopyTime), dataFormatTime,
+                    dataCopyTime, getThroughput(dataCopyTime));
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A set of mkfs options for the ext file systems of the system and data
+ * partitions. Which profile is used for a storage device depends on its
+ * medium class and can be tuned with the {@link MkfsBenchmark}.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class MkfsProfile {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(MkfsProfile.class.getName());
+    // the file system block size of profiles with a stride (mkfs would use
+    // 1 KiB blocks for small partitions)
+    private static final int STRIDE_BLOCK_SIZE = 4096;
+
+    /**
+     * the classes of storage media with different performance
+     * characteristics
+     */
+    public enum MediumClass {
+
+        /**
+         * USB flash drives
+         */
+        USB_FLASH,
+        /**
+         * SD memory cards
+         */
+        SD_CARD,
+        /**
+         * rotating hard disks
+         */
+        HDD,
+        /**
+         * solid state disks
+         */
+        SSD;
+
+        /**
+         * returns the medium class of a StorageDevice
+         *
+         * @param storageDevice the StorageDevice
+         * @return the medium class of the StorageDevice
+         */
+        public static MediumClass of(StorageDevice storageDevice) {
+            StorageDevice.Type type = storageDevice.getType();
+            if (type == null) {
+                return USB_FLASH;
+            }
+            switch (type) {
+                case SDMemoryCard:
+                    return SD_CARD;
+                case HardDrive:
+                    return isRotational(storageDevice) ? HDD : SSD;
+                default:
+                    return USB_FLASH;
+            }
+        }
+
+        private static boolean isRotational(StorageDevice storageDevice) {
+            File file = new File("/sys/block/" + storageDevice.getDevice()
+                    + "/queue/rotational");
+            try {
+                return !"0".equals(DLCopy.readOneLineFile(file));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * the file where the benchmark results and the selected profiles are
+     * stored
+     */
+    public static final File SETTINGS_FILE = new File(
+            System.getProperty("user.home") + File.separatorChar + ".dlcopy",
+            "mkfs-profiles.properties");
+
+    /**
+     * the profile with the mkfs default options
+     */
+    public static final MkfsProfile DEFAULT
+            = new MkfsProfile("default", false, true, 0, 0, 0);
+
+    /**
+     * all known profiles
+     */
+    public static final List<MkfsProfile> PROFILES;
+
+    static {
+        List<MkfsProfile> profiles = new ArrayList<>();
+        profiles.add(DEFAULT);
+        // don't initialize the inode tables and the journal when creating the
+        // file system (the kernel does it in the background later, ext3 has
+        // no group descriptor checksums and only skips the journal)
+        profiles.add(new MkfsProfile("lazy", true, true, 0, 0, 0));
+        // the system partition is only written during installation and
+        // upgrades
+        profiles.add(new MkfsProfile("lazy-nojournal", true, false, 0, 0, 0));
+        // the system partition contains only a few, very large files
+        profiles.add(new MkfsProfile(
+                "lazy-fewinodes", true, true, 1048576, 0, 0));
+        // align to the typical 4 MiB erase blocks of flash memory
+        // (in 4 KiB file system blocks)
+        profiles.add(new MkfsProfile(
+                "lazy-eraseblock", true, true, 0, 1024, 1024));
+        PROFILES = Collections.unmodifiableList(profiles);
+    }
+
+    private final String name;
+    private final boolean lazyInit;
+    private final boolean systemJournal;
+    private final int systemInodeRatio;
+    private final int stride;
+    private final int stripeWidth;
+    private boolean noDiscard;
+
+    /**
+     * creates a new MkfsProfile
+     *
+     * @param name the name of the profile
+     * @param lazyInit if the inode tables (data partition only) and the
+     * journal should be initialized lazily
+     * @param systemJournal if the system partition should have a journal
+     * @param systemInodeRatio the bytes per inode of the system partition
+     * (<tt>0</tt> uses the mkfs default)
+     * @param stride the RAID stride (in file system blocks, <tt>0</tt> uses
+     * the mkfs default)
+     * @param stripeWidth the RAID stripe width (in file system blocks,
+     * <tt>0</tt> uses the mkfs default)
+     */
+    public MkfsProfile(String name, boolean lazyInit, boolean systemJournal,
+            int systemInodeRatio, int stride, int stripeWidth) {
+        this.name = name;
+        this.lazyInit = lazyInit;
+        this.systemJournal = systemJournal;
+        this.systemInodeRatio = systemInodeRatio;
+        this.stride = stride;
+        this.stripeWidth = stripeWidth;
+    }
+
+    /**
+     * returns the profile to use for a StorageDevice
+     *
+     * @param storageDevice the StorageDevice
+     * @return the profile to use for a StorageDevice
+     */
+    public static MkfsProfile getProfile(StorageDevice storageDevice) {
+        MediumClass mediumClass = MediumClass.of(storageDevice);
+        MkfsProfile profile = getProfile(loadSettings().getProperty(
+                mediumClass.name(), getDefaultProfileName(mediumClass)));
+        LOGGER.log(Level.INFO, "mkfs profile of {0} ({1}): {2}",
+                new Object[]{storageDevice.getDevice(), mediumClass, profile});
+        return profile;
+    }
+
+    /**
+     * returns the profile with the given name
+     *
+     * @param name the name of the profile
+     * @return the profile with the given name or the default profile, if
+     * there is no profile with the given name
+     */
+    public static MkfsProfile getProfile(String name) {
+        for (MkfsProfile profile : PROFILES) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        LOGGER.log(Level.WARNING, "unknown mkfs profile \"{0}\"", name);
+        return DEFAULT;
+    }
+
+    /**
+     * loads the benchmark results and the selected profiles
+     *
+     * @return the benchmark results and the selected profiles
+     */
+    public static Properties loadSettings() {
+        Properties settings = new Properties();
+        if (SETTINGS_FILE.exists()) {
+            try (InputStream inputStream
+                    = new FileInputStream(SETTINGS_FILE)) {
+                settings.load(inputStream);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * stores the benchmark results and the selected profiles
+     *
+     * @param settings the benchmark results and the selected profiles
+     * @throws IOException if storing the settings fails
+     */
+    public static void storeSettings(Properties settings) throws IOException {
+        SETTINGS_FILE.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(SETTINGS_FILE)) {
+            settings.store(outputStream, "mkfs profiles");
+        }
+    }
+
+    /**
+     * returns a copy of this profile that tells mkfs not to discard the
+     * device blocks (because they have just been discarded)
+     *
+     * @return a copy of this profile that tells mkfs not to discard the
+     * device blocks
+     */
+    public MkfsProfile withoutDiscard() {
+        MkfsProfile profile = new MkfsProfile(name, lazyInit, systemJournal,
+                systemInodeRatio, stride, stripeWidth);
+        profile.noDiscard = true;
+        return profile;
+    }
+
+    /**
+     * returns a copy of this profile that aligns the file system to the erase
+     * blocks of flash memory
+     *
+     * @param eraseBlockSize the erase block size (in byte)
+     * @return a copy of this profile that aligns the file system to the erase
+     * blocks of flash memory
+     */
+    public MkfsProfile withEraseBlockSize(long eraseBlockSize) {
+        // (in file system blocks, their size is set with the stride)
+        int blocks = (int) (eraseBlockSize / STRIDE_BLOCK_SIZE);
+        MkfsProfile profile = new MkfsProfile(name, lazyInit, systemJournal,
+                systemInodeRatio, blocks, blocks);
+        profile.noDiscard = noDiscard;
+        return profile;
+    }
+
+    /**
+     * returns the name of the profile
+     *
+     * @return the name of the profile
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * returns the additional mkfs.ext3 options for the system partition
+     *
+     * @return the additional mkfs.ext3 options for the system partition
+     */
+    public List<String> getSystemOptions() {
+        List<String> options = new ArrayList<>();
+        if (!systemJournal) {
+            options.add("-O");
+            options.add("^has_journal");
+        }
+        if (systemInodeRatio > 0) {
+            options.add("-i");
+            options.add(String.valueOf(systemInodeRatio));
+        }
+        addExtendedOptions(options, false);
+        return options;
+    }
+
+    /**
+     * returns the additional mkfs.ext* options for the data partition
+     *
+     * @return the additional mkfs.ext* options for the data partition
+     */
+    public List<String> getDataOptions() {
+        List<String> options = new ArrayList<>();
+        addExtendedOptions(options, true);
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    // lazy_itable_init needs group descriptor checksums (uninit_bg), which
+    // mkfs.ext3 doesn't enable, so it is left out for the system partition
+    private void addExtendedOptions(List<String> options,
+            boolean lazyInodeTables) {
+        StringBuilder extendedOptions = new StringBuilder();
+        if (lazyInit) {
+            if (lazyInodeTables) {
+                extendedOptions.append("lazy_itable_init=1,");
+            }
+            extendedOptions.append("lazy_journal_init=1");
+        }
+        if (stride > 0) {
+            // the stride is counted in blocks of this size
+            options.add("-b");
+            options.add(String.valueOf(STRIDE_BLOCK_SIZE));
+            appendOption(extendedOptions, "stride=" + stride);
+        }
+        if (stripeWidth > 0) {
+            appendOption(extendedOptions, "stripe_width=" + stripeWidth);
+        }
+        if (noDiscard) {
+            appendOption(extendedOptions, "nodiscard");
+        }
+        if (extendedOptions.length() > 0) {
+            options.add("-E");
+            options.add(extendedOptions.toString());
+        }
+    }
+
+    private static void appendOption(StringBuilder options, String option) {
+        if (options.length() > 0) {
+            options.append(',');
+        }
+        options.append(option);
+    }
+
+    // used until the benchmark selected a profile for a medium class
+    private static String getDefaultProfileName(MediumClass mediumClass) {
+        switch (mediumClass) {
+            case HDD:
+                return DEFAULT.name;
+            default:
+                // flash media are slow to write, skipping the initialization
+                // of the inode tables saves most of the mkfs time
+                return "lazy";
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.Partition;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A planned MBR partition table of a storage device. The complete table is
+ * written with a single sfdisk call and verified against the partitions the
+ * kernel knows about.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class PartitionLayout {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(PartitionLayout.class.getName());
+    private static final long MEGA = 1024 * 1024;
+    // the kernel always counts in 512 byte sectors in /sys
+    private static final int SYS_SECTOR_SIZE = 512;
+    // a partition line of "sfdisk -d", e.g.
+    // "/dev/sdb1 : start=2048, size=18432, type=ef, bootable" (new sfdisk) or
+    // "/dev/sdb1 : start=     2048, size=    18432, Id=ef, bootable" (old)
+    private static final Pattern SFDISK_DUMP_PATTERN = Pattern.compile(
+            "(\\S+)\\s*:\\s*start=\\s*(\\d+),\\s*size=\\s*(\\d+),"
+            + "\\s*(?:type|Id)=\\s*(\\w+)(,\\s*bootable)?.*");
+
+    private final String device;
+    private final long deviceSize;
+    private final int sectorSize;
+    private final List<PlannedPartition> partitions = new ArrayList<>();
+    private long alignment = MEGA;
+
+    /**
+     * creates a new (empty) PartitionLayout
+     *
+     * @param device the device (e.g. "/dev/sdb")
+     * @param deviceSize the size of the device (in byte)
+     */
+    public PartitionLayout(String device, long deviceSize) {
+        this.device = device;
+        this.deviceSize = deviceSize;
+        sectorSize = getLogicalSectorSize(device);
+    }
+
+    /**
+     * adds an EFI partition (FAT32 "hidden" by using the EFI partition type)
+     *
+     * @param partitionDevice the device of the partition (e.g. "/dev/sdb1")
+     * @param startMiB the start of the partition (in MiB)
+     * @param endMiB the end of the partition (in MiB, exclusive)
+     */
+    public void addEfiPartition(String partitionDevice, long startMiB,
+            long endMiB) {
+        add(partitionDevice, startMiB, endMiB, "ef",
+                "vfat", Partition.EFI_LABEL);
+    }
+
+    /**
+     * adds an exchange partition
+     *
+     * @param partitionDevice the device of the partition (e.g. "/dev/sdb1")
+     * @param startMiB the start of the partition (in MiB)
+     * @param endMiB the end of the partition (in MiB, exclusive)
+     * @param fileSystem the file system of the exchange partition ("fat32",
+     * "exFAT" or "NTFS")
+     */
+    public void addExchangePartition(String partitionDevice, long startMiB,
+            long endMiB, String fileSystem) {
+        // (the label of the exchange partition changes with auto numbering)
+        if (fileSystem.equalsIgnoreCase("fat32")) {
+            add(partitionDevice, startMiB, endMiB, "c", "vfat", null);
+        } else {
+            // exFAT & NTFS
+            add(partitionDevice, startMiB, endMiB, "7",
+                    fileSystem.toLowerCase(), null);
+        }
+    }
+
+    /**
+     * adds a data partition
+     *
+     * @param partitionDevice the device of the partition (e.g. "/dev/sdb1")
+     * @param startMiB the start of the partition (in MiB)
+     * @param endMiB the end of the partition (in MiB, exclusive)
+     */
+    public void addDataPartition(String partitionDevice, long startMiB,
+            long endMiB) {
+        add(partitionDevice, startMiB, endMiB, "83",
+                "ext", Partition.PERSISTENCE_LABEL);
+    }
+
+    /**
+     * adds a system partition that uses the rest of the device
+     *
+     * @param partitionDevice the device of the partition (e.g. "/dev/sdb1")
+     * @param startMiB the start of the partition (in MiB)
+     */
+    public void addSystemPartition(String partitionDevice, long startMiB) {
+        add(partitionDevice, startMiB, -1, "83",
+                "ext", DLCopy.systemPartitionLabel);
+    }
+
+    /**
+     * aligns all partition boundaries to the erase block size of the flash
+     * memory. The start of every partition is rounded up and its end is
+     * rounded up from the aligned start plus the requested size, so that no
+     * partition gets smaller than requested. Only the system partition at
+     * the end of the device gets a little smaller.
+     *
+     * @param alignment the alignment (in byte, a multiple of 1 MiB)
+     */
+    public void setAlignment(long alignment) {
+        this.alignment = alignment;
+        long end = 0;
+        for (PlannedPartition partition : partitions) {
+            end = place(partition, end);
+        }
+    }
+
+    /**
+     * returns the devices of all partitions
+     *
+     * @return the devices of all partitions
+     */
+    public List<String> getPartitionDevices() {
+        List<String> devices = new ArrayList<>();
+        for (PlannedPartition partition : partitions) {
+            devices.add(partition.device);
+        }
+        return devices;
+    }
+
+    /**
+     * marks a partition as bootable (all other partitions are not bootable)
+     *
+     * @param partitionDevice the device of the partition (e.g. "/dev/sdb1")
+     */
+    public void setBootable(String partitionDevice) {
+        for (PlannedPartition partition : partitions) {
+            partition.bootable = partition.device.equals(partitionDevice);
+        }
+    }
+
+    /**
+     * returns the input script for sfdisk that creates this layout
+     *
+     * @return the input script for sfdisk that creates this layout
+     */
+    public String getSfdiskScript() {
+        // the old "start,size,type,bootable" format is understood by all
+        // sfdisk versions
+        StringBuilder script = new StringBuilder();
+        for (PlannedPartition partition : partitions) {
+            script.append(partition.start / sectorSize).append(',');
+            script.append(partition.size / sectorSize).append(',');
+            script.append(partition.type);
+            if (partition.bootable) {
+                script.append(",*");
+            }
+            script.append('\n');
+        }
+        return script.toString();
+    }
+
+    /**
+     * writes the partition table with one sfdisk call and verifies that the
+     * kernel uses the new partitions. The partition table is only written
+     * again if the kernel doesn't know the planned partitions.
+     *
+     * @throws IOException if writing or verifying the partition table fails
+     */
+    public void write() throws IOException {
+        String script = getSfdiskScript();
+        LOGGER.log(Level.INFO, "partition table of {0}:\n{1}",
+                new Object[]{device, script});
+        for (int i = 0; i < 2; i++) {
+            ProcessExecutor processExecutor = new ProcessExecutor();
+            int exitValue = processExecutor.executeScript(true, true,
+                    "/sbin/sfdisk --force -uS " + device + " << EOF\n"
+                    + script + "EOF");
+            if (exitValue != 0) {
+                LOGGER.severe(processExecutor.getOutput());
+                throw new IOException("sfdisk failed on " + device);
+            }
+
+            DeviceReadinessWaiter.waitForUdev();
+            if (matchesKernelView()) {
+                return;
+            }
+
+            // Some drives (e.g. Corsair Flash Voyager GT) are still busy when
+            // sfdisk wants the kernel to re-read the partition table.
+            // sfdisk exits with zero anyway, but the kernel still uses the
+            // old partitions. Most of the time an explicit re-read is enough.
+            LOGGER.log(Level.WARNING, "kernel doesn''t know the new "
+                    + "partitions of {0}, re-reading partition table", device);
+            new ProcessExecutor().executeProcess("partprobe", device);
+            DeviceReadinessWaiter.waitForUdev();
+            if (matchesKernelView()) {
+                return;
+            }
+        }
+        throw new IOException("kernel doesn't know the new partitions of "
+                + device);
+    }
+
+    /**
+     * checks if the partitions the kernel knows match this layout
+     *
+     * @return <tt>true</tt>, if the partitions the kernel knows match this
+     * layout, <tt>false</tt> otherwise
+     */
+    public boolean matchesKernelView() {
+        String deviceName = device.substring(5);
+        for (PlannedPartition partition : partitions) {
+            String partitionName = partition.device.substring(5);
+            File sysDirectory = new File("/sys/block/" + deviceName + '/'
+                    + partitionName);
+            try {
+                long start = Long.parseLong(DLCopy.readOneLineFile(
+                        new File(sysDirectory, "start")));
+                long size = Long.parseLong(DLCopy.readOneLineFile(
+                        new File(sysDirectory, "size")));
+                if ((start * SYS_SECTOR_SIZE != partition.start)
+                        || (size * SYS_SECTOR_SIZE != partition.size)) {
+                    LOGGER.log(Level.INFO, "{0}: planned start/size: {1}/{2},"
+                            + " kernel start/size: {3}/{4}", new Object[]{
+                                partitionName,
+                                partition.start / SYS_SECTOR_SIZE,
+                                partition.size / SYS_SECTOR_SIZE,
+                                start, size});
+                    return false;
+                }
+            } catch (IOException | NumberFormatException ex) {
+                LOGGER.log(Level.INFO, "{0} is unknown to the kernel: {1}",
+                        new Object[]{partitionName, ex.getMessage()});
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * checks if the storage device already has exactly this layout, i.e. the
+     * same partition table (start, size, type and boot flag of all
+     * partitions), known to the kernel, with the same file system types and
+     * labels. In this case the partition table doesn't have to be written
+     * again.
+     *
+     * @return <tt>true</tt>, if the storage device already has this layout,
+     * <tt>false</tt> otherwise
+     */
+    public boolean isPresent() {
+        long start = System.currentTimeMillis();
+        boolean present = matchesPartitionTable() && matchesKernelView()
+                && matchesFileSystems();
+        LOGGER.log(Level.INFO, "{0} {1} the planned layout (checked in {2} ms)",
+                new Object[]{device, present ? "already has" : "doesn't have",
+                    System.currentTimeMillis() - start});
+        return present;
+    }
+
+    private boolean matchesPartitionTable() {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
+                true, true, "/sbin/sfdisk", "-d", device);
+        if (exitValue != 0) {
+            return false;
+        }
+        int partitionCount = 0;
+        for (String line : processExecutor.getStdOutList()) {
+            Matcher matcher = SFDISK_DUMP_PATTERN.matcher(line.trim());
+            if (!matcher.matches()) {
+                continue;
+            }
+            long sectors = Long.parseLong(matcher.group(3));
+            if (sectors == 0) {
+                // empty slot in old sfdisk dumps
+                continue;
+            }
+            partitionCount++;
+            PlannedPartition partition = getPartition(matcher.group(1));
+            if ((partition == null)
+                    || (Long.parseLong(matcher.group(2)) * sectorSize
+                    != partition.start)
+                    || (sectors * sectorSize != partition.size)
+                    || !partition.type.equalsIgnoreCase(matcher.group(4))
+                    || (partition.bootable != (matcher.group(5) != null))) {
+                LOGGER.log(Level.INFO, "partition table differs: {0}", line);
+                return false;
+            }
+        }
+        return partitionCount == partitions.size();
+    }
+
+    private boolean matchesFileSystems() {
+        for (PlannedPartition partition : partitions) {
+            String fileSystem = getBlkidValue(partition.device, "TYPE");
+            if ((fileSystem == null)
+                    || !fileSystem.startsWith(partition.fileSystem)) {
+                LOGGER.log(Level.INFO, "file system of {0} differs: {1}",
+                        new Object[]{partition.device, fileSystem});
+                return false;
+            }
+            if ((partition.label != null) && !partition.label.equals(
+                    getBlkidValue(partition.device, "LABEL"))) {
+                LOGGER.log(Level.INFO, "label of {0} differs",
+                        partition.device);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private PlannedPartition getPartition(String partitionDevice) {
+        for (PlannedPartition partition : partitions) {
+            if (partition.device.equals(partitionDevice)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    private static String getBlkidValue(String device, String tag) {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(true, true,
+                "blkid", "-o", "value", "-s", tag, device);
+        List<String> stdOut = processExecutor.getStdOutList();
+        if ((exitValue != 0) || stdOut.isEmpty()) {
+            return null;
+        }
+        return stdOut.get(0).trim();
+    }
+
+    // endMiB < 0: use the rest of the device
+    private void add(String partitionDevice, long startMiB, long endMiB,
+            String type, String fileSystem, String label) {
+        PlannedPartition partition = new PlannedPartition(partitionDevice,
+                startMiB, endMiB, type, fileSystem, label);
+        long previousEnd = 0;
+        if (!partitions.isEmpty()) {
+            PlannedPartition previous = partitions.get(partitions.size() - 1);
+            previousEnd = previous.start + previous.size;
+        }
+        place(partition, previousEnd);
+        partitions.add(partition);
+    }
+
+    // places a partition behind the previous partition, returns its end
+    private long place(PlannedPartition partition, long previousEnd) {
+        // an aligned previous end may have moved into this partition
+        partition.start = align(
+                Math.max(partition.startMiB * MEGA, previousEnd));
+        long end = partition.endMiB < 0
+                ? (deviceSize / sectorSize) * sectorSize
+                : align(partition.start
+                        + (partition.endMiB - partition.startMiB) * MEGA);
+        partition.size = end - partition.start;
+        return end;
+    }
+
+    private long align(long offset) {
+        return ((offset + alignment - 1) / alignment) * alignment;
+    }
+
+    private static int getLogicalSectorSize(String device) {
+        File file = new File("/sys/block/" + device.substring(5)
+                + "/queue/logical_block_size");
+        try {
+            return Integer.parseInt(DLCopy.readOneLineFile(file));
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return SYS_SECTOR_SIZE;
+        }
+    }
+
+    private static class PlannedPartition {
+
+        private final String device;
+        private final long startMiB;
+        private final long endMiB;
+        private final String type;
+        private final String fileSystem;
+        private final String label;
+        private boolean bootable;
+        private long start;
+        private long size;
+
+        public PlannedPartition(String device, long startMiB, long endMiB,
+                String type, String fileSystem, String label) {
+            this.device = device;
+            this.startMiB = startMiB;
+            this.endMiB = endMiB;
+            this.type = type;
+            this.fileSystem = fileSystem;
+            this.label = label;
+        }
+    }
+}
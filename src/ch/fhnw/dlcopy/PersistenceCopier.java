@@ -0,0 +1,566 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.STRINGS;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies a directory tree (e.g. the data partition) and preserves owners,
+ * permissions, timestamps, extended attributes (including ACLs and the
+ * overlay attributes), symlinks, hard links and device nodes.
+ *
+ * Hidden entries directly in the source directory are not copied, exactly
+ * like the <tt>cp -a source/* destination</tt> command this class replaces.
+ * On a data partition these are the aufs metadata directories (e.g.
+ * <tt>.wh..wh.aufs</tt>, <tt>.wh..wh.orph</tt> and <tt>.wh..wh.plnk</tt>)
+ * that belong to the mounted union of the source.
+ *
+ * Several directories are copied concurrently, large files are copied with
+ * FileChannel.transferTo() so that the data never passes through the Java
+ * heap. Sparse files (e.g. virtual machine disk images) stay sparse, their
+ * holes are never written to the destination.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class PersistenceCopier {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(PersistenceCopier.class.getName());
+    private static final long TRANSFER_THRESHOLD = 1024 * 1024;
+    private static final long TRANSFER_CHUNK = 64 * 1024 * 1024;
+    private static final int SPARSE_BUFFER_SIZE = 1024 * 1024;
+    // the granularity of hole detection (the block size of ext4)
+    private static final int SPARSE_BLOCK_SIZE = 4096;
+    // the file type bits of "unix:mode"
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+    private static final int S_IFBLK = 0060000;
+    private static final int S_IFCHR = 0020000;
+    private static final int S_IFIFO = 0010000;
+
+    private final Path sourceRoot;
+    private final Path destinationRoot;
+    private final int threads;
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final ConcurrentMap<String, HardLink> hardLinks
+            = new ConcurrentHashMap<>();
+    private final List<Path[]> directories
+            = Collections.synchronizedList(new ArrayList<Path[]>());
+    private final Set<Path> sparseFiles = new HashSet<>();
+    private volatile long byteCount;
+    private volatile String currentFile;
+    private volatile IOException exception;
+    // the number of directories that are not yet finished
+    private final AtomicInteger pendingDirectories = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private ExecutorService executor;
+
+    /**
+     * creates a new PersistenceCopier
+     *
+     * @param source the source directory
+     * @param destination the destination directory
+     * @param threads the number of directories to copy concurrently
+     */
+    public PersistenceCopier(String source, String destination, int threads) {
+        this.sourceRoot = Paths.get(source);
+        this.destinationRoot = Paths.get(destination);
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * copies all files of the source directory to the destination directory
+     *
+     * @throws IOException if an I/O exception occurs
+     * @throws InterruptedException if copying was interrupted
+     */
+    public void copy() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        byteCount = scanByteCount();
+        scanSparseFiles();
+
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            submitDirectory(sourceRoot, destinationRoot);
+            finished.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        if (exception != null) {
+            throw exception;
+        }
+
+        copyExtendedAttributes();
+
+        // Creating files in a directory changes its timestamps. Therefore we
+        // set the directory timestamps at the very end, children first.
+        Collections.reverse(directories);
+        for (Path[] directory : directories) {
+            BasicFileAttributes attributes = Files.readAttributes(directory[0],
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            Files.getFileAttributeView(directory[1],
+                    BasicFileAttributeView.class).setTimes(
+                            attributes.lastModifiedTime(),
+                            attributes.lastAccessTime(), null);
+        }
+
+        LOGGER.log(Level.INFO, "copied {0} byte from {1} to {2} in {3} ms",
+                new Object[]{copiedBytes.get(), sourceRoot, destinationRoot,
+                    System.currentTimeMillis() - start});
+    }
+
+    /**
+     * returns the number of bytes already copied
+     *
+     * @return the number of bytes already copied
+     */
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    /**
+     * returns the number of bytes to copy (0 while the source is still being
+     * scanned)
+     *
+     * @return the number of bytes to copy
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * returns the path of the file currently copied, relative to the source
+     * directory
+     *
+     * @return the path of the file currently copied or <tt>null</tt>, if
+     * copying has not yet started
+     */
+    public String getCurrentFile() {
+        return currentFile;
+    }
+
+    private long scanByteCount() throws IOException {
+        final long[] count = new long[1];
+        Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory,
+                    BasicFileAttributes attributes) {
+                return isExcluded(directory)
+                        ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !isExcluded(file)) {
+                    count[0] += attributes.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    private void scanSparseFiles() {
+        // Java has no access to the number of allocated blocks of a file
+        // (st_blocks) and no SEEK_DATA/SEEK_HOLE. Therefore we let find list
+        // the "sparseness" (allocated size / apparent size) of all larger
+        // files in one run.
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(true, true, "find",
+                sourceRoot.toString(), "-type", "f",
+                "-size", "+" + (TRANSFER_THRESHOLD / 1024) + "k",
+                "-printf", "%S\t%p\n");
+        if (exitValue != 0) {
+            LOGGER.log(Level.WARNING,
+                    "could not search for sparse files in {0}", sourceRoot);
+        }
+        for (String line : processExecutor.getStdOutList()) {
+            int tabIndex = line.indexOf('\t');
+            if (tabIndex == -1) {
+                continue;
+            }
+            try {
+                if (Double.parseDouble(line.substring(0, tabIndex)) < 1.0) {
+                    sparseFiles.add(Paths.get(line.substring(tabIndex + 1)));
+                }
+            } catch (NumberFormatException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+        }
+        LOGGER.log(Level.INFO, "found {0} sparse files in {1}",
+                new Object[]{sparseFiles.size(), sourceRoot});
+    }
+
+    private void submitDirectory(final Path source, final Path destination) {
+        pendingDirectories.incrementAndGet();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (exception == null) {
+                        copyDirectory(source, destination);
+                    }
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "", ex);
+                    exception = ex;
+                } catch (InterruptedException ex) {
+                    LOGGER.log(Level.WARNING, "", ex);
+                    exception = new IOException(ex);
+                } finally {
+                    // (subdirectories were already counted in copyDirectory)
+                    if (pendingDirectories.decrementAndGet() == 0) {
+                        finished.countDown();
+                    }
+                }
+            }
+        });
+    }
+
+    private void copyDirectory(Path source, Path destination)
+            throws IOException, InterruptedException {
+        directories.add(new Path[]{source, destination});
+        try (DirectoryStream<Path> stream
+                = Files.newDirectoryStream(source)) {
+            for (Path child : stream) {
+                if (exception != null) {
+                    return;
+                }
+                if (isExcluded(child)) {
+                    LOGGER.log(Level.INFO, "skipping {0}", child);
+                    continue;
+                }
+                Path destinationChild
+                        = destination.resolve(child.getFileName());
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createDirectories(destinationChild);
+                    copyOwnerAndPermissions(child, destinationChild);
+                    submitDirectory(child, destinationChild);
+                } else {
+                    copyEntry(child, destinationChild);
+                }
+            }
+        }
+    }
+
+    private void copyEntry(Path source, Path destination)
+            throws IOException, InterruptedException {
+        currentFile = sourceRoot.relativize(source).toString();
+
+        if (Files.isSymbolicLink(source)) {
+            Files.deleteIfExists(destination);
+            Files.createSymbolicLink(
+                    destination, Files.readSymbolicLink(source));
+            copyOwner(source, destination);
+            BasicFileAttributes linkAttributes = Files.readAttributes(source,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            Files.getFileAttributeView(destination,
+                    BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                    .setTimes(linkAttributes.lastModifiedTime(),
+                            linkAttributes.lastAccessTime(), null);
+            return;
+        }
+
+        Map<String, Object> attributes = Files.readAttributes(source,
+                "unix:mode,nlink,ino,dev,rdev", LinkOption.NOFOLLOW_LINKS);
+        int mode = (Integer) attributes.get("mode");
+
+        HardLink hardLink = null;
+        if ((Integer) attributes.get("nlink") > 1) {
+            String key = attributes.get("dev") + ":" + attributes.get("ino");
+            HardLink newHardLink = new HardLink(destination);
+            hardLink = hardLinks.putIfAbsent(key, newHardLink);
+            if (hardLink != null) {
+                // another link to this inode was already claimed
+                hardLink.created.await();
+                if (hardLink.skipped) {
+                    // e.g. a hard linked socket
+                    LOGGER.log(Level.INFO, "skipping {0}", source);
+                    return;
+                }
+                if (!Files.exists(hardLink.destination,
+                        LinkOption.NOFOLLOW_LINKS)) {
+                    // creating the first link failed (and was reported)
+                    return;
+                }
+                Files.deleteIfExists(destination);
+                Files.createLink(destination, hardLink.destination);
+                return;
+            }
+            hardLink = newHardLink;
+        }
+
+        try {
+            switch (mode & S_IFMT) {
+                case S_IFCHR:
+                case S_IFBLK:
+                case S_IFIFO:
+                    createSpecialFile(destination, mode,
+                            (Long) attributes.get("rdev"));
+                    break;
+                case S_IFSOCK:
+                    // sockets are useless without the process that created
+                    // them
+                    LOGGER.log(Level.INFO, "skipping socket {0}", source);
+                    if (hardLink != null) {
+                        hardLink.skipped = true;
+                    }
+                    return;
+                default:
+                    copyFileContent(source, destination);
+            }
+            copyOwner(source, destination);
+            // (must come after changing the owner, chown clears the setuid
+            // and setgid bits)
+            Files.setAttribute(destination, "unix:mode", mode & 07777);
+            BasicFileAttributes basicAttributes = Files.readAttributes(
+                    source, BasicFileAttributes.class);
+            Files.getFileAttributeView(destination,
+                    BasicFileAttributeView.class).setTimes(
+                            basicAttributes.lastModifiedTime(),
+                            basicAttributes.lastAccessTime(), null);
+        } finally {
+            if (hardLink != null) {
+                hardLink.created.countDown();
+            }
+        }
+    }
+
+    // hidden entries directly in the source directory (see class comment)
+    private boolean isExcluded(Path path) {
+        return sourceRoot.equals(path.getParent())
+                && path.getFileName().toString().startsWith(".");
+    }
+
+    private void copyFileContent(Path source, Path destination)
+            throws IOException {
+        long size = Files.size(source);
+        if (size < TRANSFER_THRESHOLD) {
+            // for small files a plain copy is cheaper than a transfer
+            Files.copy(source, destination,
+                    StandardCopyOption.REPLACE_EXISTING);
+            copiedBytes.addAndGet(size);
+            return;
+        }
+        if (sparseFiles.contains(source)) {
+            copySparseFileContent(source, destination, size);
+            return;
+        }
+        try (FileChannel in = FileChannel.open(source,
+                StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            // transferTo() lets the kernel copy the data without passing it
+            // through the Java heap
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position,
+                        Math.min(TRANSFER_CHUNK, size - position), out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                copiedBytes.addAndGet(transferred);
+            }
+        }
+    }
+
+    private void copySparseFileContent(Path source, Path destination,
+            long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SPARSE_BUFFER_SIZE);
+        try (FileChannel in = FileChannel.open(source,
+                StandardOpenOption.READ);
+                RandomAccessFile outFile = new RandomAccessFile(
+                        destination.toFile(), "rw")) {
+            outFile.setLength(0);
+            FileChannel out = outFile.getChannel();
+            long position = 0;
+            int read;
+            while ((read = in.read(buffer, position)) > 0) {
+                // write only the blocks that are not completely zero
+                // (reading a hole returns zeros without any device I/O)
+                for (int blockStart = 0; blockStart < read;) {
+                    int blockEnd = Math.min(
+                            blockStart + SPARSE_BLOCK_SIZE, read);
+                    if (isZero(buffer, blockStart, blockEnd)) {
+                        blockStart = blockEnd;
+                        continue;
+                    }
+                    // extend the data run over all following non-zero blocks
+                    int runEnd = blockEnd;
+                    while (runEnd < read) {
+                        int nextEnd = Math.min(
+                                runEnd + SPARSE_BLOCK_SIZE, read);
+                        if (isZero(buffer, runEnd, nextEnd)) {
+                            break;
+                        }
+                        runEnd = nextEnd;
+                    }
+                    ByteBuffer run = buffer.duplicate();
+                    run.limit(runEnd);
+                    run.position(blockStart);
+                    long runPosition = position + blockStart;
+                    while (run.hasRemaining()) {
+                        runPosition += out.write(run, runPosition);
+                    }
+                    blockStart = runEnd;
+                }
+                position += read;
+                copiedBytes.addAndGet(read);
+                buffer.clear();
+            }
+            // (creates the trailing hole, if any)
+            outFile.setLength(size);
+        }
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int start, int end) {
+        int index = start;
+        for (; index + 8 <= end; index += 8) {
+            if (buffer.getLong(index) != 0) {
+                return false;
+            }
+        }
+        for (; index < end; index++) {
+            if (buffer.get(index) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void createSpecialFile(Path destination, int mode, long rdev)
+            throws IOException {
+        Files.deleteIfExists(destination);
+        String permissions = Integer.toOctalString(mode & 07777);
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue;
+        if ((mode & S_IFMT) == S_IFIFO) {
+            exitValue = processExecutor.executeProcess("mkfifo",
+                    "-m", permissions, destination.toString());
+        } else {
+            // decode the kernel's dev_t (see major() and minor() in glibc)
+            long major = ((rdev >> 8) & 0xfff) | ((rdev >> 32) & ~0xfffL);
+            long minor = (rdev & 0xff) | ((rdev >> 12) & ~0xffL);
+            exitValue = processExecutor.executeProcess("mknod",
+                    "-m", permissions, destination.toString(),
+                    ((mode & S_IFMT) == S_IFCHR) ? "c" : "b",
+                    String.valueOf(major), String.valueOf(minor));
+        }
+        if (exitValue != 0) {
+            String errorMessage = STRINGS.getString("Error_Creating_File");
+            errorMessage = MessageFormat.format(errorMessage, destination);
+            throw new IOException(errorMessage);
+        }
+    }
+
+    private static void copyOwnerAndPermissions(Path source, Path destination)
+            throws IOException {
+        copyOwner(source, destination);
+        // (must come after changing the owner, chown clears the setuid and
+        // setgid bits)
+        int mode = (Integer) Files.getAttribute(
+                source, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        Files.setAttribute(destination, "unix:mode", mode & 07777);
+    }
+
+    private static void copyOwner(Path source, Path destination)
+            throws IOException {
+        // We copy the numeric IDs, the user and group names of the running
+        // system are irrelevant for the copy.
+        Map<String, Object> ids = Files.readAttributes(
+                source, "unix:uid,gid", LinkOption.NOFOLLOW_LINKS);
+        Files.setAttribute(destination, "unix:uid", ids.get("uid"),
+                LinkOption.NOFOLLOW_LINKS);
+        Files.setAttribute(destination, "unix:gid", ids.get("gid"),
+                LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private void copyExtendedAttributes() throws IOException {
+        // Java can only access the "user." namespace of the extended
+        // attributes but we also need ACLs (system.*), file capabilities
+        // (security.*) and the overlay attributes (trusted.*).
+        // Therefore we dump and restore all of them in one run (only for the
+        // copied top level entries, the names are passed as arguments so
+        // that they need no quoting).
+        List<String> command = new ArrayList<>();
+        command.add("bash");
+        command.add("-c");
+        command.add("source=$1; destination=$2; shift 2; "
+                + "cd \"$source\" && "
+                + "{ getfattr -P -h -d -m - -e hex . && "
+                + "if [ $# -gt 0 ]; then "
+                + "getfattr -R -P -h -d -m - -e hex -- \"$@\"; fi; } | "
+                + "(cd \"$destination\" && setfattr -h --restore=-)");
+        // ($0 of the script)
+        command.add("bash");
+        command.add(sourceRoot.toString());
+        command.add(destinationRoot.toString());
+        try (DirectoryStream<Path> stream
+                = Files.newDirectoryStream(sourceRoot)) {
+            for (Path child : stream) {
+                if (!isExcluded(child)) {
+                    command.add(child.getFileName().toString());
+                }
+            }
+        }
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(true, true,
+                command.toArray(new String[command.size()]));
+        if (exitValue != 0) {
+            String errorMessage = "could not copy extended attributes from "
+                    + sourceRoot + " to " + destinationRoot;
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+    }
+
+    private static class HardLink {
+
+        private final Path destination;
+        private final CountDownLatch created = new CountDownLatch(1);
+        private volatile boolean skipped;
+
+        public HardLink(Path destination) {
+            this.destination = destination;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.STRINGS;
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.util.LernstickFileTools;
+import ch.fhnw.util.StorageDevice;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.MessageFormat;
+
+/**
+ * An ActionListener that periodically shows the progress of a
+ * PersistenceCopier
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class PersistenceCopyActionListener implements ActionListener {
+
+    private final PersistenceCopier persistenceCopier;
+    private final StorageDevice storageDevice;
+    private final DLCopyGUI dlCopyGUI;
+    private final long start;
+
+    /**
+     * creates a new PersistenceCopyActionListener
+     *
+     * @param persistenceCopier the PersistenceCopier
+     * @param storageDevice the StorageDevice the data partition is copied to
+     * @param dlCopyGUI the current GUI of DLCopy
+     */
+    public PersistenceCopyActionListener(PersistenceCopier persistenceCopier,
+            StorageDevice storageDevice, DLCopyGUI dlCopyGUI) {
+        this.persistenceCopier = persistenceCopier;
+        this.storageDevice = storageDevice;
+        this.dlCopyGUI = dlCopyGUI;
+        start = System.currentTimeMillis();
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        long duration = System.currentTimeMillis() - start;
+        long byteCount = persistenceCopier.getByteCount();
+        if (byteCount == 0) {
+            // the source is still being scanned
+            dlCopyGUI.setInstallPersistencyCopyProgress(
+                    -1, " ", " ", duration);
+            return;
+        }
+
+        long copiedBytes = persistenceCopier.getCopiedBytes();
+        int percent = (int) (copiedBytes * 100 / byteCount);
+        String progressInfo;
+        if (copiedBytes == 0) {
+            progressInfo = " ";
+        } else {
+            long remaining = duration * (byteCount - copiedBytes) / copiedBytes;
+            progressInfo = MessageFormat.format(
+                    STRINGS.getString("Copying_Data_Partition_Progress"),
+                    LernstickFileTools.getDataVolumeString(copiedBytes, 1),
+                    LernstickFileTools.getDataVolumeString(byteCount, 1),
+                    remaining / 60000, (remaining / 1000) % 60);
+        }
+        String currentFile = persistenceCopier.getCurrentFile();
+        dlCopyGUI.setInstallPersistencyCopyProgress(percent, progressInfo,
+                currentFile == null ? " " : currentFile, duration);
+        dlCopyGUI.setInstallingDeviceProgress(storageDevice,
+                MessageFormat.format(
+                        STRINGS.getString("Copying_Files_Progress"), percent));
+    }
+}
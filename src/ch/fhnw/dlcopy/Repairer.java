@@ -78,7 +78,8 @@ public class Repairer extends SwingWorker<Boolean, Void> {
                 dlCopyGUI.showRepairFormattingDataPartition();
                 DLCopy.formatPersistencePartition(
                         "/dev/" + dataPartition.getDeviceAndNumber(),
-                        dataPartitionFileSystem, dlCopyGUI);
+                        dataPartitionFileSystem,
+                        MkfsProfile.getProfile(storageDevice), dlCopyGUI);
             } else {
                 // remove files from data partition
                 dlCopyGUI.showRepairRemovingFiles();
@@ -89,21 +90,14 @@ public class Repairer extends SwingWorker<Boolean, Void> {
                 if (resetSystem && resetHome) {
                     // remove all files
                     // but keep "/lost+found/" and "persistence.conf"
-                    processExecutor.executeProcess("find", mountPoint,
-                            "!", "-regex", mountPoint,
-                            "!", "-regex", mountPoint + "/lost\\+found",
-                            "!", "-regex", mountPoint + "/persistence.conf",
-                            "-exec", "rm", "-rf", "{}", ";");
+                    new TreeDeleter(mountPoint,
+                            "lost\\+found", "persistence.conf").delete();
                 } else {
                     if (resetSystem) {
                         // remove all files but keep
                         // "/lost+found/", "persistence.conf" and "/home/"
-                        processExecutor.executeProcess("find", mountPoint,
-                                "!", "-regex", mountPoint,
-                                "!", "-regex", mountPoint + "/lost\\+found",
-                                "!", "-regex", mountPoint + "/persistence.conf",
-                                "!", "-regex", mountPoint + "/home.*",
-                                "-exec", "rm", "-rf", "{}", ";");
+                        new TreeDeleter(mountPoint, "lost\\+found",
+                                "persistence.conf", "home.*").delete();
                     }
                     if (resetHome) {
                         // only remove "/home/user/"
@@ -0,0 +1,227 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.STRINGS;
+
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plans shrinking an ext file system so that it fits exactly into a smaller
+ * partition. Instead of shrinking the file system to its minimum (and growing
+ * it again later) only the blocks behind the new end are moved. The number
+ * of these blocks is estimated from the block bitmaps before starting.
+ * The file system is planned one alignment unit smaller than the partition,
+ * so that the partitioning tool may align the partition end without cutting
+ * off the file system. The file system is grown into this margin later.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class ResizePlanner {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(ResizePlanner.class.getName());
+    // the kernel always counts in 512 byte sectors in /sys
+    private static final int SYS_SECTOR_SIZE = 512;
+    // e.g. "Block count:              3906304"
+    private static final Pattern BLOCK_COUNT_PATTERN
+            = Pattern.compile("Block count:\\s*(\\d+)");
+    // e.g. "Block size:               4096"
+    private static final Pattern BLOCK_SIZE_PATTERN
+            = Pattern.compile("Block size:\\s*(\\d+)");
+    // e.g. "  Free blocks: 33792-65535, 70000"
+    private static final Pattern FREE_BLOCKS_PATTERN
+            = Pattern.compile("\\s*Free blocks:\\s*(.*)");
+    // e.g. "Estimated minimum size of the filesystem: 123456"
+    private static final Pattern MINIMUM_SIZE_PATTERN
+            = Pattern.compile(".*minimum size of the filesystem:\\s*(\\d+)");
+
+    private final String devicePath;
+    private final List<long[]> freeRanges = new ArrayList<>();
+    private long blockSize;
+    private long blockCount;
+    private long minimumBlocks;
+    private long targetBlocks;
+    private long blocksToMove;
+
+    /**
+     * creates a new ResizePlanner
+     *
+     * @param devicePath the path to the device of the file system (e.g.
+     * "/dev/sdb2"), the file system must be unmounted and checked
+     */
+    public ResizePlanner(String devicePath) {
+        this.devicePath = devicePath;
+    }
+
+    /**
+     * plans to shrink the file system so that it fits into a partition
+     *
+     * @param partitionSize the new size of the partition (in byte)
+     * @param alignment the alignment the partitioning tool may use for the
+     * partition end (in byte)
+     * @return <tt>true</tt>, if the file system fits into the partition,
+     * <tt>false</tt> otherwise
+     * @throws IOException if reading the file system metadata fails
+     */
+    public boolean plan(long partitionSize, long alignment)
+            throws IOException {
+        readMetadata();
+        readMinimumSize();
+        targetBlocks = Math.min(
+                (partitionSize - alignment) / blockSize, blockCount);
+
+        // every used block behind the new end must be moved
+        long freeBehindEnd = 0;
+        for (long[] freeRange : freeRanges) {
+            long start = Math.max(freeRange[0], targetBlocks);
+            if (start <= freeRange[1]) {
+                freeBehindEnd += freeRange[1] - start + 1;
+            }
+        }
+        blocksToMove = blockCount - targetBlocks - freeBehindEnd;
+
+        LOGGER.log(Level.INFO, "{0}: {1} blocks of {2} byte, minimum {3} "
+                + "blocks, target {4} blocks, {5} blocks ({6} MiB) to move",
+                new Object[]{devicePath, blockCount, blockSize, minimumBlocks,
+                    targetBlocks, blocksToMove,
+                    blocksToMove * blockSize / DLCopy.MEGA});
+        return targetBlocks >= minimumBlocks;
+    }
+
+    /**
+     * returns <tt>true</tt>, if the file system must be shrinked
+     *
+     * @return <tt>true</tt>, if the file system must be shrinked,
+     * <tt>false</tt> otherwise
+     */
+    public boolean isShrinkNeeded() {
+        return targetBlocks < blockCount;
+    }
+
+    /**
+     * returns the planned size of the file system as needed by resize2fs
+     *
+     * @return the planned size of the file system (in file system blocks)
+     */
+    public String getTargetSize() {
+        return String.valueOf(targetBlocks);
+    }
+
+    /**
+     * returns the estimated number of blocks resize2fs has to move
+     *
+     * @return the estimated number of blocks resize2fs has to move
+     */
+    public long getBlocksToMove() {
+        return blocksToMove;
+    }
+
+    /**
+     * checks if the planned file system is smaller than its partition (e.g.
+     * because of the alignment margin)
+     *
+     * @param partition the device of the partition (e.g. "sdb2")
+     * @return <tt>true</tt>, if the file system must be grown to fill the
+     * partition, <tt>false</tt> otherwise
+     * @throws IOException if reading the partition size fails or the
+     * partition is smaller than the file system (it must not be used then,
+     * the end of the file system would be overwritten)
+     */
+    public boolean isGrowNeeded(String partition) throws IOException {
+        String sectors = DLCopy.readOneLineFile(
+                new File("/sys/class/block/" + partition + "/size"));
+        long partitionBlocks = Long.parseLong(sectors.trim())
+                * SYS_SECTOR_SIZE / blockSize;
+        LOGGER.log(Level.INFO, "{0} has now {1} blocks, file system {2} "
+                + "blocks", new Object[]{partition, partitionBlocks,
+                    targetBlocks});
+        if (partitionBlocks < targetBlocks) {
+            String errorMessage = MessageFormat.format(STRINGS.getString(
+                    "Error_Partition_Smaller_Than_File_System"), partition);
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+        return partitionBlocks > targetBlocks;
+    }
+
+    private void readMetadata() throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
+                true, true, "dumpe2fs", devicePath);
+        if (exitValue != 0) {
+            throw new IOException("dumpe2fs " + devicePath + " failed");
+        }
+        freeRanges.clear();
+        // the superblock also has a "Free blocks:" line (but only a count)
+        boolean inGroups = false;
+        for (String line : processExecutor.getStdOutList()) {
+            if (line.startsWith("Group ")) {
+                inGroups = true;
+                continue;
+            }
+            if (inGroups) {
+                Matcher matcher = FREE_BLOCKS_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    addFreeRanges(matcher.group(1));
+                }
+                continue;
+            }
+            Matcher matcher = BLOCK_COUNT_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                blockCount = Long.parseLong(matcher.group(1));
+                continue;
+            }
+            matcher = BLOCK_SIZE_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                blockSize = Long.parseLong(matcher.group(1));
+            }
+        }
+        if ((blockCount == 0) || (blockSize == 0)) {
+            throw new IOException(
+                    "could not parse file system metadata of " + devicePath);
+        }
+    }
+
+    private void addFreeRanges(String ranges) {
+        for (String range : ranges.split(",")) {
+            range = range.trim();
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dashIndex = range.indexOf('-');
+            if (dashIndex == -1) {
+                long block = Long.parseLong(range);
+                freeRanges.add(new long[]{block, block});
+            } else {
+                freeRanges.add(new long[]{
+                    Long.parseLong(range.substring(0, dashIndex)),
+                    Long.parseLong(range.substring(dashIndex + 1))});
+            }
+        }
+    }
+
+    private void readMinimumSize() throws IOException {
+        ProcessExecutor processExecutor = new ProcessExecutor();
+        int exitValue = processExecutor.executeProcess(
+                true, true, "resize2fs", "-P", devicePath);
+        if (exitValue == 0) {
+            for (String line : processExecutor.getStdOutList()) {
+                Matcher matcher = MINIMUM_SIZE_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    minimumBlocks = Long.parseLong(matcher.group(1));
+                    return;
+                }
+            }
+        }
+        throw new IOException(
+                "could not get minimum file system size of " + devicePath);
+    }
+}
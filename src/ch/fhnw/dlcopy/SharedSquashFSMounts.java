@@ -0,0 +1,78 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.util.LernstickFileTools;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The squashfs mounts of a system directory that are shared by several
+ * concurrent users. The images are mounted by the first user and unmounted
+ * when the last user releases them.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class SharedSquashFSMounts {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(SharedSquashFSMounts.class.getName());
+
+    private final String systemPath;
+    private final DLCopyGUI dlCopyGUI;
+    private int references;
+    private List<String> mountPoints;
+
+    /**
+     * creates new SharedSquashFSMounts
+     *
+     * @param systemPath the directory with the squashfs images (the
+     * subdirectory "live")
+     * @param dlCopyGUI the DLCopy GUI
+     */
+    public SharedSquashFSMounts(String systemPath, DLCopyGUI dlCopyGUI) {
+        this.systemPath = systemPath;
+        this.dlCopyGUI = dlCopyGUI;
+    }
+
+    /**
+     * returns the mount points of the squashfs images, mounting them if
+     * necessary. Every call must be followed by a call of {@link #release()}.
+     *
+     * @return the mount points of the squashfs images
+     * @throws IOException if mounting the squashfs images fails
+     */
+    public synchronized List<String> acquire() throws IOException {
+        if (references == 0) {
+            mountPoints = LernstickFileTools.mountAllSquashFS(systemPath);
+            LOGGER.log(Level.INFO, "mounted squashfs images of {0}: {1}",
+                    new Object[]{systemPath, mountPoints});
+        }
+        references++;
+        return mountPoints;
+    }
+
+    /**
+     * releases the mount points, the squashfs images are unmounted when the
+     * last user released them
+     */
+    public synchronized void release() {
+        if (references == 0) {
+            throw new IllegalStateException("squashfs mounts not acquired");
+        }
+        references--;
+        if (references == 0) {
+            for (String mountPoint : mountPoints) {
+                try {
+                    DLCopy.umount(mountPoint, dlCopyGUI);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "", ex);
+                }
+            }
+            LOGGER.log(Level.INFO, "unmounted squashfs images of {0}",
+                    systemPath);
+            mountPoints = null;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ch.fhnw.dlcopy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of the files of some directories in the (mounted) squashfs images
+ * of a system. It tells if a file is identical to the file the system
+ * provides at the same path. The images are merged like aufs merges them
+ * (see {@link LowerLayerExtractor}), so whiteouts and opaque directories in
+ * upper images hide the files of lower images. The MD5 sums of the indexed
+ * files are calculated only when needed and then cached, so that an index
+ * can be used for a whole batch of storage devices.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class SquashFSIndex {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(SquashFSIndex.class.getName());
+
+    // relative path -> visible file in the uppermost squashfs
+    private final Map<String, Path> files = new HashMap<>();
+    private final Map<String, String> md5Sums = new ConcurrentHashMap<>();
+
+    /**
+     * creates a new SquashFSIndex
+     *
+     * @param mountPoints the mount points of the squashfs images, the
+     * uppermost first
+     * @param directories the directories to index, relative to the root of
+     * the system (e.g. "home")
+     */
+    public SquashFSIndex(List<String> mountPoints, String... directories) {
+        long start = System.currentTimeMillis();
+        List<Path> branches = new ArrayList<>();
+        for (String mountPoint : mountPoints) {
+            branches.add(Paths.get(mountPoint));
+        }
+        for (String directory : directories) {
+            Path path = Paths.get(directory);
+            List<Path> directoryBranches = getBranches(path, branches);
+            if (directoryBranches != null) {
+                index(path, directoryBranches);
+            }
+        }
+        LOGGER.log(Level.INFO, "indexed {0} files in {1} ms", new Object[]{
+            files.size(), System.currentTimeMillis() - start});
+    }
+
+    /**
+     * checks if a file is identical (content, owner and permissions) to the
+     * indexed file at the same path
+     *
+     * @param relativePath the path of the file relative to the system root
+     * @param file the file to check
+     * @param attributes the attributes of the file to check (without
+     * following symbolic links)
+     * @return <tt>true</tt>, if the file is identical to the indexed file,
+     * <tt>false</tt> otherwise
+     */
+    public boolean isIdentical(String relativePath, Path file,
+            PosixFileAttributes attributes) {
+        Path indexedFile = files.get(relativePath);
+        if (indexedFile == null) {
+            // no longer provided by the system
+            return false;
+        }
+        try {
+            PosixFileAttributes indexedAttributes = Files.readAttributes(
+                    indexedFile, PosixFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if ((attributes.size() != indexedAttributes.size())
+                    || !attributes.owner().equals(indexedAttributes.owner())
+                    || !attributes.group().equals(indexedAttributes.group())
+                    || !attributes.permissions().equals(
+                            indexedAttributes.permissions())) {
+                return false;
+            }
+            if (attributes.isSymbolicLink()) {
+                return indexedAttributes.isSymbolicLink()
+                        && Files.readSymbolicLink(file).equals(
+                                Files.readSymbolicLink(indexedFile));
+            }
+            if (!attributes.isRegularFile()
+                    || !indexedAttributes.isRegularFile()) {
+                return false;
+            }
+            return getIndexedMd5(relativePath, indexedFile).equals(
+                    DLCopy.getMd5String(file.toString()));
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return false;
+        }
+    }
+
+    // returns the branches that contribute to a visible directory or
+    // null, if the directory is not visible in the union
+    private static List<Path> getBranches(Path directory, List<Path> branches) {
+        Path parent = Paths.get("");
+        for (Path name : directory) {
+            List<Path> entryBranches = LowerLayerExtractor.getVisibleEntries(
+                    null, parent, branches).get(name.toString());
+            if (entryBranches == null) {
+                return null;
+            }
+            parent = parent.resolve(name);
+            branches = entryBranches;
+        }
+        return Files.isDirectory(branches.get(0).resolve(directory),
+                LinkOption.NOFOLLOW_LINKS) ? branches : null;
+    }
+
+    private void index(Path directory, List<Path> branches) {
+        for (Map.Entry<String, List<Path>> entry : LowerLayerExtractor
+                .getVisibleEntries(null, directory, branches).entrySet()) {
+            Path path = directory.resolve(entry.getKey());
+            Path file = entry.getValue().get(0).resolve(path);
+            if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                index(path, entry.getValue());
+            } else {
+                files.put(path.toString(), file);
+            }
+        }
+    }
+
+    private String getIndexedMd5(String relativePath, Path indexedFile)
+            throws IOException, NoSuchAlgorithmException {
+        String md5 = md5Sums.get(relativePath);
+        if (md5 == null) {
+            md5 = DLCopy.getMd5String(indexedFile.toString());
+            md5Sums.put(relativePath, md5);
+        }
+        return md5;
+    }
+}
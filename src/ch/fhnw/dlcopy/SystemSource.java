@@ -43,18 +43,24 @@ public abstract class SystemSource {
     public final static String SYSTEM_COPY_PATTERN_BOOT
             = LEGACY_SYSTEM_COPY_PATTERN_BOOT + "|boot.*";
 
+    /**
+     * the pattern of the (large) system image files
+     */
+    public final static String SYSTEM_IMAGE_COPY_PATTERN
+            = "live/filesystem.*";
+
     /**
      * the pattern of files that need to be copied to the system partition
      */
     public final static String SYSTEM_COPY_PATTERN_FULL
-            = SYSTEM_COPY_PATTERN_BOOT + "|live/filesystem.*";
+            = SYSTEM_COPY_PATTERN_BOOT + '|' + SYSTEM_IMAGE_COPY_PATTERN;
 
     /**
      * the pattern of files that need to be copied to the system partition on
      * legacy (pre 2016-03) systems
      */
     public final static String LEGACY_SYSTEM_COPY_PATTERN_FULL
-            = LEGACY_SYSTEM_COPY_PATTERN_BOOT + "|live/filesystem.*";
+            = LEGACY_SYSTEM_COPY_PATTERN_BOOT + '|' + SYSTEM_IMAGE_COPY_PATTERN;
 
     /**
      * the MD5 sum of the legacy (pre 2016-03) GRUB that doesn't find it's
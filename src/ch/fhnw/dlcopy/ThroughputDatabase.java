@@ -0,0 +1,192 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local database (embedded Derby) of the throughput of storage devices
+ * measured during installations. It is used to predict how long the
+ * installation on a storage device will take.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class ThroughputDatabase {
+
+    /**
+     * the phase name of the complete installation
+     */
+    public static final String PHASE_TOTAL = "total";
+
+    private static final Logger LOGGER
+            = Logger.getLogger(ThroughputDatabase.class.getName());
+    private static final String DATABASE_DIRECTORY
+            = System.getProperty("user.home") + File.separatorChar + ".dlcopy";
+    private static final String DATABASE_NAME = "throughput";
+    private static final double MEGA = 1024 * 1024;
+
+    private final Connection connection;
+
+    /**
+     * opens (and if necessary creates) the throughput database
+     *
+     * @throws SQLException if opening the database fails
+     */
+    public ThroughputDatabase() throws SQLException {
+        try {
+            // (our jar doesn't contain the META-INF/services entries of
+            // derby.jar, therefore the driver is not registered automatically)
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException(ex);
+        }
+        new File(DATABASE_DIRECTORY).mkdirs();
+        // (also places derby.log into the database directory)
+        System.setProperty("derby.system.home", DATABASE_DIRECTORY);
+        connection = DriverManager.getConnection(
+                "jdbc:derby:" + DATABASE_NAME + ";create=true");
+        try (ResultSet tables = connection.getMetaData().getTables(
+                null, null, "MEASUREMENTS", null)) {
+            if (!tables.next()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("CREATE TABLE measurements ("
+                            + "vendor VARCHAR(255), "
+                            + "model VARCHAR(255), "
+                            + "serial VARCHAR(255), "
+                            + "size BIGINT, "
+                            + "phase VARCHAR(32), "
+                            + "bytes BIGINT, "
+                            + "duration BIGINT, "
+                            + "throughput DOUBLE, "
+                            + "recorded TIMESTAMP)");
+                    statement.executeUpdate("CREATE INDEX measurements_model "
+                            + "ON measurements (vendor, model, phase)");
+                }
+            }
+        }
+    }
+
+    /**
+     * stores a measurement
+     *
+     * @param storageDevice the measured StorageDevice
+     * @param phase the name of the measured installation phase
+     * @param bytes the number of bytes written in this phase
+     * @param duration the duration of this phase (in ms)
+     * @throws SQLException if storing the measurement fails
+     */
+    public synchronized void store(StorageDevice storageDevice, String phase,
+            long bytes, long duration) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO measurements (vendor, model, serial, size, phase, "
+                + "bytes, duration, throughput, recorded) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            statement.setString(1, getVendor(storageDevice));
+            statement.setString(2, getModel(storageDevice));
+            statement.setString(3, storageDevice.getSerial());
+            statement.setLong(4, storageDevice.getSize());
+            statement.setString(5, phase);
+            statement.setLong(6, bytes);
+            statement.setLong(7, duration);
+            // MB/s
+            statement.setDouble(8, duration == 0
+                    ? 0 : (bytes / MEGA) / (duration / 1000d));
+            statement.setTimestamp(9,
+                    new Timestamp(System.currentTimeMillis()));
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * predicts the duration of an installation based on the previous
+     * installations on storage devices of the same model
+     *
+     * @param storageDevice the StorageDevice
+     * @param bytes the number of bytes to write
+     * @return the predicted duration (in ms) or <tt>-1</tt>, if there are no
+     * measurements for this model
+     * @throws SQLException if querying the database fails
+     */
+    public synchronized long predictDuration(StorageDevice storageDevice,
+            long bytes) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT SUM(duration), SUM(bytes) FROM measurements "
+                + "WHERE vendor = ? AND model = ? AND phase = ?")) {
+            statement.setString(1, getVendor(storageDevice));
+            statement.setString(2, getModel(storageDevice));
+            statement.setString(3, PHASE_TOTAL);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return -1;
+                }
+                long duration = resultSet.getLong(1);
+                long measuredBytes = resultSet.getLong(2);
+                if (measuredBytes == 0) {
+                    return -1;
+                }
+                return (long) ((double) duration * bytes / measuredBytes);
+            }
+        }
+    }
+
+    /**
+     * returns the average throughput of a phase on storage devices of the
+     * same model
+     *
+     * @param storageDevice the StorageDevice
+     * @param phase the name of the installation phase
+     * @return the average throughput (in MB/s) or <tt>-1</tt>, if there are no
+     * measurements of this phase for this model
+     * @throws SQLException if querying the database fails
+     */
+    public synchronized double getAverageThroughput(
+            StorageDevice storageDevice, String phase) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT SUM(bytes), SUM(duration) FROM measurements "
+                + "WHERE vendor = ? AND model = ? AND phase = ?")) {
+            statement.setString(1, getVendor(storageDevice));
+            statement.setString(2, getModel(storageDevice));
+            statement.setString(3, phase);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return -1;
+                }
+                long bytes = resultSet.getLong(1);
+                long duration = resultSet.getLong(2);
+                if (duration == 0) {
+                    return -1;
+                }
+                return (bytes / MEGA) / (duration / 1000d);
+            }
+        }
+    }
+
+    /**
+     * closes the database
+     */
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+    }
+
+    private static String getVendor(StorageDevice storageDevice) {
+        String vendor = storageDevice.getVendor();
+        return vendor == null ? "" : vendor.trim();
+    }
+
+    private static String getModel(StorageDevice storageDevice) {
+        String model = storageDevice.getModel();
+        return model == null ? "" : model.trim();
+    }
+}
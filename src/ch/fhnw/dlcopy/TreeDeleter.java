@@ -0,0 +1,172 @@
+package ch.fhnw.dlcopy;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes the content of a directory tree in parallel, except for the entries
+ * matched by a set of keep patterns. The patterns are matched against the
+ * paths relative to the root directory. The content of a kept directory is
+ * checked again against the keep patterns, exactly like the
+ * <tt>find &lt;root&gt; ! -regex &lt;root&gt;/&lt;pattern&gt; ... -exec rm
+ * -rf {} ;</tt> commands this class replaces.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class TreeDeleter {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(TreeDeleter.class.getName());
+
+    private final Path root;
+    private final List<Pattern> keepPatterns = new ArrayList<>();
+
+    /**
+     * creates a new TreeDeleter
+     *
+     * @param root the root directory
+     * @param keepPatterns the regular expressions of the relative paths to
+     * keep
+     */
+    public TreeDeleter(String root, String... keepPatterns) {
+        this.root = Paths.get(root);
+        for (String keepPattern : keepPatterns) {
+            this.keepPatterns.add(Pattern.compile(keepPattern));
+        }
+    }
+
+    /**
+     * deletes all entries below the root directory that are not kept
+     *
+     * @return the number of deleted entries
+     */
+    public long delete() {
+        long start = System.currentTimeMillis();
+        // The deletion is mostly waiting for the file system metadata, more
+        // threads than processors keep the device queue filled.
+        ForkJoinPool pool = new ForkJoinPool(
+                4 * Runtime.getRuntime().availableProcessors());
+        long deleted;
+        try {
+            deleted = pool.invoke(new KeepTask(root));
+        } finally {
+            pool.shutdown();
+        }
+        long time = System.currentTimeMillis() - start;
+        LOGGER.log(Level.INFO, "deleted {0} entries below {1} in {2} ms "
+                + "({3} entries/s)", new Object[]{deleted, root, time,
+                    time == 0 ? deleted : deleted * 1000 / time});
+        return deleted;
+    }
+
+    private boolean isKept(Path path) {
+        // the patterns always use '/', like find
+        String relativePath = root.relativize(path).toString();
+        for (Pattern keepPattern : keepPatterns) {
+            if (keepPattern.matcher(relativePath).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Path> list(Path directory) {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream
+                = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+        return entries;
+    }
+
+    private static boolean isDirectory(Path path) {
+        // never follow symbolic links out of the tree
+        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    // walks a kept directory and deletes everything that is not kept
+    private class KeepTask extends RecursiveTask<Long> {
+
+        private final Path directory;
+
+        public KeepTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected Long compute() {
+            List<RecursiveTask<Long>> tasks = new ArrayList<>();
+            for (Path entry : list(directory)) {
+                if (isKept(entry)) {
+                    if (isDirectory(entry)) {
+                        tasks.add(new KeepTask(entry));
+                    }
+                } else {
+                    tasks.add(new DeleteTask(entry));
+                }
+            }
+            invokeAll(tasks);
+            long deleted = 0;
+            for (RecursiveTask<Long> task : tasks) {
+                deleted += task.join();
+            }
+            return deleted;
+        }
+    }
+
+    // deletes a complete subtree
+    private static class DeleteTask extends RecursiveTask<Long> {
+
+        private final Path path;
+
+        public DeleteTask(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Long compute() {
+            long deleted = 0;
+            if (isDirectory(path)) {
+                // files are deleted right away, subdirectories in parallel
+                List<DeleteTask> tasks = new ArrayList<>();
+                for (Path entry : list(path)) {
+                    if (isDirectory(entry)) {
+                        tasks.add(new DeleteTask(entry));
+                    } else {
+                        deleted += deleteEntry(entry);
+                    }
+                }
+                invokeAll(tasks);
+                for (DeleteTask task : tasks) {
+                    deleted += task.join();
+                }
+            }
+            return deleted + deleteEntry(path);
+        }
+
+        private static long deleteEntry(Path entry) {
+            try {
+                Files.delete(entry);
+                return 1;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+                return 0;
+            }
+        }
+    }
+}
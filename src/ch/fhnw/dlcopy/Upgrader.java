@@ -1,39 +1,31 @@
 package ch.fhnw.dlcopy;
 
 import static ch.fhnw.dlcopy.DLCopy.STRINGS;
-import ch.fhnw.dlcopy.gui.swing.DLCopySwingGUI;
 import ch.fhnw.dlcopy.gui.DLCopyGUI;
 import ch.fhnw.filecopier.CopyJob;
 import ch.fhnw.filecopier.FileCopier;
 import ch.fhnw.filecopier.Source;
-import ch.fhnw.jbackpack.RdiffBackupRestore;
-import ch.fhnw.jbackpack.chooser.Increment;
-import ch.fhnw.jbackpack.chooser.RdiffFile;
-import ch.fhnw.jbackpack.chooser.RdiffFileDatabase;
 import ch.fhnw.util.LernstickFileTools;
 import ch.fhnw.util.MountInfo;
 import ch.fhnw.util.Partition;
 import ch.fhnw.util.ProcessExecutor;
 import ch.fhnw.util.StorageDevice;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributeView;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.Timer;
@@ -48,6 +40,10 @@ public class Upgrader extends InstallerOrUpgrader {
 
     private static final Logger LOGGER
             = Logger.getLogger(Upgrader.class.getName());
+    // how long we wait in total for a busy partition to be released (in
+    // milliseconds)
+    private static final long BUSY_TIMEOUT = 60000;
+    private static final String BACKUP_POOL = ".pool";
 
     private final RepartitionStrategy repartitionStrategy;
     private final int resizedExchangePartitionSize;
@@ -60,6 +56,10 @@ public class Upgrader extends InstallerOrUpgrader {
     private final boolean removeHiddenFiles;
     private final List<String> filesToOverwrite;
     private final long systemSizeEnlarged;
+    private final int parallelUpgrades;
+    private final AtomicInteger startedDevices = new AtomicInteger();
+    private SharedSquashFSMounts newSystemMounts;
+    private SquashFSIndex newSystemIndex;
 
     /**
      * Creates a new Upgrader
@@ -70,7 +70,6 @@ public class Upgrader extends InstallerOrUpgrader {
      * @param exchangePartitionFileSystem the file system of the exchange
      * partition
      * @param dataPartitionFileSystem the file system of the data partition
-     * @param dlCopy the main DLCopy instance
      * @param dlCopyGUI the DLCopy GUI
      * @param repartitionStrategy the repartition strategie for the exchange
      * partition
@@ -90,16 +89,19 @@ public class Upgrader extends InstallerOrUpgrader {
      * running system to the upgraded storage device
      * @param systemSizeEnlarged the "enlarged" system size (multiplied with a
      * small file system overhead factor)
+     * @param parallelUpgrades the maximum number of StorageDevices to upgrade
+     * concurrently
      */
     public Upgrader(SystemSource source, List<StorageDevice> deviceList,
             String exchangePartitionLabel, String exchangePartitionFileSystem,
-            String dataPartitionFileSystem, DLCopySwingGUI dlCopy,
-            DLCopyGUI dlCopyGUI, RepartitionStrategy repartitionStrategy,
+            String dataPartitionFileSystem, DLCopyGUI dlCopyGUI,
+            RepartitionStrategy repartitionStrategy,
             int resizedExchangePartitionSize, boolean automaticBackup,
             String automaticBackupDestination, boolean removeBackup,
             boolean upgradeSystemPartition, boolean keepPrinterSettings,
             boolean reactivateWelcome, boolean removeHiddenFiles,
-            List<String> filesToOverwrite, long systemSizeEnlarged) {
+            List<String> filesToOverwrite, long systemSizeEnlarged,
+            int parallelUpgrades) {
         super(source, deviceList, exchangePartitionLabel,
                 exchangePartitionFileSystem, dataPartitionFileSystem,
                 dlCopyGUI);
@@ -114,18 +116,96 @@ public class Upgrader extends InstallerOrUpgrader {
         this.removeHiddenFiles = removeHiddenFiles;
         this.filesToOverwrite = filesToOverwrite;
         this.systemSizeEnlarged = systemSizeEnlarged;
+        this.parallelUpgrades = Math.max(1, parallelUpgrades);
     }
 
     @Override
     protected Void doInBackground() throws Exception {
         inhibit = new LogindInhibit("Upgrading");
 
-        // upgrade all selected storage devices
-        int batchCounter = 0;
-        for (StorageDevice storageDevice : deviceList) {
+        // All devices are upgraded by a fixed size thread pool. Every device
+        // has its own FileCopier and backup destination (see
+        // getBackupDestination()), so that a failure on one device doesn't
+        // affect the other devices. The squashfs images of the new system
+        // are mounted only once for the whole batch.
+        newSystemMounts = new SharedSquashFSMounts(
+                source.getSystemPath(), dlCopyGUI);
+        newSystemMounts.acquire();
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelUpgrades, deviceListSize)));
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (StorageDevice storageDevice : deviceList) {
+                futures.add(executorService.submit(
+                        new UpgradeTask(storageDevice)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.SEVERE, "", ex);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            newSystemMounts.release();
+            source.unmountTmpPartitions();
+            if (removeBackup) {
+                // the snapshots are gone, remove their file contents
+                try {
+                    HardLinkBackup.collectGarbage(getBackupPool());
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "", ex);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void done() {
+        if (inhibit != null) {
+            inhibit.delete();
+        }
+        dlCopyGUI.upgradingListFinished();
+    }
+
+    @Override
+    public void showCreatingFileSystems(StorageDevice storageDevice) {
+        dlCopyGUI.showUpgradeCreatingFileSystems();
+    }
+
+    @Override
+    public void showCopyingFiles(
+            StorageDevice storageDevice, FileCopier fileCopier) {
+        dlCopyGUI.showUpgradeFileCopy(fileCopier);
+    }
+
+    @Override
+    public void showUnmounting(StorageDevice storageDevice) {
+        dlCopyGUI.showUpgradeUnmounting();
+    }
+
+    @Override
+    public void showWritingBootSector(StorageDevice storageDevice) {
+        dlCopyGUI.showUpgradeWritingBootSector();
+    }
+
+    private class UpgradeTask implements Runnable {
+
+        private final StorageDevice storageDevice;
+        private final FileCopier fileCopier = new FileCopier();
+
+        public UpgradeTask(StorageDevice storageDevice) {
+            this.storageDevice = storageDevice;
+        }
+
+        @Override
+        public void run() {
 
             // update overall progress message
-            batchCounter++;
+            int batchCounter = startedDevices.incrementAndGet();
             dlCopyGUI.upgradingDeviceStarted(storageDevice);
             LOGGER.log(Level.INFO,
                     "upgrading storage device: {0} of {1} ({2})",
@@ -147,18 +227,18 @@ public class Upgrader extends InstallerOrUpgrader {
                         if (upgradeDataPartition(
                                 storageDevice, backupDestination)
                                 & upgradeSystemPartition) {
-                            upgradeSystemPartition(storageDevice);
+                            upgradeSystemPartition(storageDevice, fileCopier);
                         }
                         break;
 
                     case BACKUP:
-                        backupInstallRestore(storageDevice);
+                        backupInstallRestore(storageDevice, fileCopier);
                         break;
 
                     case INSTALLATION:
                         DLCopy.copyToStorageDevice(source, fileCopier,
                                 storageDevice, exchangePartitionLabel,
-                                this, dlCopyGUI);
+                                Upgrader.this, dlCopyGUI);
                         break;
 
                     default:
@@ -170,48 +250,22 @@ public class Upgrader extends InstallerOrUpgrader {
                 if (removeBackup) {
                     LernstickFileTools.recursiveDelete(backupDestination, true);
                 }
-            } catch (DBusException | IOException | InterruptedException ex) {
-                LOGGER.log(Level.WARNING, "", ex);
-                errorMessage = ex.getMessage();
+            } catch (DBusException | IOException | InterruptedException |
+                    SQLException | RuntimeException exception) {
+                LOGGER.log(Level.WARNING, "", exception);
+                errorMessage = exception.getMessage();
+                if (errorMessage == null) {
+                    errorMessage = exception.toString();
+                }
             }
 
-            dlCopyGUI.upgradingDeviceFinished(errorMessage);
+            dlCopyGUI.upgradingDeviceFinished(storageDevice, errorMessage);
 
             LOGGER.log(Level.INFO, "upgrading of storage device finished: "
                     + "{0} of {1} ({2})", new Object[]{
                         batchCounter, deviceListSize, storageDevice
                     });
         }
-
-        return null;
-    }
-
-    @Override
-    protected void done() {
-        if (inhibit != null) {
-            inhibit.delete();
-        }
-        dlCopyGUI.upgradingListFinished();
-    }
-
-    @Override
-    public void showCreatingFileSystems() {
-        dlCopyGUI.showUpgradeCreatingFileSystems();
-    }
-
-    @Override
-    public void showCopyingFiles(FileCopier fileCopier) {
-        dlCopyGUI.showUpgradeFileCopy(fileCopier);
-    }
-
-    @Override
-    public void showUnmounting() {
-        dlCopyGUI.showUpgradeUnmounting();
-    }
-
-    @Override
-    public void showWritingBootSector() {
-        dlCopyGUI.showUpgradeWritingBootSector();
     }
 
     private File getBackupDestination(StorageDevice storageDevice) {
@@ -222,9 +276,14 @@ public class Upgrader extends InstallerOrUpgrader {
         return new File(automaticBackupDestination, backupUID);
     }
 
-    private void backupInstallRestore(StorageDevice storageDevice)
-            throws InterruptedException, IOException, DBusException,
-            SQLException {
+    private File getBackupPool() {
+        // the file contents of all backups (see HardLinkBackup)
+        return new File(automaticBackupDestination, BACKUP_POOL);
+    }
+
+    private void backupInstallRestore(StorageDevice storageDevice,
+            FileCopier fileCopier) throws InterruptedException, IOException,
+            DBusException, SQLException {
 
         //TODO: union old squashfs and data partition!
         // prepare backup destination directories
@@ -238,9 +297,10 @@ public class Upgrader extends InstallerOrUpgrader {
         // backup
         Partition dataPartition = storageDevice.getDataPartition();
         String dataMountPoint = dataPartition.mount().getMountPath();
-        backupUserData(dataMountPoint, dataDestination);
+        File dataSnapshot = backupUserData(dataMountPoint, dataDestination);
         dataPartition.umount();
-        backupExchangeParitition(storageDevice, exchangeDestination);
+        backupExchangeParitition(
+                storageDevice, exchangeDestination, fileCopier);
 
         // installation
         DLCopy.copyToStorageDevice(source, fileCopier, storageDevice,
@@ -249,38 +309,67 @@ public class Upgrader extends InstallerOrUpgrader {
         // !!! update reference to storage device !!!
         // copyToStorageDevice() may change the storage device completely
         storageDevice = new StorageDevice(storageDevice.getDevice());
-        restoreDataPartition(storageDevice, dataDestination);
-        restoreExchangePartition(storageDevice, exchangeDestination);
+        restoreDataPartition(storageDevice, dataSnapshot);
+        restoreExchangePartition(
+                storageDevice, exchangeDestination, fileCopier);
+    }
+
+    private void commitSystemPartition(
+            final DeltaSynchronizer systemSynchronizer) throws IOException {
+        // Updating the images in place compares several GiB outside of the
+        // FileCopier, therefore we report its progress separately.
+        final long patchBytes = systemSynchronizer.getPatchBytes();
+        if (patchBytes == 0) {
+            systemSynchronizer.commit();
+            return;
+        }
+        Timer patchTimer = new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dlCopyGUI.showUpgradeUpdatingSystemImages((int) (100
+                        * systemSynchronizer.getPatchedBytes() / patchBytes));
+            }
+        });
+        patchTimer.setInitialDelay(0);
+        patchTimer.start();
+        try {
+            systemSynchronizer.commit();
+        } finally {
+            patchTimer.stop();
+        }
     }
 
-    private void backupUserData(String mountPoint, File backupDestination)
+    private File backupUserData(String mountPoint, File backupDestination)
             throws IOException {
 
         // prepare backup run
-        File backupSource = new File(mountPoint);
-        RdiffBackupRestore rdiffBackupRestore = new RdiffBackupRestore();
+        HardLinkBackup hardLinkBackup = new HardLinkBackup(getBackupPool());
         Timer backupTimer = new Timer(1000, new BackupActionListener(
-                true, rdiffBackupRestore, dlCopyGUI));
+                true, hardLinkBackup, dlCopyGUI));
         backupTimer.setInitialDelay(0);
         backupTimer.start();
         dlCopyGUI.showUpgradeBackup();
 
-        String includes = mountPoint + "/home/user/";
+        List<String> includes = new ArrayList<>();
+        includes.add("home/user");
         if (keepPrinterSettings) {
-            includes += '\n' + mountPoint + "/etc/cups/";
+            includes.add("etc/cups");
         }
 
         // run the actual backup process
-        rdiffBackupRestore.backupViaFileSystem(backupSource,
-                backupDestination, null, mountPoint, includes, true, null,
-                null, false, false, false, false, false);
+        // (identical files of all devices are stored only once, older
+        // backups in the destination are kept)
+        File snapshot = hardLinkBackup.backup(
+                mountPoint, includes, backupDestination);
 
         // cleanup
         backupTimer.stop();
+        return snapshot;
     }
 
     private void backupExchangeParitition(StorageDevice storageDevice,
-            File exchangeDestination) throws DBusException, IOException {
+            File exchangeDestination, FileCopier fileCopier)
+            throws DBusException, IOException {
 
         Partition exchangePartition = storageDevice.getExchangePartition();
         if (exchangePartition == null) {
@@ -303,7 +392,7 @@ public class Upgrader extends InstallerOrUpgrader {
 
     private void restoreDataPartition(
             StorageDevice storageDevice, File restoreSourceDir)
-            throws DBusException, IOException, SQLException {
+            throws DBusException, IOException {
 
         Partition dataPartition = storageDevice.getDataPartition();
         if (dataPartition == null) {
@@ -316,33 +405,26 @@ public class Upgrader extends InstallerOrUpgrader {
         // restore data
         dlCopyGUI.showUpgradeRestoreInit();
 
-        RdiffFileDatabase rdiffFileDatabase
-                = RdiffFileDatabase.getInstance(restoreSourceDir);
-        rdiffFileDatabase.sync();
-        List<Increment> increments = rdiffFileDatabase.getIncrements();
-        if ((increments == null) || increments.isEmpty()) {
+        if (!HardLinkBackup.exists(restoreSourceDir)) {
             throw new IOException(
                     "could not restore user data, no backup found");
         }
-        Increment increment = increments.get(0);
-        RdiffFile[] rdiffRoot = new RdiffFile[]{increment.getRdiffRoot()};
 
-        // create a new RdiffBackupRestore instance to reset its counters
-        RdiffBackupRestore rdiffBackupRestore = new RdiffBackupRestore();
+        HardLinkBackup hardLinkBackup = new HardLinkBackup(getBackupPool());
         Timer restoreTimer = new Timer(1000, new BackupActionListener(
-                false, rdiffBackupRestore, dlCopyGUI));
+                false, hardLinkBackup, dlCopyGUI));
         restoreTimer.setInitialDelay(0);
         restoreTimer.start();
 
         dlCopyGUI.showUpgradeRestoreRunning();
 
-        rdiffBackupRestore.restore("now", rdiffRoot,
-                restoreSourceDir, new File(mountPath), null, false);
+        // (reads the file contents from the pool with parallel workers)
+        hardLinkBackup.restore(restoreSourceDir, mountPath);
 
         // !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
         // !!! This must happen *after* restoring the files above.       !!!
         // !!! otherwise the changes would be overwritten by the restore !!!
-        // !!! process (rdiff-backup)!                                   !!!
+        // !!! process!                                                 !!!
         // !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
         // reactivate welcome, overwrite files...
         finalizeDataPartition(mountPath);
@@ -352,8 +434,8 @@ public class Upgrader extends InstallerOrUpgrader {
         restoreTimer.stop();
     }
 
-    private void restoreExchangePartition(
-            StorageDevice storageDevice, File restoreSourceDir)
+    private void restoreExchangePartition(StorageDevice storageDevice,
+            File restoreSourceDir, FileCopier fileCopier)
             throws DBusException, IOException, SQLException {
 
         Partition exchangePartition = storageDevice.getExchangePartition();
@@ -408,82 +490,45 @@ public class Upgrader extends InstallerOrUpgrader {
         // first umount the aufs
         // (otherwise we would wreak havoc on the aufs metadata)
         DLCopy.umount(cowPath, dlCopyGUI);
-        ProcessExecutor processExecutor = new ProcessExecutor();
         if (keepPrinterSettings) {
-            processExecutor.executeProcess("find", dataMountPoint,
-                    "!", "-regex", dataMountPoint,
-                    "!", "-regex", dataMountPoint + "/lost\\+found",
-                    "!", "-regex", dataMountPoint + "/persistence.conf",
-                    "!", "-regex", dataMountPoint + "/home.*",
-                    "!", "-regex", dataMountPoint + "/etc.*",
-                    "-exec", "rm", "-rf", "{}", ";");
-            String etcPath = dataMountPoint + "/etc";
-            processExecutor.executeProcess("find", etcPath,
-                    "!", "-regex", etcPath,
-                    "!", "-regex", etcPath + "/cups.*",
-                    "-exec", "rm", "-rf", "{}", ";");
+            new TreeDeleter(dataMountPoint, "lost\\+found", "persistence.conf",
+                    "home.*", "etc", "etc/cups.*").delete();
         } else {
-            processExecutor.executeProcess("find", dataMountPoint,
-                    "!", "-regex", dataMountPoint,
-                    "!", "-regex", dataMountPoint + "/lost\\+found",
-                    "!", "-regex", dataMountPoint + "/persistence.conf",
-                    "!", "-regex", dataMountPoint + "/home.*",
-                    "-exec", "rm", "-rf", "{}", ";");
+            new TreeDeleter(dataMountPoint,
+                    "lost\\+found", "persistence.conf", "home.*").delete();
         }
-        // re-mount aufs
-        cowDir = LernstickFileTools.mountAufs(branchDefinition);
-        cowPath = cowDir.getPath();
-
-        // Copy-up all personal data from old squashfs to data partition.
-        // For aufs it is enough to change the access file stamp of files and
-        // directories to trigger a copy-up action. Symbolic links have to be
-        // recreated to be "copied up" to the data partition.
-        final FileTime fileTime = FileTime.fromMillis(
-                System.currentTimeMillis());
-        FileVisitor copyUpFileVisitor = new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file,
-                    BasicFileAttributes attributes) throws IOException {
-                if (Files.isSymbolicLink(file)) {
-                    // recreate symbolic link
-                    Path target = Files.readSymbolicLink(file);
-                    LOGGER.log(Level.INFO,
-                            "recreating symbolic link {0} > {1}",
-                            new Object[]{file, target});
-                    Files.delete(file);
-                    Files.createSymbolicLink(file, target);
-                } else if (attributes.isOther()) {
-                    LOGGER.log(Level.WARNING, "skipping {0} (probably a "
-                            + "named pipe or unix domain socket, bot are "
-                            + "not supported!)", file);
-                } else {
-                    changeAccessTime(file);
-                }
-                return FileVisitResult.CONTINUE;
-            }
-
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir,
-                    BasicFileAttributes attrs) throws IOException {
-                changeAccessTime(dir);
-                return FileVisitResult.CONTINUE;
+        // Copy all personal data from the old squashfs to the data
+        // partition. We read the files directly from the squashfs branches
+        // (while the union is not mounted) instead of letting aufs copy up
+        // one file after another.
+        List<String> newSystemMountPoints = newSystemMounts.acquire();
+        try {
+            LowerLayerExtractor extractor = new LowerLayerExtractor(
+                    dataMountPoint, readOnlyMountPoints);
+            extractor.setReference(getNewSystemIndex(newSystemMountPoints));
+            extractor.extract("home");
+            if (keepPrinterSettings) {
+                extractor.extract("etc/cups");
             }
-
-            private void changeAccessTime(Path path) throws IOException {
-                // change file access time
-                LOGGER.log(Level.INFO, "updating access time of {0}", path);
-                BasicFileAttributeView attributeView
-                        = Files.getFileAttributeView(
-                                path, BasicFileAttributeView.class);
-                attributeView.setTimes(null, fileTime, null);
+        } catch (IOException ex) {
+            // The user data is incomplete, the old system must not be
+            // replaced. Only clean up the squashfs mounts.
+            for (String readOnlyMountPoint : readOnlyMountPoints) {
+                try {
+                    DLCopy.umount(readOnlyMountPoint, dlCopyGUI);
+                } catch (IOException umountException) {
+                    LOGGER.log(Level.WARNING, "", umountException);
+                }
             }
-        };
-        Files.walkFileTree(Paths.get(cowPath, "home"), copyUpFileVisitor);
-        if (keepPrinterSettings) {
-            Files.walkFileTree(Paths.get(
-                    cowPath, "etc/cups"), copyUpFileVisitor);
+            throw ex;
+        } finally {
+            newSystemMounts.release();
         }
 
+        // re-mount aufs
+        cowDir = LernstickFileTools.mountAufs(branchDefinition);
+        cowPath = cowDir.getPath();
+
         finalizeDataPartition(cowPath);
 
         // disassemble union
@@ -501,7 +546,7 @@ public class Upgrader extends InstallerOrUpgrader {
         // upgrade label (if necessary)
         if (!(dataPartition.getIdLabel().equals(
                 Partition.PERSISTENCE_LABEL))) {
-            processExecutor.executeProcess("e2label",
+            new ProcessExecutor().executeProcess("e2label",
                     "/dev/" + dataPartition.getDeviceAndNumber(),
                     Partition.PERSISTENCE_LABEL);
         }
@@ -509,6 +554,16 @@ public class Upgrader extends InstallerOrUpgrader {
         return true;
     }
 
+    // The index of the new system is created only once for all storage
+    // devices, so that every file of the new system is hashed at most once.
+    private synchronized SquashFSIndex getNewSystemIndex(
+            List<String> newSystemMountPoints) {
+        if (newSystemIndex == null) {
+            newSystemIndex = new SquashFSIndex(newSystemMountPoints, "home");
+        }
+        return newSystemIndex;
+    }
+
     private void finalizeDataPartition(String dataMountPoint)
             throws IOException {
 
@@ -568,7 +623,8 @@ public class Upgrader extends InstallerOrUpgrader {
         }
     }
 
-    private boolean upgradeSystemPartition(StorageDevice storageDevice)
+    private boolean upgradeSystemPartition(StorageDevice storageDevice,
+            FileCopier fileCopier)
             throws DBusException, IOException, InterruptedException {
 
         String device = storageDevice.getDevice();
@@ -614,48 +670,72 @@ public class Upgrader extends InstallerOrUpgrader {
             //
             // -> only continue if there were no errors or the errors were
             // corrected
-            int busyCounter = 0;
+            String partitionDevice = dataPartition.getDeviceAndNumber();
+            boolean retried = false;
+            // all retries together must not take longer than BUSY_TIMEOUT,
+            // a partition that stays busy would block us forever
+            long busyDeadline = System.currentTimeMillis() + BUSY_TIMEOUT;
             while ((returnValue != 0) && (returnValue != 1)) {
-                if (returnValue == 8) {
-                    // Unfortunately, "8" is returned in two situations:
-                    // either the device is still busy or the partition
-                    // table is damaged.
-                    busyCounter++;
-
-                    if (busyCounter >= 10) {
-                        // This has been going on too long. A device should
-                        // not be busy for such a long time. Most probably
-                        // the partition table is damaged...
-                        String errorMessage = STRINGS.getString(
-                                "Error_File_System_Check");
-                        errorMessage = MessageFormat.format(
-                                errorMessage, dataDevPath);
-                        dlCopyGUI.showErrorMessage(errorMessage);
+                if (returnValue != 8) {
+                    showFileSystemCheckError(dataDevPath);
+                    return false;
+                }
+                // Unfortunately, "8" is returned in two situations: either
+                // the device is still busy or the partition table is
+                // damaged. Instead of guessing we look at who is using the
+                // partition.
+                List<String> users = BusyDeviceDetector.getUsers(
+                        device, partitionDevice);
+                if (users.isEmpty()) {
+                    if (retried) {
+                        // nobody uses the partition, most probably the
+                        // partition table is damaged...
+                        showFileSystemCheckError(dataDevPath);
                         return false;
                     }
-
-                    // let's wait some time before retrying
-                    try {
-                        LOGGER.info(
-                                "waiting for 10 seconds before continuing...");
-                        TimeUnit.SECONDS.sleep(10);
-                    } catch (InterruptedException ex) {
-                        LOGGER.log(Level.SEVERE, null, ex);
-                    }
-                    returnValue = processExecutor.executeProcess(true, true,
-                            "e2fsck", "-f", "-y", "-v", dataDevPath);
+                    // the partition may have been released just now
+                    retried = true;
                 } else {
-                    String errorMessage
-                            = STRINGS.getString("Error_File_System_Check");
-                    errorMessage = MessageFormat.format(
-                            errorMessage, dataDevPath);
-                    dlCopyGUI.showErrorMessage(errorMessage);
-                    return false;
+                    LOGGER.log(Level.INFO, "{0} is busy: {1}",
+                            new Object[]{dataDevPath, users});
+                    long remaining
+                            = busyDeadline - System.currentTimeMillis();
+                    if (remaining > 0) {
+                        users = BusyDeviceDetector.waitForRelease(
+                                device, partitionDevice, remaining);
+                    }
+                    if (!users.isEmpty()) {
+                        String errorMessage
+                                = STRINGS.getString("Error_Partition_Busy");
+                        errorMessage = MessageFormat.format(errorMessage,
+                                dataDevPath, users);
+                        dlCopyGUI.showErrorMessage(errorMessage);
+                        return false;
+                    }
                 }
+                returnValue = processExecutor.executeProcess(true, true,
+                        "e2fsck", "-f", "-y", "-v", dataDevPath);
             }
-            returnValue = processExecutor.executeProcess(true, true,
-                    "resize2fs", "-M", "-p", dataDevPath);
-            if (returnValue != 0) {
+            long dataPartitionOffset = dataPartition.getOffset();
+            long newSystemPartitionOffset = systemPartition.getOffset()
+                    + systemPartition.getSize() - systemSizeEnlarged;
+            // align newSystemPartitionOffset on an erase block boundary
+            // (rounding down, so the system partition is large enough)
+            long eraseBlockSize
+                    = EraseBlockDetector.getKnownSize(storageDevice);
+            if (eraseBlockSize < 0) {
+                eraseBlockSize = EraseBlockDetector.DEFAULT_SIZE;
+            }
+            newSystemPartitionOffset = (newSystemPartitionOffset
+                    / eraseBlockSize) * eraseBlockSize;
+
+            // Only shrink the file system as much as the new system
+            // partition needs, so that only the blocks behind the new end
+            // are moved (and nothing must be moved back later). Parted may
+            // align the partition end down by up to one erase block.
+            ResizePlanner resizePlanner = new ResizePlanner(dataDevPath);
+            if (!resizePlanner.plan(newSystemPartitionOffset
+                    - dataPartitionOffset, eraseBlockSize)) {
                 String errorMessage
                         = STRINGS.getString("Error_File_System_Resize");
                 errorMessage
@@ -663,16 +743,23 @@ public class Upgrader extends InstallerOrUpgrader {
                 dlCopyGUI.showErrorMessage(errorMessage);
                 return false;
             }
-
-            long dataPartitionOffset = dataPartition.getOffset();
-            long newSystemPartitionOffset = systemPartition.getOffset()
-                    + systemPartition.getSize() - systemSizeEnlarged;
-            // align newSystemPartitionOffset on a MiB boundary
-            newSystemPartitionOffset /= DLCopy.MEGA;
+            if (resizePlanner.isShrinkNeeded()) {
+                returnValue = processExecutor.executeProcess(true, true,
+                        "resize2fs", "-p", dataDevPath,
+                        resizePlanner.getTargetSize());
+                if (returnValue != 0) {
+                    String errorMessage
+                            = STRINGS.getString("Error_File_System_Resize");
+                    errorMessage
+                            = MessageFormat.format(errorMessage, dataDevPath);
+                    dlCopyGUI.showErrorMessage(errorMessage);
+                    return false;
+                }
+            }
             String dataPartitionStart
                     = String.valueOf(dataPartitionOffset) + "B";
             String systemPartitionStart
-                    = String.valueOf(newSystemPartitionOffset) + "MiB";
+                    = String.valueOf(newSystemPartitionOffset) + "B";
             List<String> partedCommand = new ArrayList<>();
             partedCommand.add("/sbin/parted");
             partedCommand.add("-a");
@@ -709,18 +796,30 @@ public class Upgrader extends InstallerOrUpgrader {
             // refresh storage device and partition info
             processExecutor.executeProcess(true, true, "/sbin/partprobe");
             // safety wait so that new partitions are known to the system
-            // (7 seconds were NOT enough!)
-            TimeUnit.SECONDS.sleep(7);
+            if (!DeviceReadinessWaiter.waitForPartitions(
+                    device, systemPartitionNumber)) {
+                String errorMessage = STRINGS.getString(
+                        "Error_Partitions_Not_Ready");
+                errorMessage = MessageFormat.format(errorMessage, device);
+                LOGGER.severe(errorMessage);
+                throw new IOException(errorMessage);
+            }
 
-            returnValue = processExecutor.executeProcess(true, true,
-                    "resize2fs", dataDevPath);
-            if (returnValue != 0) {
-                String errorMessage
-                        = STRINGS.getString("Error_File_System_Resize");
-                errorMessage
-                        = MessageFormat.format(errorMessage, dataDevPath);
-                dlCopyGUI.showErrorMessage(errorMessage);
-                return false;
+            // grow into the alignment margin (fails if the partition end
+            // was aligned into the file system, before anything is
+            // formatted)
+            if (resizePlanner.isGrowNeeded(
+                    dataPartition.getDeviceAndNumber())) {
+                returnValue = processExecutor.executeProcess(true, true,
+                        "resize2fs", dataDevPath);
+                if (returnValue != 0) {
+                    String errorMessage
+                            = STRINGS.getString("Error_File_System_Resize");
+                    errorMessage
+                            = MessageFormat.format(errorMessage, dataDevPath);
+                    dlCopyGUI.showErrorMessage(errorMessage);
+                    return false;
+                }
             }
 
             storageDevice = new StorageDevice(device);
@@ -734,13 +833,14 @@ public class Upgrader extends InstallerOrUpgrader {
 
             DLCopy.formatEfiAndSystemPartition(
                     "/dev/" + efiPartition.getDeviceAndNumber(),
-                    "/dev/" + systemPartition.getDeviceAndNumber());
+                    "/dev/" + systemPartition.getDeviceAndNumber(),
+                    MkfsProfile.getProfile(storageDevice));
 
             // update boot flag
             efiPartition.setBootFlag(false);
             systemPartition.setBootFlag(true);
             // we have to wait for d-bus to settle after changing the boot flag
-            TimeUnit.SECONDS.sleep(7);
+            DeviceReadinessWaiter.waitForUdev();
         }
 
         // upgrade boot and system partition
@@ -754,12 +854,13 @@ public class Upgrader extends InstallerOrUpgrader {
             // the system partition has one.
             DLCopy.formatEfiAndSystemPartition(
                     "/dev/" + efiPartition.getDeviceAndNumber(),
-                    "/dev/" + systemPartition.getDeviceAndNumber());
+                    "/dev/" + systemPartition.getDeviceAndNumber(),
+                    MkfsProfile.getProfile(storageDevice));
 
             efiPartition.setBootFlag(false);
             systemPartition.setBootFlag(true);
             // we have to wait for d-bus to settle after changing the boot flag
-            TimeUnit.SECONDS.sleep(7);
+            DeviceReadinessWaiter.waitForUdev();
         }
 
         // define CopyJobs for boot and system parititions
@@ -773,23 +874,26 @@ public class Upgrader extends InstallerOrUpgrader {
         CopyJobsInfo copyJobsInfo = DLCopy.prepareEfiAndSystemCopyJobs(source,
                 storageDevice, efiPartition, exchangePartition,
                 systemPartition, exchangePartitionFS);
-        File bootMountPointFile = new File(
+        // Most upgrades change only a few files (often not even the large
+        // squashfs image). Therefore we only copy the changed files and
+        // delete the obsolete ones instead of resetting both partitions.
+        DeltaSynchronizer efiSynchronizer = new DeltaSynchronizer(
+                copyJobsInfo.getEfiCopyJob().getSources()[0],
                 copyJobsInfo.getDestinationEfiPath());
-        LOGGER.log(Level.INFO, "recursively deleting {0}",
-                bootMountPointFile);
-        LernstickFileTools.recursiveDelete(bootMountPointFile, false);
-        File systemMountPointFile = new File(
+        efiSynchronizer.compare();
+        DeltaSynchronizer systemSynchronizer = new DeltaSynchronizer(
+                copyJobsInfo.getSystemCopyJob().getSources()[0],
                 copyJobsInfo.getDestinationSystemPath());
-        LOGGER.log(Level.INFO, "recursively deleting {0}",
-                systemMountPointFile);
-        LernstickFileTools.recursiveDelete(systemMountPointFile, false);
+        systemSynchronizer.compare();
 
         LOGGER.info("starting copy job");
         dlCopyGUI.showUpgradeFileCopy(fileCopier);
 
         CopyJob bootFilesCopyJob = copyJobsInfo.getExchangeEfiCopyJob();
-        fileCopier.copy(copyJobsInfo.getEfiCopyJob(),
-                bootFilesCopyJob, copyJobsInfo.getSystemCopyJob());
+        fileCopier.copy(efiSynchronizer.getCopyJob(),
+                bootFilesCopyJob, systemSynchronizer.getCopyJob());
+        efiSynchronizer.commit();
+        commitSystemPartition(systemSynchronizer);
 
         // hide boot files in exchange partition
         // (only necessary with FAT32 on removable media...)
@@ -808,13 +912,20 @@ public class Upgrader extends InstallerOrUpgrader {
         DLCopy.makeBootable(source, devicePath, systemPartition);
 
         // cleanup
-        source.unmountTmpPartitions();
+        // (the temporary partitions of the source are shared by all devices
+        // and unmounted in doInBackground() when all devices are finished)
         if (!DLCopy.umount(efiPartition, dlCopyGUI)) {
             return false;
         }
         return DLCopy.umount(systemPartition, dlCopyGUI);
     }
 
+    private void showFileSystemCheckError(String devicePath) {
+        String errorMessage = STRINGS.getString("Error_File_System_Check");
+        errorMessage = MessageFormat.format(errorMessage, devicePath);
+        dlCopyGUI.showErrorMessage(errorMessage);
+    }
+
     @Override
     public PartitionSizes getPartitionSizes(StorageDevice storageDevice) {
         return DLCopy.getUpgradePartitionSizes(source, storageDevice,
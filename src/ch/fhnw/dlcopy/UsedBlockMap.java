@@ -0,0 +1,391 @@
+package ch.fhnw.dlcopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The map of all allocated byte ranges of a file system. Only these ranges
+ * must be copied when cloning a partition. The map is read directly from the
+ * file system metadata (ext2/3/4 block bitmaps and FAT tables). For all other
+ * file systems the complete partition is marked as allocated.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class UsedBlockMap {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(UsedBlockMap.class.getName());
+
+    // gaps smaller than this are copied, too, so that we get large sequential
+    // reads and writes instead of many small ones
+    private static final long MIN_GAP = 1024 * 1024;
+
+    private static final int EXT_SUPERBLOCK_OFFSET = 1024;
+    private static final int EXT_MAGIC = 0xEF53;
+    private static final int EXT_FEATURE_COMPAT_RESIZE_INODE = 0x10;
+    private static final int EXT_FEATURE_RO_COMPAT_SPARSE_SUPER = 0x1;
+    private static final int EXT_FEATURE_RO_COMPAT_GDT_CSUM = 0x10;
+    private static final int EXT_FEATURE_RO_COMPAT_METADATA_CSUM = 0x400;
+    private static final int EXT_FEATURE_INCOMPAT_META_BG = 0x10;
+    private static final int EXT_FEATURE_INCOMPAT_64BIT = 0x80;
+    private static final int EXT_BG_INODE_UNINIT = 0x1;
+    private static final int EXT_BG_BLOCK_UNINIT = 0x2;
+
+    private final long size;
+    private final List<long[]> extents = new ArrayList<>();
+    // allocated but never used ranges (e.g. the unused tails of lazily
+    // initialized inode tables)
+    private final List<long[]> unusedExtents = new ArrayList<>();
+
+    private UsedBlockMap(long size) {
+        this.size = size;
+    }
+
+    /**
+     * reads the map of allocated byte ranges of a partition
+     *
+     * @param device the device file of the partition, e.g. "/dev/sdb1"
+     * @param fileSystemType the file system type as reported by udisks, e.g.
+     * "ext4" or "vfat"
+     * @param size the size of the partition in byte
+     * @return the map of allocated byte ranges of the partition
+     * @throws IOException if reading the file system metadata fails
+     */
+    public static UsedBlockMap read(String device, String fileSystemType,
+            long size) throws IOException {
+        UsedBlockMap usedBlockMap = new UsedBlockMap(size);
+        try (FileChannel channel = FileChannel.open(
+                Paths.get(device), StandardOpenOption.READ)) {
+            if (fileSystemType == null) {
+                usedBlockMap.add(0, size);
+            } else {
+                switch (fileSystemType) {
+                    case "ext2":
+                    case "ext3":
+                    case "ext4":
+                        usedBlockMap.readExt(channel);
+                        break;
+                    case "vfat":
+                        usedBlockMap.readFat(channel);
+                        break;
+                    default:
+                        usedBlockMap.add(0, size);
+                }
+            }
+        }
+        usedBlockMap.mergeExtents(0);
+        usedBlockMap.removeUnusedExtents();
+        usedBlockMap.mergeExtents(MIN_GAP);
+        LOGGER.log(Level.INFO, "{0}: {1} of {2} bytes allocated",
+                new Object[]{device, usedBlockMap.getUsedBytes(), size});
+        return usedBlockMap;
+    }
+
+    /**
+     * returns the sorted list of allocated byte ranges, every entry is a pair
+     * of offset and length
+     *
+     * @return the sorted list of allocated byte ranges
+     */
+    public List<long[]> getExtents() {
+        return Collections.unmodifiableList(extents);
+    }
+
+    /**
+     * returns the number of allocated bytes
+     *
+     * @return the number of allocated bytes
+     */
+    public long getUsedBytes() {
+        long usedBytes = 0;
+        for (long[] extent : extents) {
+            usedBytes += extent[1];
+        }
+        return usedBytes;
+    }
+
+    private void readExt(FileChannel channel) throws IOException {
+        ByteBuffer superBlock = read(channel, EXT_SUPERBLOCK_OFFSET, 1024);
+        if ((superBlock.getShort(56) & 0xFFFF) != EXT_MAGIC) {
+            LOGGER.warning("no ext superblock found, copying everything");
+            add(0, size);
+            return;
+        }
+        long blocksCount = superBlock.getInt(4) & 0xFFFFFFFFL;
+        long firstDataBlock = superBlock.getInt(20) & 0xFFFFFFFFL;
+        int blockSize = 1024 << superBlock.getInt(24);
+        long blocksPerGroup = superBlock.getInt(32) & 0xFFFFFFFFL;
+        long inodesPerGroup = superBlock.getInt(40) & 0xFFFFFFFFL;
+        int inodeSize = superBlock.getInt(76) == 0
+                ? 128 : superBlock.getShort(88) & 0xFFFF;
+        int featureCompat = superBlock.getInt(92);
+        int featureIncompat = superBlock.getInt(96);
+        int featureRoCompat = superBlock.getInt(100);
+        int reservedGdtBlocks = superBlock.getShort(206) & 0xFFFF;
+        boolean is64Bit = (featureIncompat & EXT_FEATURE_INCOMPAT_64BIT) != 0;
+        int descriptorSize = 32;
+        if (is64Bit) {
+            blocksCount |= (superBlock.getInt(0x150) & 0xFFFFFFFFL) << 32;
+            descriptorSize = superBlock.getShort(254) & 0xFFFF;
+        }
+        if ((featureIncompat & EXT_FEATURE_INCOMPAT_META_BG) != 0) {
+            // the group descriptors are scattered across the file system,
+            // we don't handle this rare layout
+            LOGGER.warning("ext meta_bg layout found, copying everything");
+            add(0, size);
+            return;
+        }
+        boolean sparseSuper
+                = (featureRoCompat & EXT_FEATURE_RO_COMPAT_SPARSE_SUPER) != 0;
+        // With group descriptor checksums the kernel and e2fsck never read
+        // the inodes behind bg_itable_unused (on lazily initialized file
+        // systems these blocks are only zeroed in the background).
+        boolean groupChecksums = (featureRoCompat
+                & (EXT_FEATURE_RO_COMPAT_GDT_CSUM
+                | EXT_FEATURE_RO_COMPAT_METADATA_CSUM)) != 0;
+        if ((featureCompat & EXT_FEATURE_COMPAT_RESIZE_INODE) == 0) {
+            reservedGdtBlocks = 0;
+        }
+
+        long groupCount = (blocksCount - firstDataBlock + blocksPerGroup - 1)
+                / blocksPerGroup;
+        long descriptorBlocks
+                = (groupCount * descriptorSize + blockSize - 1) / blockSize;
+        long inodeTableBlocks
+                = (inodesPerGroup * inodeSize + blockSize - 1) / blockSize;
+        ByteBuffer descriptors = read(channel,
+                (firstDataBlock + 1) * blockSize,
+                (int) (descriptorBlocks * blockSize));
+
+        // everything in front of the first block group (boot sector, padding)
+        add(0, (firstDataBlock + 1) * blockSize);
+
+        for (long group = 0; group < groupCount; group++) {
+            int offset = (int) (group * descriptorSize);
+            long blockBitmap = descriptors.getInt(offset) & 0xFFFFFFFFL;
+            long inodeBitmap = descriptors.getInt(offset + 4) & 0xFFFFFFFFL;
+            long inodeTable = descriptors.getInt(offset + 8) & 0xFFFFFFFFL;
+            int flags = descriptors.getShort(offset + 18) & 0xFFFF;
+            long unusedInodes = descriptors.getShort(offset + 28) & 0xFFFF;
+            if (is64Bit && descriptorSize >= 64) {
+                blockBitmap |= (descriptors.getInt(offset + 32)
+                        & 0xFFFFFFFFL) << 32;
+                inodeBitmap |= (descriptors.getInt(offset + 36)
+                        & 0xFFFFFFFFL) << 32;
+                inodeTable |= (descriptors.getInt(offset + 40)
+                        & 0xFFFFFFFFL) << 32;
+                unusedInodes |= (descriptors.getShort(offset + 50)
+                        & 0xFFFFL) << 16;
+            }
+
+            // The metadata of a group is always needed, even if the group is
+            // not initialized yet (with flex_bg it may be located in another
+            // group).
+            long groupStart = firstDataBlock + group * blocksPerGroup;
+            if (hasSuperBlockBackup(group, sparseSuper)) {
+                add(groupStart * blockSize, (1 + descriptorBlocks
+                        + reservedGdtBlocks) * blockSize);
+            }
+            add(blockBitmap * blockSize, blockSize);
+            add(inodeBitmap * blockSize, blockSize);
+            add(inodeTable * blockSize, inodeTableBlocks * blockSize);
+            if (groupChecksums) {
+                long usedInodes = ((flags & EXT_BG_INODE_UNINIT) != 0)
+                        ? 0 : inodesPerGroup - unusedInodes;
+                long usedBlocks
+                        = (usedInodes * inodeSize + blockSize - 1) / blockSize;
+                if ((usedBlocks >= 0) && (usedBlocks < inodeTableBlocks)) {
+                    // (the block bitmap marks these blocks as used, too)
+                    unusedExtents.add(new long[]{
+                        (inodeTable + usedBlocks) * blockSize,
+                        (inodeTableBlocks - usedBlocks) * blockSize});
+                }
+            }
+
+            if ((flags & EXT_BG_BLOCK_UNINIT) != 0) {
+                // the bitmap is not initialized, all data blocks are free
+                continue;
+            }
+            long groupBlocks = Math.min(
+                    blocksPerGroup, blocksCount - groupStart);
+            ByteBuffer bitmap = read(channel,
+                    blockBitmap * blockSize, blockSize);
+            for (long i = 0; i < groupBlocks; i++) {
+                int bits = bitmap.get((int) (i / 8));
+                if ((bits & (1 << (i % 8))) != 0) {
+                    add((groupStart + i) * blockSize, blockSize);
+                }
+            }
+        }
+    }
+
+    private static boolean hasSuperBlockBackup(
+            long group, boolean sparseSuper) {
+        if (!sparseSuper || group <= 1) {
+            return true;
+        }
+        return isPowerOf(group, 3) || isPowerOf(group, 5)
+                || isPowerOf(group, 7);
+    }
+
+    private static boolean isPowerOf(long number, int base) {
+        while (number % base == 0) {
+            number /= base;
+        }
+        return number == 1;
+    }
+
+    private void readFat(FileChannel channel) throws IOException {
+        ByteBuffer bootSector = read(channel, 0, 512);
+        int bytesPerSector = bootSector.getShort(11) & 0xFFFF;
+        int sectorsPerCluster = bootSector.get(13) & 0xFF;
+        int reservedSectors = bootSector.getShort(14) & 0xFFFF;
+        int fatCount = bootSector.get(16) & 0xFF;
+        int rootEntries = bootSector.getShort(17) & 0xFFFF;
+        long totalSectors = bootSector.getShort(19) & 0xFFFF;
+        if (totalSectors == 0) {
+            totalSectors = bootSector.getInt(32) & 0xFFFFFFFFL;
+        }
+        long sectorsPerFat = bootSector.getShort(22) & 0xFFFF;
+        if (sectorsPerFat == 0) {
+            sectorsPerFat = bootSector.getInt(36) & 0xFFFFFFFFL;
+        }
+        if ((bytesPerSector == 0) || (sectorsPerCluster == 0)) {
+            LOGGER.warning("no FAT boot sector found, copying everything");
+            add(0, size);
+            return;
+        }
+
+        long rootDirSectors
+                = (rootEntries * 32 + bytesPerSector - 1) / bytesPerSector;
+        long dataStart = (reservedSectors + fatCount * sectorsPerFat
+                + rootDirSectors) * bytesPerSector;
+        long clusterCount = (totalSectors * bytesPerSector - dataStart)
+                / (sectorsPerCluster * bytesPerSector);
+        int entrySize;
+        if (clusterCount < 4085) {
+            // FAT12 has 12 bit entries, these small file systems are simply
+            // copied completely
+            add(0, size);
+            return;
+        } else if (clusterCount < 65525) {
+            entrySize = 2;
+        } else {
+            entrySize = 4;
+        }
+
+        // boot sector, reserved sectors, FATs and root directory
+        add(0, dataStart);
+
+        long clusterSize = sectorsPerCluster * bytesPerSector;
+        ByteBuffer fat = read(channel, reservedSectors * bytesPerSector,
+                (int) ((clusterCount + 2) * entrySize));
+        for (long cluster = 2; cluster < clusterCount + 2; cluster++) {
+            long entry = (entrySize == 2)
+                    ? fat.getShort((int) (cluster * 2)) & 0xFFFF
+                    : fat.getInt((int) (cluster * 4)) & 0x0FFFFFFF;
+            if (entry != 0) {
+                add(dataStart + (cluster - 2) * clusterSize, clusterSize);
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("unexpected end of file system at "
+                        + (position + buffer.position()));
+            }
+        }
+        return buffer;
+    }
+
+    private void add(long offset, long length) {
+        if (offset >= size) {
+            return;
+        }
+        length = Math.min(length, size - offset);
+        if (!extents.isEmpty()) {
+            // consecutive blocks are very common, merge them right away
+            long[] last = extents.get(extents.size() - 1);
+            if (last[0] + last[1] == offset) {
+                last[1] += length;
+                return;
+            }
+        }
+        extents.add(new long[]{offset, length});
+    }
+
+    // merges overlapping extents and extents with gaps up to minGap
+    private void mergeExtents(long minGap) {
+        sort(extents);
+        List<long[]> merged = new ArrayList<>();
+        for (long[] extent : extents) {
+            if (!merged.isEmpty()) {
+                long[] last = merged.get(merged.size() - 1);
+                long lastEnd = last[0] + last[1];
+                if (extent[0] <= lastEnd + minGap) {
+                    last[1] = Math.max(lastEnd, extent[0] + extent[1])
+                            - last[0];
+                    continue;
+                }
+            }
+            merged.add(new long[]{extent[0], extent[1]});
+        }
+        extents.clear();
+        extents.addAll(merged);
+    }
+
+    // cuts the unused extents out of the (merged) allocated extents
+    private void removeUnusedExtents() {
+        sort(unusedExtents);
+        List<long[]> remaining = new ArrayList<>();
+        int index = 0;
+        for (long[] extent : extents) {
+            long start = extent[0];
+            long end = extent[0] + extent[1];
+            while (index < unusedExtents.size()) {
+                long[] unused = unusedExtents.get(index);
+                if (unused[0] + unused[1] > start) {
+                    break;
+                }
+                index++;
+            }
+            for (int i = index; (i < unusedExtents.size())
+                    && (unusedExtents.get(i)[0] < end); i++) {
+                long[] unused = unusedExtents.get(i);
+                if (unused[0] > start) {
+                    remaining.add(new long[]{start, unused[0] - start});
+                }
+                start = Math.max(start, unused[0] + unused[1]);
+            }
+            if (start < end) {
+                remaining.add(new long[]{start, end - start});
+            }
+        }
+        extents.clear();
+        extents.addAll(remaining);
+    }
+
+    private static void sort(List<long[]> extents) {
+        Collections.sort(extents, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] extent1, long[] extent2) {
+                return Long.compare(extent1[0], extent2[0]);
+            }
+        });
+    }
+}
@@ -1,6 +1,5 @@
 package ch.fhnw.dlcopy.gui;
 
-import ch.fhnw.dlcopy.Installer;
 import ch.fhnw.filecopier.FileCopier;
 import ch.fhnw.util.StorageDevice;
 
@@ -40,20 +39,21 @@ public interface DLCopyGUI {
     /**
      * shows the user interface for copying the persistency partition during
      * installation
-     *
-     * @param installer the Installer currently in use
-     * @param copyScript the shell script for the copy operation
-     * @param sourcePath the path to the source directory
      */
-    public void showInstallPersistencyCopy(
-            Installer installer, String copyScript, String sourcePath);
+    public void showInstallPersistencyCopy();
 
     /**
-     * sets the current output line of the copy process
+     * sets the progress of copying the persistency partition during
+     * installation
      *
-     * @param line the current output line of the copy process
+     * @param percent the progress given in percent or <tt>-1</tt>, if the
+     * progress is still unknown
+     * @param progressInfo the progress message (e.g. "x of y copied")
+     * @param filename the name of the currently copied file
+     * @param duration the duration of the running copy operation
      */
-    public void setInstallCopyLine(String line);
+    public void setInstallPersistencyCopyProgress(int percent,
+            String progressInfo, String filename, long duration);
 
     /**
      * shows the user interface for unmouting file systems during installation
@@ -66,14 +66,32 @@ public interface DLCopyGUI {
      */
     public void showInstallWritingBootSector();
 
+    /**
+     * shows the user interface for cloning a master storage device on block
+     * level
+     */
+    public void showInstallCloning();
+
+    /**
+     * sets the progress info of a StorageDevice that is currently installed
+     * (several StorageDevices may be installed concurrently)
+     *
+     * @param storageDevice the StorageDevice that is currently installed
+     * @param progressInfo the progress info, e.g. the current installation
+     * step
+     */
+    public void setInstallingDeviceProgress(
+            StorageDevice storageDevice, String progressInfo);
+
     /**
      * called when installing of a StorageDevice finished
      *
+     * @param storageDevice the StorageDevice that was installed
      * @param errorMessage the error message or <code>null</code> if there was
      * no error
      * @param autoNumberStart the new auto numbering start value
      */
-    public void installingDeviceFinished(
+    public void installingDeviceFinished(StorageDevice storageDevice,
             String errorMessage, int autoNumberStart);
 
     /**
@@ -150,6 +168,14 @@ public interface DLCopyGUI {
      */
     public void showUpgradeChangingPartitionSizes();
 
+    /**
+     * shows the progress of updating the system images in place during a
+     * running upgrade
+     *
+     * @param percent the percentage of the system images already compared
+     */
+    public void showUpgradeUpdatingSystemImages(int percent);
+
     /**
      * sets the progress of the backup/restore process when upgrading a system
      *
@@ -189,10 +215,12 @@ public interface DLCopyGUI {
     /**
      * called when upgrading of a StorageDevice finished
      *
+     * @param storageDevice the StorageDevice that was upgraded
      * @param errorMessage the error message or <code>null</code> if there was
      * no error
      */
-    public void upgradingDeviceFinished(String errorMessage);
+    public void upgradingDeviceFinished(
+            StorageDevice storageDevice, String errorMessage);
 
     /**
      * called when upgrading all selected StorageDevices finished
@@ -0,0 +1,707 @@
+package ch.fhnw.dlcopy.gui.console;
+
+import ch.fhnw.dlcopy.Cloner;
+import ch.fhnw.dlcopy.DLCopy;
+import ch.fhnw.dlcopy.DataPartitionMode;
+import ch.fhnw.dlcopy.Installer;
+import ch.fhnw.dlcopy.IsoCreator;
+import ch.fhnw.dlcopy.IsoSystemSource;
+import ch.fhnw.dlcopy.RepartitionStrategy;
+import ch.fhnw.dlcopy.Repairer;
+import ch.fhnw.dlcopy.RunningSystemSource;
+import ch.fhnw.dlcopy.SquashFSCreator;
+import ch.fhnw.dlcopy.SystemSource;
+import ch.fhnw.dlcopy.Upgrader;
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.filecopier.FileCopier;
+import ch.fhnw.util.ProcessExecutor;
+import ch.fhnw.util.StorageDevice;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * A DLCopyGUI without any graphical user interface. All options are read from
+ * the command line (and an optional job file) and all progress information is
+ * written to stdout as JSON objects, one object per line. This is meant for
+ * production lines and servers without a display.
+ *
+ * Usage: dlcopy --headless --operation install|upgrade|repair|iso
+ * [--job &lt;file&gt;] [--&lt;option&gt; &lt;value&gt;]...
+ *
+ * The job file is a properties file with the same option names (without the
+ * leading "--"). Options on the command line override the job file.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class DLCopyConsoleGUI implements DLCopyGUI {
+
+    /**
+     * the command line argument that selects the headless mode
+     */
+    public static final String HEADLESS_ARGUMENT = "--headless";
+
+    private static final Logger LOGGER
+            = Logger.getLogger(DLCopyConsoleGUI.class.getName());
+    private static final ProcessExecutor PROCESS_EXECUTOR
+            = new ProcessExecutor();
+
+    private final Properties options;
+    private final PrintStream out;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final Set<FileCopier> observedFileCopiers = new HashSet<>();
+    private boolean success = true;
+    private int lastIsoPercent = -1;
+
+    /**
+     * creates a new DLCopyConsoleGUI
+     *
+     * @param options the options of the job
+     * @param out the stream where the JSON events are written to
+     */
+    public DLCopyConsoleGUI(Properties options, PrintStream out) {
+        this.options = options;
+        this.out = out;
+    }
+
+    /**
+     * runs a job in headless mode and exits the JVM when the job is done
+     *
+     * @param arguments the command line arguments
+     */
+    public static void main(String[] arguments) {
+        // we must never touch a display
+        System.setProperty("java.awt.headless", "true");
+        int exitValue;
+        try {
+            DLCopyConsoleGUI consoleGUI = new DLCopyConsoleGUI(
+                    parseOptions(arguments), System.out);
+            exitValue = consoleGUI.runJob() ? 0 : 1;
+        } catch (IOException | DBusException | InterruptedException |
+                IllegalArgumentException ex) {
+            LOGGER.log(Level.SEVERE, "", ex);
+            new DLCopyConsoleGUI(new Properties(), System.out).event(
+                    "error", "message", String.valueOf(ex.getMessage()));
+            exitValue = 2;
+        }
+        System.exit(exitValue);
+    }
+
+    /**
+     * returns <tt>true</tt>, if the given command line arguments select the
+     * headless mode
+     *
+     * @param arguments the command line arguments
+     * @return <tt>true</tt>, if the given command line arguments select the
+     * headless mode, <tt>false</tt> otherwise
+     */
+    public static boolean isHeadless(String[] arguments) {
+        return Arrays.asList(arguments).contains(HEADLESS_ARGUMENT);
+    }
+
+    /**
+     * parses the command line arguments (and the job file given with the
+     * option "--job")
+     *
+     * @param arguments the command line arguments
+     * @return the options
+     * @throws IOException if reading the job file fails
+     */
+    public static Properties parseOptions(String[] arguments)
+            throws IOException {
+        Properties commandLineOptions = new Properties();
+        for (int i = 0, length = arguments.length; i < length; i++) {
+            String argument = arguments[i];
+            if (!argument.startsWith("--")
+                    || argument.equals(HEADLESS_ARGUMENT)) {
+                continue;
+            }
+            String key = argument.substring(2);
+            if ((i + 1 < length) && !arguments[i + 1].startsWith("--")) {
+                commandLineOptions.setProperty(key, arguments[++i]);
+            } else {
+                // a flag without value
+                commandLineOptions.setProperty(key, "true");
+            }
+        }
+
+        Properties options = new Properties();
+        String jobFile = commandLineOptions.getProperty("job");
+        if (jobFile != null) {
+            try (InputStream inputStream = new FileInputStream(jobFile)) {
+                options.load(inputStream);
+            }
+        }
+        options.putAll(commandLineOptions);
+        return options;
+    }
+
+    /**
+     * runs the job
+     *
+     * @return <tt>true</tt>, if the job was successful, <tt>false</tt>
+     * otherwise
+     * @throws IOException if an I/O exception occurs
+     * @throws DBusException if a D-Bus exception occurs
+     * @throws InterruptedException if waiting for the job was interrupted
+     */
+    public boolean runJob()
+            throws IOException, DBusException, InterruptedException {
+
+        // (same variant names as in the graphical user interface)
+        switch (getOption("variant", "")) {
+            case "lernstick":
+            case "lernstick-pu":
+                DLCopy.systemPartitionLabel = "system";
+                break;
+            default:
+                DLCopy.systemPartitionLabel = "DEBIAN_LIVE";
+        }
+
+        String operation = getOption("operation", null);
+        if (operation == null) {
+            throw new IllegalArgumentException("missing option --operation");
+        }
+        event("jobStarted", "operation", operation);
+
+        switch (operation) {
+            case "install":
+                install();
+                break;
+            case "upgrade":
+                upgrade();
+                break;
+            case "repair":
+                repair();
+                break;
+            case "iso":
+                createIso();
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "unknown operation \"" + operation + '"');
+        }
+
+        finished.await();
+        event("jobFinished", "success", success);
+        return success;
+    }
+
+    @Override
+    public void showInstallProgress() {
+        event("installProgress");
+    }
+
+    @Override
+    public void installingDeviceStarted(StorageDevice storageDevice) {
+        deviceEvent("deviceStarted", storageDevice);
+    }
+
+    @Override
+    public void showInstallCreatingFileSystems() {
+        event("phase", "phase", "creatingFileSystems");
+    }
+
+    @Override
+    public void showInstallFileCopy(FileCopier fileCopier) {
+        event("phase", "phase", "copyingFiles");
+        observeFileCopier(fileCopier);
+    }
+
+    @Override
+    public void showInstallPersistencyCopy() {
+        event("phase", "phase", "copyingDataPartition");
+    }
+
+    @Override
+    public void setInstallPersistencyCopyProgress(int percent,
+            String progressInfo, String filename, long duration) {
+        event("dataPartitionProgress", "percent", percent,
+                "info", progressInfo, "file", filename, "duration", duration);
+    }
+
+    @Override
+    public void showInstallUnmounting() {
+        event("phase", "phase", "unmounting");
+    }
+
+    @Override
+    public void showInstallWritingBootSector() {
+        event("phase", "phase", "writingBootSector");
+    }
+
+    @Override
+    public void showInstallCloning() {
+        event("phase", "phase", "cloning");
+    }
+
+    @Override
+    public void setInstallingDeviceProgress(
+            StorageDevice storageDevice, String progressInfo) {
+        deviceEvent("deviceProgress", storageDevice, "info", progressInfo);
+    }
+
+    @Override
+    public void installingDeviceFinished(StorageDevice storageDevice,
+            String errorMessage, int autoNumberStart) {
+        deviceFinished(storageDevice, errorMessage);
+    }
+
+    @Override
+    public void installingListFinished() {
+        finished.countDown();
+    }
+
+    @Override
+    public void showUpgradeCreatingFileSystems() {
+        event("phase", "phase", "creatingFileSystems");
+    }
+
+    @Override
+    public void showUpgradeFileCopy(FileCopier fileCopier) {
+        event("phase", "phase", "copyingFiles");
+        observeFileCopier(fileCopier);
+    }
+
+    @Override
+    public void showUpgradeUnmounting() {
+        event("phase", "phase", "unmounting");
+    }
+
+    @Override
+    public void showUpgradeWritingBootSector() {
+        event("phase", "phase", "writingBootSector");
+    }
+
+    @Override
+    public void showUpgradeBackup() {
+        event("phase", "phase", "backup");
+    }
+
+    @Override
+    public void showUpgradeBackupExchangePartition(FileCopier fileCopier) {
+        event("phase", "phase", "backupExchangePartition");
+        observeFileCopier(fileCopier);
+    }
+
+    @Override
+    public void showUpgradeRestoreInit() {
+        event("phase", "phase", "restoreInit");
+    }
+
+    @Override
+    public void showUpgradeRestoreRunning() {
+        event("phase", "phase", "restore");
+    }
+
+    @Override
+    public void showUpgradeRestoreExchangePartition(FileCopier fileCopier) {
+        event("phase", "phase", "restoreExchangePartition");
+        observeFileCopier(fileCopier);
+    }
+
+    @Override
+    public void showUpgradeDataPartitionReset() {
+        event("phase", "phase", "dataPartitionReset");
+    }
+
+    @Override
+    public void showUpgradeChangingPartitionSizes() {
+        event("phase", "phase", "changingPartitionSizes");
+    }
+
+    @Override
+    public void showUpgradeUpdatingSystemImages(int percent) {
+        event("imageUpdateProgress", "percent", percent);
+    }
+
+    @Override
+    public void setUpgradeBackupProgress(String progressInfo) {
+        event("backupProgress", "info", progressInfo);
+    }
+
+    @Override
+    public void setUpgradeBackupFilename(String filename) {
+        // would flood the output, the progress info is enough
+    }
+
+    @Override
+    public void setUpgradeBackupDuration(long duration) {
+        // the consumer of our events has its own clock
+    }
+
+    @Override
+    public void showUpgradeSystemPartitionReset() {
+        event("phase", "phase", "systemPartitionReset");
+    }
+
+    @Override
+    public void upgradingDeviceStarted(StorageDevice storageDevice) {
+        deviceEvent("deviceStarted", storageDevice);
+    }
+
+    @Override
+    public void upgradingDeviceFinished(
+            StorageDevice storageDevice, String errorMessage) {
+        deviceFinished(storageDevice, errorMessage);
+    }
+
+    @Override
+    public void upgradingListFinished() {
+        finished.countDown();
+    }
+
+    @Override
+    public void showIsoProgressMessage(String message) {
+        event("isoProgress", "info", message);
+    }
+
+    @Override
+    public void showIsoProgressMessage(String message, int value) {
+        // mksquashfs reports every single percent step several times
+        synchronized (this) {
+            if (value == lastIsoPercent) {
+                return;
+            }
+            lastIsoPercent = value;
+        }
+        event("isoProgress", "info", message, "percent", value);
+    }
+
+    @Override
+    public void isoCreationFinished(String path, boolean success) {
+        event("isoFinished", "path", path, "success", success);
+        synchronized (this) {
+            this.success &= success;
+        }
+        finished.countDown();
+    }
+
+    @Override
+    public void showRepairProgress() {
+        event("repairProgress");
+    }
+
+    @Override
+    public void repairingDeviceStarted(StorageDevice storageDevice) {
+        deviceEvent("deviceStarted", storageDevice);
+    }
+
+    @Override
+    public void showRepairFormattingDataPartition() {
+        event("phase", "phase", "formattingDataPartition");
+    }
+
+    @Override
+    public void showRepairRemovingFiles() {
+        event("phase", "phase", "removingFiles");
+    }
+
+    @Override
+    public void repairingFinished(boolean success) {
+        synchronized (this) {
+            this.success &= success;
+        }
+        finished.countDown();
+    }
+
+    @Override
+    public void showErrorMessage(String errorMessage) {
+        event("error", "message", errorMessage);
+    }
+
+    @Override
+    public boolean showConfirmDialog(String title, String message) {
+        // nobody is there to answer, use the answer of the job
+        boolean confirmed = getBooleanOption("confirm", false);
+        event("confirm", "title", title, "message", message,
+                "confirmed", confirmed);
+        return confirmed;
+    }
+
+    private void install()
+            throws IOException, DBusException, InterruptedException {
+        SystemSource source = getSystemSource();
+        List<StorageDevice> deviceList = getDeviceList(source);
+        int autoNumberStart = getIntOption("autoNumberStart", 1);
+        int parallelInstallations = getIntOption("parallelInstallations",
+                Runtime.getRuntime().availableProcessors());
+
+        String cloneFrom = getOption("cloneFrom", null);
+        if (cloneFrom != null) {
+            new Cloner(new StorageDevice(getDeviceName(cloneFrom)),
+                    deviceList, this, parallelInstallations, autoNumberStart)
+                    .execute();
+            return;
+        }
+
+        new Installer(source, deviceList,
+                getOption("exchangePartitionLabel",
+                        DLCopy.STRINGS.getString("Exchange")),
+                getOption("exchangePartitionFileSystem", "exFAT"),
+                getOption("dataPartitionFileSystem", "ext4"), this,
+                getIntOption("exchangePartitionSize", 0),
+                getBooleanOption("copyExchangePartition", false),
+                autoNumberStart, getIntOption("autoNumberIncrement", 1),
+                getOption("autoNumberPattern", ""),
+                getBooleanOption("copyDataPartition", false),
+                getDataPartitionMode(), parallelInstallations,
+                getIntOption("fanOutWindow", 64),
+                getBooleanOption("verify", false), false).execute();
+    }
+
+    private void upgrade() throws IOException, DBusException {
+        SystemSource source = getSystemSource();
+        List<StorageDevice> deviceList = getDeviceList(source);
+        String filesToOverwrite = getOption("filesToOverwrite", "");
+        List<String> overwriteList = new ArrayList<>();
+        for (String file : filesToOverwrite.split(":")) {
+            if (!file.isEmpty()) {
+                overwriteList.add(file);
+            }
+        }
+        boolean automaticBackup = getBooleanOption("automaticBackup", false);
+        new Upgrader(source, deviceList,
+                getOption("exchangePartitionLabel",
+                        DLCopy.STRINGS.getString("Exchange")),
+                getOption("exchangePartitionFileSystem", "exFAT"),
+                getOption("dataPartitionFileSystem", "ext4"), this,
+                RepartitionStrategy.valueOf(getOption(
+                        "repartitionStrategy", "KEEP").toUpperCase()),
+                getIntOption("resizedExchangePartitionSize", 0),
+                automaticBackup,
+                getOption("automaticBackupDestination", ""),
+                automaticBackup && getBooleanOption("removeBackup", false),
+                getBooleanOption("upgradeSystemPartition", true),
+                getBooleanOption("keepPrinterSettings", true),
+                getBooleanOption("reactivateWelcome", true),
+                getBooleanOption("removeHiddenFiles", false), overwriteList,
+                DLCopy.getEnlargedSystemSize(source.getSystemSize()),
+                getIntOption("parallelInstallations",
+                        Runtime.getRuntime().availableProcessors()))
+                .execute();
+    }
+
+    private void repair() throws IOException, DBusException {
+        new Repairer(this, getDeviceList(null),
+                getBooleanOption("formatDataPartition", false),
+                getOption("dataPartitionFileSystem", "ext4"),
+                getBooleanOption("resetHome", false),
+                getBooleanOption("resetSystem", true)).execute();
+    }
+
+    private void createIso() throws IOException, DBusException {
+        SystemSource source = getSystemSource();
+        String tmpDirectory = getOption("tmpDirectory", "/media");
+        boolean showNotUsedDialog
+                = getBooleanOption("showNotUsedDialog", false);
+        boolean autoStartInstaller
+                = getBooleanOption("autoStartInstaller", false);
+        if (getBooleanOption("dataPartitionSquashfs", false)) {
+            new SquashFSCreator(this, source, tmpDirectory,
+                    showNotUsedDialog, autoStartInstaller).execute();
+        } else {
+            new IsoCreator(this, source,
+                    getBooleanOption("onlyBootMedium", false), tmpDirectory,
+                    getDataPartitionMode(), showNotUsedDialog,
+                    autoStartInstaller, getOption("isoLabel", "")).execute();
+        }
+    }
+
+    private SystemSource getSystemSource() throws IOException, DBusException {
+        String isoSource = getOption("isoSource", null);
+        if (isoSource == null) {
+            return new RunningSystemSource(PROCESS_EXECUTOR);
+        }
+        return new IsoSystemSource(isoSource, PROCESS_EXECUTOR);
+    }
+
+    private List<StorageDevice> getDeviceList(SystemSource source)
+            throws DBusException {
+        String devices = getOption("devices", null);
+        if (devices == null) {
+            throw new IllegalArgumentException("missing option --devices");
+        }
+        List<StorageDevice> deviceList = new ArrayList<>();
+        for (String device : devices.split(",")) {
+            String deviceName = getDeviceName(device.trim());
+            if (deviceName.isEmpty()) {
+                continue;
+            }
+            if ((source != null) && deviceName.equals(
+                    getDeviceName(source.getDeviceName()))) {
+                // never overwrite the system we are running from
+                throw new IllegalArgumentException(
+                        deviceName + " is the source device");
+            }
+            deviceList.add(new StorageDevice(deviceName));
+        }
+        if (deviceList.isEmpty()) {
+            throw new IllegalArgumentException("no devices given");
+        }
+        return deviceList;
+    }
+
+    private DataPartitionMode getDataPartitionMode() {
+        return DataPartitionMode.valueOf(getOption(
+                "dataPartitionMode", "READ_WRITE").toUpperCase());
+    }
+
+    private String getOption(String key, String defaultValue) {
+        return options.getProperty(key, defaultValue);
+    }
+
+    private boolean getBooleanOption(String key, boolean defaultValue) {
+        String value = options.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private int getIntOption(String key, int defaultValue) {
+        String value = options.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(
+                    "invalid value \"" + value + "\" of option --" + key, ex);
+        }
+    }
+
+    private static String getDeviceName(String device) {
+        return device.startsWith("/dev/") ? device.substring(5) : device;
+    }
+
+    private void observeFileCopier(final FileCopier fileCopier) {
+        synchronized (observedFileCopiers) {
+            if (!observedFileCopiers.add(fileCopier)) {
+                return;
+            }
+        }
+        fileCopier.addPropertyChangeListener(FileCopier.BYTE_COUNTER_PROPERTY,
+                new PropertyChangeListener() {
+            private int lastPercent = -1;
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                long byteCount = fileCopier.getByteCount();
+                long copiedBytes = fileCopier.getCopiedBytes();
+                int percent = (int) (byteCount == 0
+                        ? 100 : copiedBytes * 100 / byteCount);
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    event("copyProgress", "percent", percent,
+                            "copied", copiedBytes, "total", byteCount);
+                }
+            }
+        });
+    }
+
+    private void deviceEvent(String name, StorageDevice storageDevice,
+            Object... keysAndValues) {
+        Object[] deviceKeysAndValues
+                = new Object[keysAndValues.length + 6];
+        deviceKeysAndValues[0] = "device";
+        deviceKeysAndValues[1] = storageDevice.getDevice();
+        deviceKeysAndValues[2] = "vendor";
+        deviceKeysAndValues[3] = storageDevice.getVendor();
+        deviceKeysAndValues[4] = "model";
+        deviceKeysAndValues[5] = storageDevice.getModel();
+        System.arraycopy(keysAndValues, 0, deviceKeysAndValues, 6,
+                keysAndValues.length);
+        event(name, deviceKeysAndValues);
+    }
+
+    private void deviceFinished(StorageDevice storageDevice,
+            String errorMessage) {
+        synchronized (this) {
+            success &= (errorMessage == null);
+        }
+        if (storageDevice == null) {
+            event("deviceFinished", "success", errorMessage == null,
+                    "error", errorMessage);
+        } else {
+            deviceEvent("deviceFinished", storageDevice,
+                    "success", errorMessage == null, "error", errorMessage);
+        }
+    }
+
+    private void event(String name, Object... keysAndValues) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("time", System.currentTimeMillis());
+        event.put("event", name);
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            event.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        String line = toJson(event);
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    private static String toJson(Map<String, Object> map) {
+        StringBuilder builder = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            appendJsonString(builder, entry.getKey());
+            builder.append(':');
+            Object value = entry.getValue();
+            if ((value == null) || (value instanceof Number)
+                    || (value instanceof Boolean)) {
+                builder.append(value);
+            } else {
+                appendJsonString(builder, value.toString());
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder builder, String string) {
+        builder.append('"');
+        for (char c : string.toCharArray()) {
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
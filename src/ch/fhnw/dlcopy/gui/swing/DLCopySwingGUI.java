@@ -5,6 +5,7 @@
  */
 package ch.fhnw.dlcopy.gui.swing;
 
+import ch.fhnw.dlcopy.Cloner;
 import ch.fhnw.dlcopy.DLCopy;
 import ch.fhnw.dlcopy.DebianLiveDistribution;
 import ch.fhnw.dlcopy.PartitionState;
@@ -47,7 +48,6 @@ import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
@@ -140,7 +140,6 @@ public class DLCopySwingGUI extends JFrame
     private final ResultsTableModel installationResultsTableModel;
     private final ResultsTableModel upgradeResultsTableModel;
     private final ResultsTableModel resultsTableModel;
-    private CpActionListener cpActionListener;
 
     private final static Pattern ADDED_PATTERN = Pattern.compile(
             ".*: Added (/org/freedesktop/UDisks2/block_devices/.*)");
@@ -151,8 +150,9 @@ public class DLCopySwingGUI extends JFrame
             = new StorageDeviceListUpdateDialogHandler(this);
 
     private int batchCounter;
-    private long deviceStartTime;
     private StorageDevice currentDevice;
+    private final Map<StorageDevice, Long> deviceStartTimes
+            = new HashMap<>();
     private List<StorageDeviceResult> resultsList;
 
     private Integer commandLineExchangePartitionSize;
@@ -160,6 +160,13 @@ public class DLCopySwingGUI extends JFrame
     private Boolean commandLineCopyDataPartition;
     private boolean instantInstallation;
     private boolean instantInstallationDone;
+    private int parallelInstallations
+            = Runtime.getRuntime().availableProcessors();
+    private String cloneSourceDevice;
+    private int fanOutWindow = 64;
+    private boolean verifyInstallation;
+    private boolean stationMode;
+    private volatile Installer stationInstaller;
 
     /**
      * Creates new form DLCopy
@@ -522,6 +529,18 @@ public class DLCopySwingGUI extends JFrame
                             repairStorageDeviceList, this).execute();
                     break;
 
+                case INSTALLATION:
+                    if (stationInstaller != null) {
+                        new StationStorageDeviceAdder(addedPath,
+                                installShowHarddisksCheckBox.isSelected(),
+                                stationInstaller).execute();
+                        break;
+                    }
+                    LOGGER.log(Level.INFO,
+                            "device change not handled in state {0}",
+                            state);
+                    break;
+
                 default:
                     LOGGER.log(Level.INFO,
                             "device change not handled in state {0}",
@@ -569,7 +588,8 @@ public class DLCopySwingGUI extends JFrame
     }
 
     @Override
-    public void installingDeviceStarted(StorageDevice storageDevice) {
+    public synchronized void installingDeviceStarted(
+            StorageDevice storageDevice) {
         deviceStarted(storageDevice);
 
         // update label
@@ -579,11 +599,14 @@ public class DLCopySwingGUI extends JFrame
                 + LernstickFileTools.getDataVolumeString(
                         storageDevice.getSize(), 1),
                 "/dev/" + storageDevice.getDevice(), batchCounter,
-                installStorageDeviceList.getSelectedIndices().length);
+                stationInstaller == null
+                        ? installStorageDeviceList.getSelectedIndices().length
+                        : batchCounter);
         setLabelTextonEDT(currentlyInstalledDeviceLabel, deviceInfo);
 
         // add "in progress" entry to results table
-        installationResultsTableModel.setList(resultsList);
+        installationResultsTableModel.setList(
+                new ArrayList<>(resultsList));
     }
 
     @Override
@@ -598,48 +621,40 @@ public class DLCopySwingGUI extends JFrame
     }
 
     @Override
-    public void showInstallPersistencyCopy(
-            Installer installer, String copyScript, String sourcePath) {
-        cpActionListener = new CpActionListener(
-                cpFilenameLabel, cpTimeLabel, sourcePath);
-        javax.swing.Timer cpTimer
-                = new javax.swing.Timer(1000, cpActionListener);
-        cpTimer.setInitialDelay(0);
-        cpTimer.start();
+    public void showInstallPersistencyCopy() {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
                 cpFilenameLabel.setText(" ");
+                cpPogressBar.setIndeterminate(true);
+                cpPogressBar.setStringPainted(false);
                 cpPogressBar.setValue(0);
                 cpTimeLabel.setText(timeFormat.format(new Date(0)));
                 showCard(installCardPanel, "cpPanel");
             }
         });
-
-        try {
-            TimeUnit.SECONDS.sleep(1);
-        } catch (InterruptedException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
-        }
-        try {
-            PROCESS_EXECUTOR.addPropertyChangeListener(installer);
-            int exitValue
-                    = PROCESS_EXECUTOR.executeScript(true, true, copyScript);
-            PROCESS_EXECUTOR.removePropertyChangeListener(installer);
-            cpTimer.stop();
-            if (exitValue != 0) {
-                String errorMessage = "Could not copy persistence layer!";
-                LOGGER.severe(errorMessage);
-                throw new IOException(errorMessage);
-            }
-        } catch (IOException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
-        }
     }
 
     @Override
-    public void setInstallCopyLine(String line) {
-        cpActionListener.setCurrentLine(line);
+    public void setInstallPersistencyCopyProgress(final int percent,
+            final String progressInfo, final String filename,
+            final long duration) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (percent < 0) {
+                    cpPogressBar.setIndeterminate(true);
+                    cpPogressBar.setStringPainted(false);
+                } else {
+                    cpPogressBar.setIndeterminate(false);
+                    cpPogressBar.setStringPainted(true);
+                    cpPogressBar.setValue(percent);
+                    cpPogressBar.setString(progressInfo);
+                }
+                cpFilenameLabel.setText(filename);
+                cpTimeLabel.setText(timeFormat.format(new Date(duration)));
+            }
+        });
     }
 
     @Override
@@ -653,19 +668,40 @@ public class DLCopySwingGUI extends JFrame
     }
 
     @Override
-    public void installingDeviceFinished(
-            String errorMessage, int autoNumberStart) {
+    public void showInstallCloning() {
+        showInstallIndeterminateProgressBarText("Cloning_Partitions");
+    }
+
+    @Override
+    public synchronized void setInstallingDeviceProgress(
+            StorageDevice storageDevice, String progressInfo) {
+        int index = getInProgressIndex(storageDevice);
+        if (index == -1) {
+            return;
+        }
+        resultsList.set(index, new StorageDeviceResult(
+                storageDevice, -1, null, progressInfo));
+        installationResultsTableModel.setList(
+                new ArrayList<>(resultsList));
+    }
+
+    @Override
+    public synchronized void installingDeviceFinished(
+            StorageDevice storageDevice, String errorMessage,
+            int autoNumberStart) {
         // update final report
-        deviceFinished(errorMessage);
+        deviceFinished(storageDevice, errorMessage);
 
         // update current report
-        installationResultsTableModel.setList(resultsList);
+        installationResultsTableModel.setList(
+                new ArrayList<>(resultsList));
 
         autoNumberStartSpinner.setValue(autoNumberStart);
     }
 
     @Override
     public void installingListFinished() {
+        stationInstaller = null;
         batchFinished(
                 "Installation_Done_Message_From_Non_Removable_Boot_Device",
                 "Installation_Done_Message_From_Removable_Boot_Device",
@@ -676,7 +712,8 @@ public class DLCopySwingGUI extends JFrame
     }
 
     @Override
-    public void upgradingDeviceStarted(StorageDevice storageDevice) {
+    public synchronized void upgradingDeviceStarted(
+            StorageDevice storageDevice) {
         deviceStarted(storageDevice);
 
         // update label
@@ -695,7 +732,7 @@ public class DLCopySwingGUI extends JFrame
         setLabelTextonEDT(currentlyUpgradedDeviceLabel, deviceInfo);
 
         // add "in progress" entry to results table
-        upgradeResultsTableModel.setList(resultsList);
+        upgradeResultsTableModel.setList(new ArrayList<>(resultsList));
     }
 
     @Override
@@ -786,6 +823,18 @@ public class DLCopySwingGUI extends JFrame
                 STRINGS.getString("Changing_Partition_Sizes"));
     }
 
+    @Override
+    public void showUpgradeUpdatingSystemImages(final int percent) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                showCard(upgradeCardPanel, "upgradeIndeterminateProgressPanel");
+                upgradeIndeterminateProgressBar.setString(MessageFormat.format(
+                        STRINGS.getString("Updating_System_Images"), percent));
+            }
+        });
+    }
+
     @Override
     public void showUpgradeDataPartitionReset() {
         setProgressBarStringOnEDT(upgradeIndeterminateProgressBar,
@@ -826,12 +875,13 @@ public class DLCopySwingGUI extends JFrame
     }
 
     @Override
-    public void upgradingDeviceFinished(String errorMessage) {
+    public synchronized void upgradingDeviceFinished(
+            StorageDevice storageDevice, String errorMessage) {
         // upgrade final report
-        deviceFinished(errorMessage);
+        deviceFinished(storageDevice, errorMessage);
 
         // update current report
-        upgradeResultsTableModel.setList(resultsList);
+        upgradeResultsTableModel.setList(new ArrayList<>(resultsList));
     }
 
     @Override
@@ -3332,6 +3382,14 @@ public class DLCopySwingGUI extends JFrame
                 break;
 
             case INSTALLATION:
+                if (stationInstaller != null) {
+                    // stop the station mode, the running installations still
+                    // finish
+                    stationInstaller.stopStationMode();
+                    nextButton.setEnabled(false);
+                    break;
+                }
+            // fall through
             case UPGRADE:
             case ISO_INSTALLATION:
             case REPAIR:
@@ -3793,6 +3851,48 @@ private void upgradeShowHarddisksCheckBoxItemStateChanged(java.awt.event.ItemEve
             if (arguments[i].equals("--instantInstallation")) {
                 instantInstallation = true;
             }
+
+            // install every hot-plugged storage device until stopped
+            if (arguments[i].equals("--stationMode")) {
+                stationMode = true;
+                instantInstallation = true;
+            }
+
+            // verify the installed system files against md5sum.txt
+            if (arguments[i].equals("--verify")) {
+                verifyInstallation = true;
+            }
+
+            // clone a master storage device instead of installing the system
+            if (arguments[i].equals("--cloneFrom")
+                    && (i != length - 1)) {
+                cloneSourceDevice = arguments[i + 1];
+                if (cloneSourceDevice.startsWith("/dev/")) {
+                    cloneSourceDevice = cloneSourceDevice.substring(5);
+                }
+            }
+
+            // the number of MiB a fast storage device may be ahead of the
+            // slowest one when copying the system image files
+            if (arguments[i].equals("--fanOutWindow")
+                    && (i != length - 1)) {
+                try {
+                    fanOutWindow = Integer.parseInt(arguments[i + 1]);
+                } catch (NumberFormatException numberFormatException) {
+                    LOGGER.log(Level.WARNING, "", numberFormatException);
+                }
+            }
+
+            // the number of storage devices to install concurrently
+            if (arguments[i].equals("--parallelInstallations")
+                    && (i != length - 1)) {
+                try {
+                    parallelInstallations = Math.max(1,
+                            Integer.parseInt(arguments[i + 1]));
+                } catch (NumberFormatException numberFormatException) {
+                    LOGGER.log(Level.WARNING, "", numberFormatException);
+                }
+            }
         }
     }
 
@@ -4470,23 +4570,41 @@ private void upgradeShowHarddisksCheckBoxItemStateChanged(java.awt.event.ItemEve
 
     private void deviceStarted(StorageDevice storageDevice) {
         currentDevice = storageDevice;
-        deviceStartTime = System.currentTimeMillis();
+        deviceStartTimes.put(storageDevice, System.currentTimeMillis());
         batchCounter++;
         resultsList.add(new StorageDeviceResult(storageDevice, -1, null));
     }
 
-    private void deviceFinished(String errorMessage) {
-        long duration = System.currentTimeMillis() - deviceStartTime;
-
-        // remove "in progress" entry
-        resultsList.remove(resultsList.size() - 1);
-
-        // add current result
-        resultsList.add(new StorageDeviceResult(
-                currentDevice, duration, errorMessage));
+    private void deviceFinished(
+            StorageDevice storageDevice, String errorMessage) {
+        Long startTime = deviceStartTimes.remove(storageDevice);
+        long duration = (startTime == null)
+                ? 0 : System.currentTimeMillis() - startTime;
+
+        // replace "in progress" entry with the current result
+        // (several devices may be in progress at the same time)
+        StorageDeviceResult result = new StorageDeviceResult(
+                storageDevice, duration, errorMessage);
+        int index = getInProgressIndex(storageDevice);
+        if (index == -1) {
+            resultsList.add(result);
+        } else {
+            resultsList.set(index, result);
+        }
 
         // update final report
-        resultsTableModel.setList(resultsList);
+        resultsTableModel.setList(new ArrayList<>(resultsList));
+    }
+
+    private int getInProgressIndex(StorageDevice storageDevice) {
+        for (int i = resultsList.size() - 1; i >= 0; i--) {
+            StorageDeviceResult result = resultsList.get(i);
+            if ((result.getDuration() == -1)
+                    && result.getStorageDevice() == storageDevice) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     private void batchFinished(String nonRemovableKey,
@@ -4570,6 +4688,10 @@ private void upgradeShowHarddisksCheckBoxItemStateChanged(java.awt.event.ItemEve
             if (storageDevice.getType() == StorageDevice.Type.HardDrive) {
                 harddiskSelected = true;
             }
+            if (cloneSourceDevice != null) {
+                // a clone gets the partitions of its master
+                continue;
+            }
             PartitionSizes partitionSizes = DLCopy.getInstallPartitionSizes(
                     systemSource, storageDevice,
                     exchangePartitionSizeSlider.getValue());
@@ -4643,12 +4765,36 @@ private void upgradeShowHarddisksCheckBoxItemStateChanged(java.awt.event.ItemEve
         resultsList = new ArrayList<>();
         batchCounter = 0;
 
-        new Installer(systemSource, deviceList,
+        if (cloneSourceDevice != null) {
+            for (Iterator<StorageDevice> iterator = deviceList.iterator();
+                    iterator.hasNext();) {
+                StorageDevice storageDevice = iterator.next();
+                if (storageDevice.getDevice().equals(cloneSourceDevice)) {
+                    // never clone the master onto itself
+                    iterator.remove();
+                }
+            }
+            StorageDevice master = new StorageDevice(cloneSourceDevice);
+            new Cloner(master, deviceList, this, parallelInstallations,
+                    autoNumber).execute();
+            return;
+        }
+
+        Installer installer = new Installer(systemSource, deviceList,
                 exchangePartitionTextField.getText(),
                 exchangePartitionFileSystem, dataPartitionFileSystem, this,
                 exchangePartitionSizeSlider.getValue(), copyExchange,
                 autoNumber, autoIncrement, autoNumberPatternTextField.getText(),
-                copyData, dataPartitionMode).execute();
+                copyData, dataPartitionMode, parallelInstallations,
+                fanOutWindow, verifyInstallation, stationMode);
+        if (stationMode) {
+            // hot-plugged devices are passed to the installer until the user
+            // stops the station mode
+            stationInstaller = installer;
+            nextButton.setText(STRINGS.getString("Stop_Station_Mode"));
+            nextButton.setEnabled(true);
+        }
+        installer.execute();
     }
 
     private void upgrade() {
@@ -4796,7 +4942,7 @@ private void upgradeShowHarddisksCheckBoxItemStateChanged(java.awt.event.ItemEve
         new Upgrader(runningSystemSource, deviceList,
                 exchangePartitionTextField.getText(),
                 exchangePartitionFileSystem, dataPartitionFileSystem, this,
-                this, repartitionStrategy, exchangeMB,
+                repartitionStrategy, exchangeMB,
                 automaticBackupCheckBox.isSelected(),
                 automaticBackupTextField.getText(), removeBackup,
                 upgradeSystemPartitionCheckBox.isSelected(),
@@ -4804,8 +4950,8 @@ private void upgradeShowHarddisksCheckBoxItemStateChanged(java.awt.event.ItemEve
                 reactivateWelcomeCheckBox.isSelected(),
                 removeHiddenFilesCheckBox.isSelected(), overWriteList,
                 DLCopy.getEnlargedSystemSize(
-                        runningSystemSource.getSystemSize()))
-                .execute();
+                        runningSystemSource.getSystemSize()),
+                parallelInstallations).execute();
     }
 
     private boolean checkExchange(PartitionSizes partitionSizes)
@@ -124,8 +124,11 @@ public class ResultsTableModel extends PreferredSizesTableModel {
                 String errorMessage = result.getErrorMessage();
                 if (errorMessage == null) {
                     if (result.getDuration() == -1) {
+                        String progressInfo = result.getProgressInfo();
                         return "<html><font color=\"green\">"
-                                + STRINGS.getString("In_Progress")
+                                + (progressInfo == null
+                                        ? STRINGS.getString("In_Progress")
+                                        : progressInfo)
                                 + "</font></html>";
                     } else {
                         return "<html><font color=\"green\">"
@@ -0,0 +1,55 @@
+package ch.fhnw.dlcopy.gui.swing;
+
+import ch.fhnw.dlcopy.DLCopy;
+import ch.fhnw.dlcopy.Installer;
+import ch.fhnw.util.StorageDevice;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingWorker;
+
+/**
+ * parses udisks output paths and passes the corresponding storage devices to
+ * an Installer running in station mode
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class StationStorageDeviceAdder extends SwingWorker<Void, Void> {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(StationStorageDeviceAdder.class.getName());
+
+    private final String addedPath;
+    private final boolean showHarddisks;
+    private final Installer installer;
+
+    /**
+     * creates a new StationStorageDeviceAdder
+     *
+     * @param addedPath the added udisks path
+     * @param showHarddisks if true, paths to hard disks are processed,
+     * otherwise ignored
+     * @param installer the Installer running in station mode
+     */
+    public StationStorageDeviceAdder(String addedPath, boolean showHarddisks,
+            Installer installer) {
+        this.addedPath = addedPath;
+        this.showHarddisks = showHarddisks;
+        this.installer = installer;
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        // waits until udisks knows all partitions of the device, so the
+        // installation starts as soon as the device is ready
+        StorageDevice storageDevice = DLCopy.getStorageDeviceAfterTimeout(
+                addedPath, showHarddisks);
+        if (storageDevice == null) {
+            // partitions, loop devices, hard disks, ...
+            return null;
+        }
+        LOGGER.log(Level.INFO, "station mode: adding {0}",
+                storageDevice.getDevice());
+        installer.addStorageDevice(storageDevice);
+        return null;
+    }
+}
@@ -1,11 +1,11 @@
 package ch.fhnw.dlcopy.gui.swing;
 
 import ch.fhnw.dlcopy.DLCopy;
+import ch.fhnw.dlcopy.DeviceReadinessWaiter;
 import ch.fhnw.dlcopy.SystemSource;
 import ch.fhnw.util.Partition;
 import ch.fhnw.util.StorageDevice;
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.DefaultListModel;
@@ -49,7 +49,7 @@ public class UpgradeStorageDeviceAdder extends StorageDeviceAdder {
     @Override
     public void initDevice() {
         try {
-            TimeUnit.SECONDS.sleep(7);
+            DeviceReadinessWaiter.waitForPartitions(addedDevice.getDevice());
             addedDevice.getUpgradeVariant(
                     DLCopy.getEnlargedSystemSize(source.getSystemSize()));
             for (Partition partition : addedDevice.getPartitions()) {
@@ -62,7 +62,7 @@ public class UpgradeStorageDeviceAdder extends StorageDeviceAdder {
                 } catch (Exception ignored) {
                 }
             }
-        } catch (DBusException | IOException | InterruptedException ex) {
+        } catch (DBusException | IOException ex) {
             LOGGER.log(Level.SEVERE, "", ex);
         }
     }
@@ -0,0 +1,129 @@
+package ch.fhnw.dlcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests backing up and restoring with HardLinkBackup.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class HardLinkBackupTest {
+
+    private static final List<String> INCLUDES = Arrays.asList("home/user");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testBackupAndRestore() throws IOException {
+        Path source = createSource("first");
+        File pool = temporaryFolder.newFolder("backups", ".pool");
+        HardLinkBackup backup = new HardLinkBackup(pool);
+        File snapshot = backup.backup(source.toString(), INCLUDES,
+                temporaryFolder.newFolder("backups", "serial1"));
+        assertTrue(HardLinkBackup.exists(snapshot));
+        assertEquals(3, backup.getFileCounter());
+
+        Path destination = temporaryFolder.newFolder("restore").toPath();
+        backup.restore(snapshot, destination.toString());
+        Path user = destination.resolve("home/user");
+        assertEquals("first", read(user.resolve("a.txt")));
+        assertEquals("same", read(user.resolve("dir/b.txt")));
+        assertEquals(Paths.get("a.txt"),
+                Files.readSymbolicLink(user.resolve("link")));
+        assertEquals("rw-------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(user.resolve("a.txt"))));
+        assertEquals(FileTime.fromMillis(1000000000000L),
+                Files.getLastModifiedTime(user.resolve("dir/b.txt")));
+        assertEquals(FileTime.fromMillis(1200000000000L),
+                Files.getLastModifiedTime(user.resolve("dir")));
+    }
+
+    @Test
+    public void testDeduplication() throws IOException {
+        File pool = temporaryFolder.newFolder("backups", ".pool");
+        HardLinkBackup backup = new HardLinkBackup(pool);
+        backup.backup(createSource("first").toString(), INCLUDES,
+                temporaryFolder.newFolder("backups", "serial1"));
+        backup.backup(createSource("second").toString(), INCLUDES,
+                temporaryFolder.newFolder("backups", "serial2"));
+        // "first", "second" and "same" (only once)
+        assertEquals(3, countFiles(pool.toPath()));
+
+        // no snapshot references "first" anymore
+        deleteTree(new File(temporaryFolder.getRoot(), "backups/serial1")
+                .toPath());
+        assertEquals(1, HardLinkBackup.collectGarbage(pool));
+        assertEquals(2, countFiles(pool.toPath()));
+    }
+
+    @Test
+    public void testOlderBackupsAreKept() throws IOException {
+        File backupDirectory = temporaryFolder.newFolder("backups", "serial");
+        // e.g. an rdiff-backup repository of an older version
+        Path oldFile = backupDirectory.toPath().resolve(
+                "rdiff-backup-data/current_mirror");
+        Files.createDirectories(oldFile.getParent());
+        Files.write(oldFile, "old".getBytes(StandardCharsets.UTF_8));
+
+        HardLinkBackup backup = new HardLinkBackup(
+                temporaryFolder.newFolder("backups", ".pool"));
+        File snapshot = backup.backup(createSource("first").toString(),
+                INCLUDES, backupDirectory);
+        assertEquals(backupDirectory, snapshot.getParentFile());
+        assertEquals("old", read(oldFile));
+    }
+
+    private Path createSource(String content) throws IOException {
+        Path root = temporaryFolder.newFolder().toPath();
+        Path user = root.resolve("home/user");
+        Files.createDirectories(user.resolve("dir"));
+        Path a = user.resolve("a.txt");
+        Files.write(a, content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(a,
+                PosixFilePermissions.fromString("rw-------"));
+        Path b = user.resolve("dir/b.txt");
+        Files.write(b, "same".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(b, FileTime.fromMillis(1000000000000L));
+        Files.setLastModifiedTime(user.resolve("dir"),
+                FileTime.fromMillis(1200000000000L));
+        Files.createSymbolicLink(user.resolve("link"), Paths.get("a.txt"));
+        return root;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static int countFiles(Path directory) throws IOException {
+        int count = 0;
+        for (File file : directory.toFile().listFiles()) {
+            count += file.isDirectory() ? countFiles(file.toPath()) : 1;
+        }
+        return count;
+    }
+
+    private static void deleteTree(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            for (File file : path.toFile().listFiles()) {
+                deleteTree(file.toPath());
+            }
+        }
+        Files.delete(path);
+    }
+}
@@ -0,0 +1,122 @@
+package ch.fhnw.dlcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that LowerLayerExtractor sees the same files as aufs would.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class LowerLayerExtractorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private Path writable;
+    private Path upper;
+    private Path lower;
+
+    @Before
+    public void setUp() throws IOException {
+        writable = temporaryFolder.newFolder("data").toPath();
+        upper = temporaryFolder.newFolder("upper").toPath();
+        lower = temporaryFolder.newFolder("lower").toPath();
+    }
+
+    @Test
+    public void testWhiteouts() throws IOException {
+        write(lower, "home/user/lower.txt", "lower");
+        write(lower, "home/user/shadowed.txt", "lower");
+        write(upper, "home/user/shadowed.txt", "upper");
+        // whiteouts in the upper branch and in the writable branch
+        write(lower, "home/user/deleted.txt", "lower");
+        write(upper, "home/user/.wh.deleted.txt", "");
+        write(lower, "home/user/deletedLater.txt", "lower");
+        write(writable, "home/user/.wh.deletedLater.txt", "");
+        // files in the writable branch hide everything below
+        write(lower, "home/user/changed.txt", "lower");
+        write(writable, "home/user/changed.txt", "writable");
+        Files.createSymbolicLink(lower.resolve("home/user/link"),
+                Paths.get("lower.txt"));
+
+        extract("home");
+
+        assertEquals("lower", read("home/user/lower.txt"));
+        assertEquals("upper", read("home/user/shadowed.txt"));
+        assertFalse(exists("home/user/deleted.txt"));
+        assertFalse(exists("home/user/.wh.deleted.txt"));
+        assertFalse(exists("home/user/deletedLater.txt"));
+        assertEquals("writable", read("home/user/changed.txt"));
+        assertEquals(Paths.get("lower.txt"), Files.readSymbolicLink(
+                writable.resolve("home/user/link")));
+    }
+
+    @Test
+    public void testOpaqueDirectories() throws IOException {
+        write(lower, "home/user/config/old.txt", "lower");
+        write(lower, "home/user/merged/lower.txt", "lower");
+        write(upper, "home/user/config/.wh..wh..opq", "");
+        write(upper, "home/user/config/new.txt", "upper");
+        write(upper, "home/user/merged/upper.txt", "upper");
+        write(lower, "home/user/reset/old.txt", "lower");
+        write(writable, "home/user/reset/.wh..wh..opq", "");
+
+        extract("home");
+
+        assertFalse(exists("home/user/config/old.txt"));
+        assertFalse(exists("home/user/config/.wh..wh..opq"));
+        assertEquals("upper", read("home/user/config/new.txt"));
+        // directories without opaque marker are merged
+        assertEquals("lower", read("home/user/merged/lower.txt"));
+        assertEquals("upper", read("home/user/merged/upper.txt"));
+        assertFalse(exists("home/user/reset/old.txt"));
+    }
+
+    @Test
+    public void testMissingParents() throws IOException {
+        write(lower, "etc/cups/printers.conf", "printer");
+        Files.setPosixFilePermissions(lower.resolve("etc"),
+                PosixFilePermissions.fromString("rwxr-x---"));
+
+        extract("etc/cups");
+
+        assertEquals("printer", read("etc/cups/printers.conf"));
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(writable.resolve("etc"))));
+    }
+
+    private void extract(String path) throws IOException {
+        new LowerLayerExtractor(writable.toString(), Arrays.asList(
+                upper.toString(), lower.toString())).extract(path);
+    }
+
+    private static void write(Path branch, String path, String content)
+            throws IOException {
+        Path file = branch.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(writable.resolve(path)),
+                StandardCharsets.UTF_8);
+    }
+
+    private boolean exists(String path) {
+        return Files.exists(writable.resolve(path), LinkOption.NOFOLLOW_LINKS);
+    }
+}
@@ -0,0 +1,96 @@
+package ch.fhnw.dlcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the partition placement of PartitionLayout.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class PartitionLayoutTest {
+
+    private static final long MEGA = 1024 * 1024;
+    // no such device, so the layout falls back to 512 byte sectors
+    private static final String DEVICE = "/dev/dlcopy-test";
+    private static final long SECTOR_SIZE = 512;
+    private static final long DEVICE_SIZE = 8000 * MEGA;
+    private static final long DATA_END = DLCopy.EFI_PARTITION_SIZE + 1000;
+
+    @Test
+    public void testDefaultAlignment() {
+        long[][] partitions = getPartitions(MEGA);
+        assertPartition(partitions[0], 1, 10);
+        assertPartition(partitions[1], 10, DATA_END);
+        assertPartition(partitions[2], DATA_END, -1);
+    }
+
+    @Test
+    public void testEraseBlockAlignment() {
+        long[][] partitions = getPartitions(4 * MEGA);
+        // the EFI partition keeps its 9 MiB
+        assertPartition(partitions[0], 4, 16);
+        assertPartition(partitions[1], 16, 1016);
+        assertPartition(partitions[2], 1016, -1);
+        checkLayout(partitions, 4 * MEGA);
+    }
+
+    @Test
+    public void testLargeEraseBlockAlignment() {
+        long[][] partitions = getPartitions(16 * MEGA);
+        assertPartition(partitions[0], 16, 32);
+        assertPartition(partitions[1], 32, 1040);
+        assertPartition(partitions[2], 1040, -1);
+        checkLayout(partitions, 16 * MEGA);
+    }
+
+    // returns {start, size} of every partition (in byte)
+    private static long[][] getPartitions(long alignment) {
+        PartitionLayout layout = new PartitionLayout(DEVICE, DEVICE_SIZE);
+        layout.addEfiPartition(DEVICE + 1, 1, DLCopy.EFI_PARTITION_SIZE);
+        layout.addDataPartition(DEVICE + 2,
+                DLCopy.EFI_PARTITION_SIZE, DATA_END);
+        layout.addSystemPartition(DEVICE + 3, DATA_END);
+        layout.setBootable(DEVICE + 3);
+        layout.setAlignment(alignment);
+
+        // e.g. "2048,18432,ef"
+        String[] lines = layout.getSfdiskScript().split("\n");
+        assertEquals(3, lines.length);
+        long[][] partitions = new long[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            String[] tokens = lines[i].split(",");
+            partitions[i] = new long[]{
+                Long.parseLong(tokens[0]) * SECTOR_SIZE,
+                Long.parseLong(tokens[1]) * SECTOR_SIZE};
+        }
+        assertTrue(lines[2].endsWith(",*"));
+        return partitions;
+    }
+
+    // endMiB < 0: the partition uses the rest of the device
+    private static void assertPartition(long[] partition, long startMiB,
+            long endMiB) {
+        assertEquals(startMiB * MEGA, partition[0]);
+        long end = endMiB < 0 ? DEVICE_SIZE : endMiB * MEGA;
+        assertEquals(end - partition[0], partition[1]);
+    }
+
+    private static void checkLayout(long[][] partitions, long alignment) {
+        long[] requestedSizes = new long[]{
+            (DLCopy.EFI_PARTITION_SIZE - 1) * MEGA,
+            (DATA_END - DLCopy.EFI_PARTITION_SIZE) * MEGA};
+        long previousEnd = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            long start = partitions[i][0];
+            assertEquals(0, start % alignment);
+            assertTrue(start >= previousEnd);
+            if (i < requestedSizes.length) {
+                assertTrue(partitions[i][1] >= requestedSizes[i]);
+            }
+            previousEnd = start + partitions[i][1];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ch.fhnw.dlcopy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that SquashFSIndex merges the images like aufs does.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class SquashFSIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private Path upper;
+    private Path lower;
+    private Path data;
+
+    @Before
+    public void setUp() throws IOException {
+        upper = temporaryFolder.newFolder("upper").toPath();
+        lower = temporaryFolder.newFolder("lower").toPath();
+        data = temporaryFolder.newFolder("data").toPath();
+    }
+
+    @Test
+    public void testUpperImageHidesLowerImage() throws IOException {
+        write(lower, "home/user/a.txt", "lower");
+        write(upper, "home/user/a.txt", "upper");
+        write(lower, "home/user/b.txt", "lower");
+
+        SquashFSIndex index = createIndex();
+
+        assertTrue(isIdentical(index, "home/user/a.txt", "upper"));
+        assertFalse(isIdentical(index, "home/user/a.txt", "lower"));
+        assertTrue(isIdentical(index, "home/user/b.txt", "lower"));
+    }
+
+    @Test
+    public void testWhiteouts() throws IOException {
+        write(lower, "home/user/deleted.txt", "lower");
+        write(upper, "home/user/.wh.deleted.txt", "");
+        write(lower, "home/other/file.txt", "lower");
+        write(upper, "home/.wh.other", "");
+
+        SquashFSIndex index = createIndex();
+
+        assertFalse(isIdentical(index, "home/user/deleted.txt", "lower"));
+        assertFalse(isIdentical(index, "home/user/.wh.deleted.txt", ""));
+        assertFalse(isIdentical(index, "home/other/file.txt", "lower"));
+    }
+
+    @Test
+    public void testOpaqueDirectories() throws IOException {
+        write(lower, "home/user/config/old.txt", "lower");
+        write(upper, "home/user/config/.wh..wh..opq", "");
+        write(upper, "home/user/config/new.txt", "upper");
+        write(lower, "home/user/merged/lower.txt", "lower");
+        write(upper, "home/user/merged/upper.txt", "upper");
+
+        SquashFSIndex index = createIndex();
+
+        assertFalse(isIdentical(index, "home/user/config/old.txt", "lower"));
+        assertTrue(isIdentical(index, "home/user/config/new.txt", "upper"));
+        assertTrue(isIdentical(index, "home/user/merged/lower.txt", "lower"));
+        assertTrue(isIdentical(index, "home/user/merged/upper.txt", "upper"));
+    }
+
+    @Test
+    public void testOpaqueRoot() throws IOException {
+        write(lower, "home/user/a.txt", "lower");
+        write(upper, ".wh..wh..opq", "");
+
+        SquashFSIndex index = createIndex();
+
+        assertFalse(isIdentical(index, "home/user/a.txt", "lower"));
+    }
+
+    private SquashFSIndex createIndex() {
+        return new SquashFSIndex(
+                Arrays.asList(upper.toString(), lower.toString()), "home");
+    }
+
+    // checks a file with the given content on the data partition
+    private boolean isIdentical(SquashFSIndex index, String path,
+            String content) throws IOException {
+        Path file = write(data, path, content);
+        PosixFileAttributes attributes = Files.readAttributes(file,
+                PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return index.isIdentical(path, file, attributes);
+    }
+
+    private static Path write(Path branch, String path, String content)
+            throws IOException {
+        Path file = branch.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,124 @@
+package ch.fhnw.dlcopy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that TreeDeleter keeps the same entries as the find commands it
+ * replaces.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class TreeDeleterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private Path root;
+    private Path outside;
+
+    @Before
+    public void setUp() throws IOException {
+        root = temporaryFolder.newFolder("data").toPath();
+        outside = temporaryFolder.newFolder("outside").toPath();
+        write(root, "persistence.conf");
+        write(root, "lost+found/#12345");
+        write(root, "home/user/.bashrc");
+        write(root, "home/user/Documents/letter.txt");
+        write(root, "etc/cups/printers.conf");
+        write(root, "etc/cups/ppd/printer.ppd");
+        write(root, "etc/hostname");
+        write(root, "usr/bin/tool");
+        write(root, "var/lib/dpkg/status");
+        write(outside, "keep/file.txt");
+    }
+
+    @Test
+    public void testKeepHome() {
+        long deleted = new TreeDeleter(root.toString(),
+                "lost\\+found", "persistence.conf", "home.*").delete();
+
+        assertTrue(exists("persistence.conf"));
+        assertTrue(exists("home/user/.bashrc"));
+        assertTrue(exists("home/user/Documents/letter.txt"));
+        assertFalse(exists("etc"));
+        assertFalse(exists("usr"));
+        assertFalse(exists("var"));
+        // etc, etc/cups, etc/cups/ppd, 3 files in etc, usr, usr/bin,
+        // usr/bin/tool, var, var/lib, var/lib/dpkg, var/lib/dpkg/status
+        // and lost+found/#12345
+        assertEquals(14, deleted);
+    }
+
+    @Test
+    public void testKeepPrinterSettings() {
+        new TreeDeleter(root.toString(), "lost\\+found", "persistence.conf",
+                "home.*", "etc", "etc/cups.*").delete();
+
+        assertTrue(exists("home/user/.bashrc"));
+        assertTrue(exists("etc/cups/printers.conf"));
+        assertTrue(exists("etc/cups/ppd/printer.ppd"));
+        // the kept directory "etc" is checked again
+        assertTrue(exists("etc"));
+        assertFalse(exists("etc/hostname"));
+        assertFalse(exists("usr"));
+    }
+
+    @Test
+    public void testLostAndFoundContent() {
+        new TreeDeleter(root.toString(),
+                "lost\\+found", "persistence.conf").delete();
+
+        // the directory is kept but its content doesn't match any pattern
+        assertTrue(exists("lost+found"));
+        assertFalse(exists("lost+found/#12345"));
+        assertTrue(exists("persistence.conf"));
+        assertFalse(exists("home"));
+    }
+
+    @Test
+    public void testSymbolicLinksAreNotFollowed() throws IOException {
+        // a deleted link into another tree
+        Files.createSymbolicLink(root.resolve("link"), outside);
+        // a kept link, its target must not be walked and cleaned
+        Files.createSymbolicLink(root.resolve("home/user/outside"), outside);
+
+        new TreeDeleter(root.toString(), "home.*").delete();
+
+        assertFalse(exists("link"));
+        assertTrue(exists("home/user/outside"));
+        assertTrue(Files.exists(outside.resolve("keep/file.txt")));
+    }
+
+    @Test
+    public void testKeptSymbolicLinkIsNotWalked() throws IOException {
+        // the kept entry is only a link, nothing below it is touched
+        Files.createSymbolicLink(root.resolve("etc2"), outside);
+
+        new TreeDeleter(root.toString(), "etc2").delete();
+
+        assertTrue(exists("etc2"));
+        assertTrue(Files.exists(outside.resolve("keep/file.txt")));
+    }
+
+    private boolean exists(String path) {
+        return Files.exists(root.resolve(path), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static void write(Path directory, String path)
+            throws IOException {
+        Path file = directory.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, path.getBytes(StandardCharsets.UTF_8));
+    }
+}